@@ -8,14 +8,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import app.argparse.Options;
+import hash.HashMatrix;
+import hash.IHashAlgorithm;
 import hash.ImageHash;
+import hash.MatchMode;
 import image.IImage;
 import pipeline.sources.ImageLoader;
 import utils.Triple;
@@ -40,6 +40,8 @@ public class HashResults extends Triple<List<TrackedMatch>, List<TrackedMatch>,
 
 		final List<TrackedMatch> exactMatches = new Vector<>();
 		final List<TrackedMatch> partialMatches = new Vector<>();
+		// Pairs with identical hashes, whose images still have to be compared.
+		final List<TrackedMatch> exactCandidates = new Vector<>();
 		final List<ImageHash> nonMatches;
 		final Set<ImageHash> matched = Collections.synchronizedSet(new HashSet<>());
 
@@ -53,30 +55,11 @@ public class HashResults extends Triple<List<TrackedMatch>, List<TrackedMatch>,
 
 			if (options.verbose) System.out.println("Comparing hashes.");
 
-			ExecutorService threadpool = Executors.newWorkStealingPool(Runtime.getRuntime().availableProcessors() * 2);
-
-			for (int i = 0; i < hashes.length; i++) {
-				ImageHash h1 = hashes[i];
-
-				final ImageHash[] subarr = Arrays.copyOfRange(hashes, i + 1, hashes.length);
-				int sublen = subarr.length;
-				if (sublen > 200) {
-					threadpool.execute(() -> {
-						for (ImageHash h2 : subarr)
-							compareHashes(h1, h2, source, source, exactMatches, partialMatches, matched);
-					});
-				} else {
-					for (ImageHash h2 : subarr)
-						compareHashes(h1, h2, source, source, exactMatches, partialMatches, matched);
-				}
-			}
-
-			try {
-				threadpool.shutdown();
-				threadpool.awaitTermination(2, TimeUnit.DAYS);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			// Only the pairs within the threshold come back from the matrix, so only they
+			// are looked at any further.
+			if (hashes.length > 0) HashMatrix.of(Arrays.asList(hashes)).forEachPairWithin(threshold(options),
+					(i, j, d) -> compareHashes(hashes[i], hashes[j], d, source, source, exactCandidates,
+							partialMatches, matched));
 
 			if (options.verbose) System.out.println("Finished comparing hashes.");
 
@@ -102,9 +85,9 @@ public class HashResults extends Triple<List<TrackedMatch>, List<TrackedMatch>,
 					.toArray(new ImageHash[0]);
 
 			if (options.verbose) System.out.println("Cross comparing hashes.");
-			hashes1.parallelStream().forEach(h1 -> {
-				for (ImageHash h2 : hashes2) compareHashes(h1, h2, l1, l2, exactMatches, partialMatches, matched);
-			});
+			if (!hashes1.isEmpty() && hashes2.length > 0) HashMatrix.of(hashes1).forEachPairWithin(
+					HashMatrix.of(Arrays.asList(hashes2)), threshold(options), (i, j, d) -> compareHashes(hashes1.get(i),
+							hashes2[j], d, l1, l2, exactCandidates, partialMatches, matched));
 
 			if (options.verbose) System.out.println("Finished comparing hashes.");
 
@@ -114,43 +97,60 @@ public class HashResults extends Triple<List<TrackedMatch>, List<TrackedMatch>,
 			nonMatches = all.stream().filter(hash -> !matched.contains(hash)).collect(Collectors.toList());
 		}
 
+		if (options.verbose && !exactCandidates.isEmpty()) System.out.println("Comparing the images of identical hashes.");
+		exactCandidates.parallelStream().forEach(m -> verifyExact(m, exactMatches, partialMatches));
+
 		return new HashResults(exactMatches, partialMatches, nonMatches);
 	}
 
-	private static Semaphore loadSequential = new Semaphore(5);
+	private static int threshold(Options options) {
+		return options.algorithm.matchThreshold(options.algorithm.getMatchMode());
+	}
 
-	private static void compareHashes(ImageHash h1, ImageHash h2, ImageLoader l1, ImageLoader l2,
-			List<TrackedMatch> exactMatches, List<TrackedMatch> partialMatches, Set<ImageHash> matched) {
+	private static Semaphore loadSequential = new Semaphore(5);
 
-		boolean matches = h1.getAlgorithm().matches(h1, h2);
+	// Every pair the matrix hands over is within the threshold of the algorithm's
+	// mode, so it matches, and its distance d is all that's needed to tell whether
+	// it could be an exact match. Nothing is loaded here, so the join never waits
+	// on the disk.
+	private static void compareHashes(ImageHash h1, ImageHash h2, int d, ImageLoader l1, ImageLoader l2,
+			List<TrackedMatch> exactCandidates, List<TrackedMatch> partialMatches, Set<ImageHash> matched) {
+		matched.add(h1);
+		matched.add(h2);
+
+		// Pixel-identical images always have identical hashes, so only pairs with
+		// identical hashes need to be loaded and checked.
+		IHashAlgorithm alg = h1.getAlgorithm();
+		if (d <= alg.matchThreshold(MatchMode.EXACT)) exactCandidates.add(new TrackedMatch(h1, h2, l1, l2));
+		else partialMatches.add(new TrackedMatch(h1, h2, l1, l2));
+	}
 
-		if (matches) {
-			matched.add(h1);
-			matched.add(h2);
+	// Loads both images of a pair with identical hashes, after the join, to see
+	// whether they're really the same.
+	private static void verifyExact(TrackedMatch m, List<TrackedMatch> exactMatches,
+			List<TrackedMatch> partialMatches) {
+		// Only keep a few images loaded in memory at a time.
+		try {
+			loadSequential.acquire();
 
-			// Only keep two images loaded in memory at a time.
+			IImage<?> img1 = null, img2 = null;
 			try {
-				loadSequential.acquire();
-
-				IImage<?> img1 = null, img2 = null;
-				try {
-					img1 = h1.loadFromSource();
-					img2 = h2.loadFromSource();
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.exit(1);
-				}
-				if (img1.toRGBA().equals(img2.toRGBA())) { // check if exact
-					exactMatches.add(new TrackedMatch(h1, h2, l1, l2));
-				} else { // otherwise is partial
-					partialMatches.add(new TrackedMatch(h1, h2, l1, l2));
-				}
-			} catch (InterruptedException e1) {
-				e1.printStackTrace();
-			} finally {
-				loadSequential.release();
+				img1 = m.getFirst().loadFromSource();
+				img2 = m.getSecond().loadFromSource();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			if (img1.toRGBA().equals(img2.toRGBA())) { // check if exact
+				exactMatches.add(m);
+			} else { // otherwise is partial
+				partialMatches.add(m);
 			}
-		} // otherwise is unmatched, which is the compliment of matched.
+		} catch (InterruptedException e1) {
+			e1.printStackTrace();
+		} finally {
+			loadSequential.release();
+		}
 	}
 
 }
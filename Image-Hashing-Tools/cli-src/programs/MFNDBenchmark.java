@@ -2,7 +2,6 @@ package programs;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -15,19 +14,19 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.IntStream;
 
+import hash.HashMatrix;
 import hash.IHashAlgorithm;
 import hash.ImageHash;
 import hash.MatchMode;
+import hash.PreprocessingContext;
 import hash.implementations.AverageHash;
 import hash.implementations.DifferenceHash;
 import hash.implementations.PerceptualHash;
+import hashstore.HashFileWriter;
+import hashstore.HashFiles;
 import image.implementations.RGBAImage;
 import pipeline.sources.ImageLoader;
 
@@ -108,26 +107,24 @@ public class MFNDBenchmark {
 		// writers.
 		File[] hashFiles = new File[allAlgs.length];
 		for (int i = 0; i < allAlgs.length; i++) {
-			String fileName = "hashes_" + allAlgs[i].algName() + "" + allAlgs[i].getHashLength() + ".txt";
-			hashFiles[i] = new File(resultDir, fileName);
-
-			// Create the files and make really sure they were created.
-			try {
-				hashFiles[i].createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.exit(1);
+			String fileName = "hashes_" + allAlgs[i].algName() + "" + allAlgs[i].getHashLength();
+			hashFiles[i] = new File(resultDir, fileName + ".hashes");
+
+			// Hashes from before the binary format were saved as text. Convert them once,
+			// instead of parsing them on every run.
+			File textFile = new File(resultDir, fileName + ".txt");
+			if (!doHashes && !hashFiles[i].exists() && textFile.exists()) {
+				System.out.println("Converting: " + textFile);
+				HashFiles.convert(textFile, hashFiles[i]);
 			}
-			if (!hashFiles[i].exists())
-				throw new IllegalStateException();
 		}
 
 		// Hash all the images in the Mir-Flickr dataset, saving the hashes to files.
 		if (doHashes) {
 			// Create writers to save the hashes as soon as they are created.
-			PrintWriter[] writers = new PrintWriter[allAlgs.length];
+			HashFileWriter[] writers = new HashFileWriter[allAlgs.length];
 			for (int i = 0; i < allAlgs.length; i++)
-				writers[i] = new PrintWriter(hashFiles[i]);
+				writers[i] = new HashFileWriter(hashFiles[i], allAlgs[i]);
 
 			System.out.println("Finished loading all the data. Now hashing images.");
 			MirFlickrDataset.parallelStream().map(file -> {
@@ -140,16 +137,17 @@ public class MFNDBenchmark {
 					return null;
 				}
 			}).forEach(img -> {
-				// Hash each image with all the algorithms and save them.
+				// Hash each image with all the algorithms and save them. The algorithms share
+				// their thumbnails through the context.
+				PreprocessingContext context = new PreprocessingContext(img);
 				for (int i = 0; i < allAlgs.length; i++) {
-					ImageHash h = allAlgs[i].hash(img);
-					writers[i].println(h);
-					// writers[i].flush();
+					ImageHash h = allAlgs[i].hash(context);
+					writers[i].store(h);
 				}
 			});
 
 			// Close the writers now that we're done with them.
-			for (PrintWriter w : writers)
+			for (HashFileWriter w : writers)
 				w.close();
 		}
 
@@ -204,45 +202,32 @@ public class MFNDBenchmark {
 		List<HashPair> normalMatches = new Vector<>();
 		List<HashPair> sloppyMatches = new Vector<>();
 
-		int numThreads = 8;
-		final List<ExecutorService> pools = IntStream.range(0, numThreads)
-				.mapToObj(a -> Executors.newSingleThreadExecutor()).collect(Collectors.toList());
-
-		for (int i1 = 0; i1 < hashListArray.length; i1++) {
-			final int i = i1;
-			pools.get(i % numThreads).execute(() -> {
-				for (int j = i + 1; j < hashListArray.length; j++) {
-					if (hashListArray[i].matches(hashListArray[j], MatchMode.EXACT))
-						exactMatches
-								.add(new HashPair(sourceToNumber(hashListArray[i]), sourceToNumber(hashListArray[j])));
-					else if (hashListArray[i].matches(hashListArray[j], MatchMode.STRICT))
-						strictMatches
-								.add(new HashPair(sourceToNumber(hashListArray[i]), sourceToNumber(hashListArray[j])));
-					else if (hashListArray[i].matches(hashListArray[j], MatchMode.NORMAL))
-						normalMatches
-								.add(new HashPair(sourceToNumber(hashListArray[i]), sourceToNumber(hashListArray[j])));
-					else if (hashListArray[i].matches(hashListArray[j], MatchMode.SLOPPY))
-						sloppyMatches
-								.add(new HashPair(sourceToNumber(hashListArray[i]), sourceToNumber(hashListArray[j])));
-				}
-				System.out.println(i);
-			});
-		}
+		// Every hash in the list came from the same algorithm. Pack them into a
+		// matrix, so that the comparisons run along one array rather than chasing a
+		// pointer to every hash.
+		final IHashAlgorithm alg = hashListArray[0].getAlgorithm();
+		HashMatrix matrix = HashMatrix.of(currentHashList);
+
+		// Only pairs within the loosest threshold come back, and each is sorted into
+		// the tightest mode it matches under.
+		matrix.forEachPairWithin(alg.matchThreshold(MatchMode.SLOPPY), (i, j, distance) -> {
+			HashPair pair = new HashPair(sourceToNumber(hashListArray[i]), sourceToNumber(hashListArray[j]));
+			if (distance <= alg.matchThreshold(MatchMode.EXACT))
+				exactMatches.add(pair);
+			else if (distance <= alg.matchThreshold(MatchMode.STRICT))
+				strictMatches.add(pair);
+			else if (distance <= alg.matchThreshold(MatchMode.NORMAL))
+				normalMatches.add(pair);
+			else
+				sloppyMatches.add(pair);
+		});
 
+		// Each looser mode also contains every match from the tighter ones. This has
+		// to wait until the comparisons are finished.
 		strictMatches.addAll(exactMatches);
 		normalMatches.addAll(strictMatches);
 		sloppyMatches.addAll(normalMatches);
 
-		pools.forEach(pool -> {
-			try {
-				pool.shutdown();
-				pool.awaitTermination(5, TimeUnit.DAYS);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
-		});
-
 		// Return the lists of matches for each mode.
 		@SuppressWarnings("unchecked")
 		ArrayList<HashPair>[] results = new ArrayList[] { new ArrayList<>(exactMatches), new ArrayList<>(strictMatches),
@@ -288,20 +273,8 @@ public class MFNDBenchmark {
 		});
 	}
 
-	private static List<ImageHash> loadFromFile(File matchFile) throws IOException {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(matchFile)));
-		List<ImageHash> textFile = reader.lines().map(line -> {
-			try {
-				return ImageHash.fromString(line);
-			} catch (IllegalArgumentException | ClassNotFoundException e) {
-				e.printStackTrace();
-				System.exit(1);
-				return null;
-			}
-		}).collect(Collectors.toList());
-		reader.close();
-
-		return textFile;
+	private static List<ImageHash> loadFromFile(File hashFile) throws IOException {
+		return HashFiles.readAll(hashFile);
 	}
 
 	/********************************/
@@ -0,0 +1,86 @@
+package programs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.SourceDictionary;
+
+// Measures how much heap a million distinct sources take as Strings, as a
+// private String table with a HashMap index, and in a SourceDictionary with a
+// column of ids. Run with a fixed heap, e.g. -Xms2g -Xmx2g, for steady numbers.
+public class SourceDictionaryBenchmark {
+
+	private static final int N = 1_000_000;
+
+	// Holds what's being measured, so that the JIT can't free it early.
+	private static final List<Object> retained = new ArrayList<>();
+
+	public static void main(String[] args) {
+		// Like the Mir-Flickr dataset, every image in one folder.
+		measure("One folder", n -> "/home/user/datasets/mirflickr/im" + n + ".jpg");
+		// A thousand images in each of a thousand folders.
+		measure("1000 folders", n -> "/home/user/Pictures/album" + n / 1000 + "/IMG_" + n % 1000 + ".jpg");
+		// Short relative paths, where there's little folder to share.
+		measure("Short paths", n -> "a/" + n + ".png");
+	}
+
+	private static interface Sources {
+		String get(int n);
+	}
+
+	private static void measure(String name, Sources sources) {
+		long before = used();
+		String[] strings = new String[N];
+		for (int n = 0; n < N; n++) {
+			strings[n] = sources.get(n);
+		}
+		retained.add(strings);
+		long asStrings = used() - before;
+
+		before = used();
+		List<String> table = new ArrayList<>();
+		Map<String, Integer> index = new HashMap<>();
+		int[] tableIds = new int[N];
+		for (int n = 0; n < N; n++) {
+			String source = sources.get(n);
+			Integer id = index.get(source);
+			if (id == null) {
+				id = table.size();
+				table.add(source);
+				index.put(source, id);
+			}
+			tableIds[n] = id;
+		}
+		retained.add(table);
+		retained.add(index);
+		retained.add(tableIds);
+		long asTable = used() - before;
+
+		before = used();
+		SourceDictionary dictionary = new SourceDictionary();
+		int[] dictionaryIds = new int[N];
+		for (int n = 0; n < N; n++) {
+			dictionaryIds[n] = dictionary.intern(sources.get(n));
+		}
+		retained.add(dictionary);
+		retained.add(dictionaryIds);
+		long asDictionary = used() - before;
+
+		System.out.printf("%s, %d sources, e.g. %s%n", name, N, sources.get(N - 1));
+		System.out.printf("  String per source:           %6.1f bytes each%n", asStrings / (double) N);
+		System.out.printf("  String table and HashMap:    %6.1f bytes each%n", asTable / (double) N);
+		System.out.printf("  SourceDictionary and ids:    %6.1f bytes each%n", asDictionary / (double) N);
+		retained.clear();
+	}
+
+	private static long used() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -7,16 +7,18 @@ import utils.Pair;
 // This is perhaps the most asinine code that I've ever written.
 public class AlgLoader {
 
-	public static void register(IHashAlgorithm alg) {
+	public static synchronized void register(IHashAlgorithm alg) {
 		singleton.registerNonStatic(alg);
 	}
 
-	public static void forget() {
+	public static synchronized void forget() {
 		singleton = new AlgLoader();
+		generation++;
 	}
 
 	// Never returns null, throws ClassNotFoundException if not registered.
-	public static IHashAlgorithm loadAlgorithm(String name, String arguments) throws ClassNotFoundException {
+	// Synchronized, since hashes are parsed from many threads at once.
+	public static synchronized IHashAlgorithm loadAlgorithm(String name, String arguments) throws ClassNotFoundException {
 		Pair<String, String> key = new Pair<String, String>(name, arguments);
 		IHashAlgorithm alg = singleton.instanceMap.get(key);
 		if (alg != null) return alg;
@@ -34,6 +36,14 @@ public class AlgLoader {
 
 	private static AlgLoader singleton = new AlgLoader();
 
+	// Bumped by forget(), so that anything holding on to loaded algorithms, like
+	// ImageHashParser, knows to load them again.
+	private static volatile int generation = 0;
+
+	static int generation() {
+		return generation;
+	}
+
 	// Name to base instance
 	private HashMap<String, IHashAlgorithm> algMap = new HashMap<>();
 	// Arguments to created and then loaded instance.
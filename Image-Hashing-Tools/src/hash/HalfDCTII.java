@@ -1,14 +1,55 @@
 package hash;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 // For validation:
 // 43FED13DAB04CA4789A799CA39767B4A955DE6E6B4C238F363A662666BCE912B,pHash,32,https://external-content.duckduckgo.com/iu/?u=https%3A%2F%2Fwww.cmc.edu%2Fsites%2Fdefault%2Ffiles%2Fnews%2F2013%2F05%2Flena.jpg&f=1&nofb=1
 
 public class HalfDCTII {
 
-	// This is separate because it should be stored with pHash's IHashAlgorithm, so
-	// that it doesn't having to recreate the weights every time hash() is called.
+	// Shared by every pHash that transforms thumbnails of the same size. AlgLoader
+	// creates a new algorithm for every hash it parses, so the tables can't belong
+	// to the instances without being rebuilt each time.
+	private static final Map<Integer, Tables> tables = new ConcurrentHashMap<>();
+
+	/**
+	 * The coefficients, cosine table and per thread buffers for transforming
+	 * thumbnails of one size. Get them with {@link HalfDCTII#tablesFor(int)}.
+	 */
+	public static class Tables {
+		private final int size;
+		private final double[] DCTCoefficients;
+		private final double[] cosineLookup;
+		// Per thread buffers, so that hashing on many threads at once neither
+		// allocates nor contends. Holds the row pass, then the output.
+		private final ThreadLocal<double[][]> scratch;
+
+		private Tables(int size) {
+			int half = size / 2;
+			this.size = size;
+			this.DCTCoefficients = createHalfDCTIICoefficients(size);
+			this.cosineLookup = createCosineLookup(size);
+			this.scratch = ThreadLocal.withInitial(() -> new double[][] { new double[half * size], new double[half * half] });
+		}
+
+		// The transform of a size x size thumbnail. The result is this thread's
+		// buffer, so it's only good until the thread transforms another thumbnail of
+		// this size.
+		public double[] transform(byte[] original) {
+			double[][] buffers = this.scratch.get();
+			return halfDCTII(original, this.size, this.DCTCoefficients, this.cosineLookup, buffers[0], buffers[1]);
+		}
+	}
+
+	public static Tables tablesFor(int size) {
+		Tables t = tables.get(size);
+		return t != null ? t : tables.computeIfAbsent(size, Tables::new);
+	}
+
+	// This is separate so that it's made once per size, in Tables, rather than
+	// every time hash() is called.
 	public static double[] createHalfDCTIICoefficients(int originalSize) {
 		int halfRoundedDown = (originalSize / 2);
 		double[] DCTCoefficients = new double[halfRoundedDown];
@@ -19,6 +60,20 @@ public class HalfDCTII {
 		return DCTCoefficients;
 	}
 
+	// Also kept in Tables. Row uv of the table holds the cosine basis for frequency
+	// uv, sampled at every pixel position ij.
+	public static double[] createCosineLookup(int originalSize) {
+		int halfRoundedDown = (originalSize / 2);
+
+		double[] cosineLookup = new double[halfRoundedDown * originalSize];
+		for (int uv = 0; uv < halfRoundedDown; uv++) {
+			for (int ij = 0; ij < originalSize; ij++) {
+				cosineLookup[uv * originalSize + ij] = Math.cos(((2 * ij + 1) / (2.0 * originalSize)) * uv * Math.PI);
+			}
+		}
+		return cosineLookup;
+	}
+
 	// This transform is uninvertible, and not useful for compression. This is a
 	// DCTII for use in PerceptualHash#hash(). The algorithm requires a discrete
 	// cosine transform, but only uses the upper-left corner. Therefore, we can make
@@ -27,25 +82,47 @@ public class HalfDCTII {
 	// calls, and to collapse that into a single array by combining indices. We use
 	// this technique whenever possible.
 	public static double[] halfDCTII(byte[] original, int size, double[] DCTCoefficients) {
+		int halfRoundedDown = (size / 2);
+		return halfDCTII(original, size, DCTCoefficients, createCosineLookup(size),
+				new double[halfRoundedDown * size], new double[halfRoundedDown * halfRoundedDown]);
+	}
+
+	// The same transform, but with the cosine table and both buffers supplied by
+	// the caller so that nothing is allocated. The 2D DCT is separable, so rather
+	// than summing over every pixel for every coefficient (n^4), we transform each
+	// row and then each column of the result (n^3).
+	//
+	// rowPass must hold (size / 2) * size doubles, and transformed must hold
+	// (size / 2) * (size / 2). Both are overwritten. Returns transformed.
+	public static double[] halfDCTII(byte[] original, int size, double[] DCTCoefficients, double[] cosineLookup,
+			double[] rowPass, double[] transformed) {
 
 		int halfRoundedDown = (size / 2);
 
-		double[] cosineLookup = new double[halfRoundedDown * size];
-		for (int uv = 0; uv < halfRoundedDown; uv++) {
-			for (int ij = 0; ij < size; ij++) {
-				cosineLookup[uv * size + ij] = Math.cos(((2 * ij + 1) / (2.0 * size)) * uv * Math.PI);
+		// Transform each row. Stored transposed, as rowPass[v * size + i], so that the
+		// column pass below reads both of its arrays sequentially.
+		// Pixels are read as signed bytes, as they always have been, so that hashes
+		// stay comparable with ones that have already been stored.
+		for (int i = 0; i < size; i++) {
+			int rowOffset = i * size;
+			for (int v = 0; v < halfRoundedDown; v++) {
+				int cosineOffset = v * size;
+				double sum = 0.0;
+				for (int j = 0; j < size; j++) {
+					sum += cosineLookup[cosineOffset + j] * original[rowOffset + j];
+				}
+				rowPass[v * size + i] = sum;
 			}
 		}
 
-		double[] transformed = new double[halfRoundedDown * halfRoundedDown];
-
+		// Transform each column of the row pass.
 		for (int u = 0; u < halfRoundedDown; u++) {
+			int cosineOffset = u * size;
 			for (int v = 0; v < halfRoundedDown; v++) {
+				int rowPassOffset = v * size;
 				double sum = 0.0;
 				for (int i = 0; i < size; i++) {
-					for (int j = 0; j < size; j++) {
-						sum += cosineLookup[u * size + i] * cosineLookup[v * size + j] * original[i * size + j];
-					}
+					sum += cosineLookup[cosineOffset + i] * rowPass[rowPassOffset + i];
 				}
 				sum *= (((2 * DCTCoefficients[u] * DCTCoefficients[v]) / size));
 				transformed[u * halfRoundedDown + v] = sum;
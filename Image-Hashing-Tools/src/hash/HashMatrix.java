@@ -0,0 +1,268 @@
+package hash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import utils.SourceDictionary;
+
+/**
+ * Many hashes of one algorithm, stored by column rather than as ImageHash
+ * objects. The words of every hash are packed one after another into a single
+ * long[], row i starting at i * getWordCount(). Sources are a column of their
+ * ids in a {@link SourceDictionary} of the matrix's own, which goes away with
+ * it.
+ *
+ * Comparing every pair of an ImageHash[] chases a pointer to each hash, and
+ * then to its words, for every comparison. Here the comparisons walk straight
+ * along the one array. The all-pairs kernels go a block of rows against a block
+ * of columns at a time, so that both blocks stay in cache, and the blocks run in
+ * parallel.
+ *
+ * Only supports algorithms compared by hamming distance. Not safe to add to
+ * from many threads at once, but safe to read from them once it's filled.
+ *
+ * @author apaz-cli
+ */
+public class HashMatrix {
+
+	// The number of rows and columns in each block of the all-pairs kernels. A
+	// block of 256 256 bit hashes is 8 KiB, so two of them fit in L1.
+	public static final int BLOCK_SIZE = 256;
+
+	@FunctionalInterface
+	public static interface PairVisitor {
+		// Called from many threads at once.
+		void visit(int i, int j, int distance);
+	}
+
+	private final IHashAlgorithm alg;
+	private final int wordCount;
+
+	private long[] words;
+	private int[] sourceIds;
+	private int size = 0;
+
+	private final SourceDictionary sources = new SourceDictionary();
+
+	public HashMatrix(IHashAlgorithm alg) {
+		this(alg, 16);
+	}
+
+	public HashMatrix(IHashAlgorithm alg, int capacity) {
+		if (alg == null) throw new IllegalArgumentException("The algorithm cannot be null.");
+		if (alg.getComparisonType() != ComparisonType.HAMMING) throw new IllegalArgumentException(
+				"HashMatrix only supports algorithms compared by hamming distance. Got: " + alg.algName());
+		if (capacity < 0) throw new IllegalArgumentException("The capacity cannot be negative.");
+		this.alg = alg;
+		this.wordCount = ImageHash.wordCount(alg.getHashLength());
+		this.words = new long[capacity * this.wordCount];
+		this.sourceIds = new int[capacity];
+	}
+
+	/**
+	 * @param hashes Hashes that all came from the same algorithm. There must be at
+	 *               least one, to tell which.
+	 */
+	public static HashMatrix of(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) throw new IllegalArgumentException(
+				"Cannot tell the algorithm of an empty collection. Use new HashMatrix(alg) instead.");
+		HashMatrix m = new HashMatrix(hashes.iterator().next().getAlgorithm(), hashes.size());
+		m.addAll(hashes);
+		return m;
+	}
+
+	/************/
+	/* Building */
+	/************/
+
+	public void add(ImageHash h) {
+		if (h == null) throw new IllegalArgumentException("The hash cannot be null.");
+		if (!this.alg.algEquals(h.getAlgorithm())) throw new IllegalArgumentException("Algorithm " + h.getAlgName()
+				+ " is not comparable to the algorithm of this matrix, " + this.alg.algName() + ".");
+		if (this.size == this.sourceIds.length) {
+			int capacity = Math.max(16, this.size * 2);
+			this.words = Arrays.copyOf(this.words, capacity * this.wordCount);
+			this.sourceIds = Arrays.copyOf(this.sourceIds, capacity);
+		}
+		System.arraycopy(h.getWords(), 0, this.words, this.size * this.wordCount, this.wordCount);
+		this.sourceIds[this.size] = this.sources.intern(h.getSource());
+		this.size++;
+	}
+
+	public void addAll(Collection<? extends ImageHash> hashes) {
+		for (ImageHash h : hashes) {
+			this.add(h);
+		}
+	}
+
+	/***********/
+	/* Getters */
+	/***********/
+
+	public int size() {
+		return this.size;
+	}
+
+	public IHashAlgorithm getAlgorithm() {
+		return this.alg;
+	}
+
+	public int getWordCount() {
+		return this.wordCount;
+	}
+
+	// Returns the backing array. Row i starts at i * getWordCount(), and anything
+	// past size() rows is unused. Do not modify it.
+	public long[] getWords() {
+		return this.words;
+	}
+
+	// The id of the source in getSourceDictionary(), or SourceDictionary.NO_SOURCE
+	// for no source. Rows with equal sources have equal ids.
+	public int getSourceId(int i) {
+		this.checkRow(i);
+		return this.sourceIds[i];
+	}
+
+	public String getSource(int i) {
+		return this.sources.get(this.getSourceId(i));
+	}
+
+	public SourceDictionary getSourceDictionary() {
+		return this.sources;
+	}
+
+	public ImageHash get(int i) {
+		this.checkRow(i);
+		int offset = i * this.wordCount;
+		return new ImageHash(this.alg, Arrays.copyOfRange(this.words, offset, offset + this.wordCount),
+				this.sources.get(this.sourceIds[i]));
+	}
+
+	public List<ImageHash> toList() {
+		List<ImageHash> hashes = new ArrayList<>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			hashes.add(this.get(i));
+		}
+		return hashes;
+	}
+
+	private void checkRow(int i) {
+		if (i < 0 || i >= this.size)
+			throw new IndexOutOfBoundsException("Row " + i + " is out of bounds for a matrix of " + this.size + ".");
+	}
+
+	private void checkComparable(HashMatrix other) {
+		if (!this.alg.algEquals(other.alg)) throw new IllegalArgumentException("Algorithm " + other.alg.algName()
+				+ " is not comparable to the algorithm of this matrix, " + this.alg.algName() + ".");
+	}
+
+	/***********/
+	/* Kernels */
+	/***********/
+
+	public int distance(int i, int j) {
+		this.checkRow(i);
+		this.checkRow(j);
+		return HashUtils.hammingDistance(this.words, i * this.wordCount, this.words, j * this.wordCount,
+				this.wordCount);
+	}
+
+	/**
+	 * @return The distance from the query to every row, in order.
+	 */
+	public int[] distances(ImageHash query) {
+		if (query == null) throw new IllegalArgumentException("The query cannot be null.");
+		if (!this.alg.algEquals(query.getAlgorithm())) throw new IllegalArgumentException("Algorithm "
+				+ query.getAlgName() + " is not comparable to the algorithm of this matrix, " + this.alg.algName() + ".");
+		return this.distances(query.getWords(), 0);
+	}
+
+	/**
+	 * @return The distance from row i to every row, in order.
+	 */
+	public int[] distances(int i) {
+		this.checkRow(i);
+		return this.distances(this.words, i * this.wordCount);
+	}
+
+	private int[] distances(long[] q, int offset) {
+		int[] distances = new int[this.size];
+		for (int j = 0; j < this.size; j++) {
+			distances[j] = HashUtils.hammingDistance(q, offset, this.words, j * this.wordCount, this.wordCount);
+		}
+		return distances;
+	}
+
+	/**
+	 * Computes the distance between every row in [rowFrom, rowTo) of this matrix
+	 * and every row in [colFrom, colTo) of the other, into out, row major.
+	 */
+	public void distances(int rowFrom, int rowTo, HashMatrix other, int colFrom, int colTo, int[] out) {
+		this.checkComparable(other);
+		if (rowFrom < 0 || rowTo > this.size || rowFrom > rowTo || colFrom < 0 || colTo > other.size
+				|| colFrom > colTo)
+			throw new IndexOutOfBoundsException("The block is out of the bounds of the matrices.");
+		int cols = colTo - colFrom;
+		if (out.length < (rowTo - rowFrom) * cols)
+			throw new IllegalArgumentException("out is too small to hold the block.");
+
+		for (int i = rowFrom; i < rowTo; i++) {
+			int base = (i - rowFrom) * cols;
+			for (int j = colFrom; j < colTo; j++) {
+				out[base + j - colFrom] = HashUtils.hammingDistance(this.words, i * this.wordCount, other.words,
+						j * other.wordCount, this.wordCount);
+			}
+		}
+	}
+
+	/**
+	 * Calls the visitor for every pair of rows i < j within maxDistance of each
+	 * other, once each, from many threads at once and in no particular order.
+	 */
+	public void forEachPairWithin(int maxDistance, PairVisitor visitor) {
+		int blocks = (this.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		// Later row blocks have less to do, so they're handed out first to even
+		// things out.
+		IntStream.range(0, blocks).parallel().map(b -> blocks - 1 - b).forEach(rowBlock -> {
+			int rowFrom = rowBlock * BLOCK_SIZE, rowTo = Math.min(this.size, rowFrom + BLOCK_SIZE);
+			for (int colFrom = rowFrom; colFrom < this.size; colFrom += BLOCK_SIZE) {
+				int colTo = Math.min(this.size, colFrom + BLOCK_SIZE);
+				for (int i = rowFrom; i < rowTo; i++) {
+					for (int j = Math.max(colFrom, i + 1); j < colTo; j++) {
+						int d = HashUtils.hammingDistanceAtMost(this.words, i * this.wordCount, this.words,
+								j * this.wordCount, this.wordCount, maxDistance);
+						if (d <= maxDistance) visitor.visit(i, j, d);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Calls the visitor for every row i of this matrix and row j of the other
+	 * within maxDistance of each other, from many threads at once and in no
+	 * particular order.
+	 */
+	public void forEachPairWithin(HashMatrix other, int maxDistance, PairVisitor visitor) {
+		this.checkComparable(other);
+		int blocks = (this.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		IntStream.range(0, blocks).parallel().forEach(rowBlock -> {
+			int rowFrom = rowBlock * BLOCK_SIZE, rowTo = Math.min(this.size, rowFrom + BLOCK_SIZE);
+			for (int colFrom = 0; colFrom < other.size; colFrom += BLOCK_SIZE) {
+				int colTo = Math.min(other.size, colFrom + BLOCK_SIZE);
+				for (int i = rowFrom; i < rowTo; i++) {
+					for (int j = colFrom; j < colTo; j++) {
+						int d = HashUtils.hammingDistanceAtMost(this.words, i * this.wordCount, other.words,
+								j * other.wordCount, this.wordCount, maxDistance);
+						if (d <= maxDistance) visitor.visit(i, j, d);
+					}
+				}
+			}
+		});
+	}
+
+}
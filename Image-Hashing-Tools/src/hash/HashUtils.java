@@ -1,21 +1,87 @@
 package hash;
 
+import image.ResizeMode;
+
 public class HashUtils {
+
+	// Reads the optional ResizeMode that follows the side length in an algorithm's
+	// arguments. Missing means bilinear, which is what hashes were made with before
+	// the mode was configurable.
+	public static ResizeMode parseResizeMode(String[] arguments, int index) throws IllegalArgumentException {
+		if (arguments.length <= index) return ResizeMode.BILINEAR;
+		try {
+			return ResizeMode.valueOf(arguments[index].trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown resize mode: " + arguments[index].trim());
+		}
+	}
+
+	// Long.bitCount() is an intrinsic, and compiles down to a single popcnt
+	// instruction on any hardware that supports it.
 	public static int hammingDistance(long[] bits1, long[] bits2) {
 		if (bits1.length != bits2.length) throw new IllegalArgumentException(
 				"Bit arrays are not the same length. Got: " + bits1.length + " and " + bits2.length + ".");
-		long b;
 		int distance = 0;
 		for (int idx = 0; idx < bits1.length; idx++) {
-			b = bits1[idx] ^ bits2[idx];
-			b -= (b >> 1) & 0x5555555555555555L;
-			b = (b & 0x3333333333333333L) + ((b >> 2) & 0x3333333333333333L);
-			b = (b + (b >> 4)) & 0x0f0f0f0f0f0f0f0fL;
-			distance += (b * 0x0101010101010101L) >> 56;
+			distance += Long.bitCount(bits1[idx] ^ bits2[idx]);
+		}
+		return distance;
+	}
+
+	// Compares the backing words of the two hashes directly, without copying them.
+	public static int hammingDistance(ImageHash h1, ImageHash h2) {
+		return hammingDistance(h1.getWords(), h2.getWords());
+	}
+
+	// Stops scanning as soon as the running distance exceeds maxBits. Returns the
+	// exact distance if it is at most maxBits, and otherwise some value greater
+	// than maxBits.
+	public static int hammingDistanceAtMost(long[] bits1, long[] bits2, int maxBits) {
+		if (bits1.length != bits2.length) throw new IllegalArgumentException(
+				"Bit arrays are not the same length. Got: " + bits1.length + " and " + bits2.length + ".");
+		int distance = 0;
+		for (int idx = 0; idx < bits1.length; idx++) {
+			distance += Long.bitCount(bits1[idx] ^ bits2[idx]);
+			if (distance > maxBits) return distance;
 		}
 		return distance;
 	}
 
+	public static int hammingDistanceAtMost(ImageHash h1, ImageHash h2, int maxBits) {
+		return hammingDistanceAtMost(h1.getWords(), h2.getWords(), maxBits);
+	}
+
+	// Compares wordCount words of each array, starting at the given offsets. For
+	// indexes that keep the words of many hashes in one flat array.
+	public static int hammingDistance(long[] bits1, int offset1, long[] bits2, int offset2, int wordCount) {
+		int distance = 0;
+		for (int idx = 0; idx < wordCount; idx++) {
+			distance += Long.bitCount(bits1[offset1 + idx] ^ bits2[offset2 + idx]);
+		}
+		return distance;
+	}
+
+	public static int hammingDistanceAtMost(long[] bits1, int offset1, long[] bits2, int offset2, int wordCount,
+			int maxBits) {
+		int distance = 0;
+		for (int idx = 0; idx < wordCount; idx++) {
+			distance += Long.bitCount(bits1[offset1 + idx] ^ bits2[offset2 + idx]);
+			if (distance > maxBits) return distance;
+		}
+		return distance;
+	}
+
+	// Indexed by MatchMode#ordinal(). Hash algorithms compute this once when
+	// they're constructed, rather than every time matches() is called.
+	public static int[] matchThresholds(int hashLength) {
+		MatchMode[] modes = MatchMode.values();
+		int[] thresholds = new int[modes.length];
+		for (MatchMode mode : modes) {
+			thresholds[mode.ordinal()] = mode.maxDistance(hashLength);
+		}
+		return thresholds;
+	}
+
 	public static double euclideanF32Distance(float[] bits1, float[] bits2) {
 		if (bits1.length != bits2.length) throw new IllegalArgumentException(
 				"Bit arrays are not the same length. Got: " + bits1.length + " and " + bits2.length + ".");
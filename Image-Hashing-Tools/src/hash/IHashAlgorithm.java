@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.net.URL;
 
 import image.IImage;
+import image.ResizeMode;
 import image.implementations.SourcedImage;
 import utils.ImageUtils;
 
@@ -37,6 +38,14 @@ public interface IHashAlgorithm {
 
 	abstract double distance(ImageHash h1, ImageHash h2);
 
+	// Returns the exact distance if it is at most maxBits. Otherwise, returns some
+	// value greater than maxBits, and may stop comparing early to do so.
+	abstract int distanceAtMost(ImageHash h1, ImageHash h2, int maxBits);
+
+	// The largest distance at which two hashes still match under the given mode.
+	// If mode is null, uses this algorithm's MatchMode.
+	abstract int matchThreshold(MatchMode mode);
+
 	abstract boolean algEquals(IHashAlgorithm o);
 
 	default boolean canCompare(ImageHash hash1, ImageHash hash2) {
@@ -45,6 +54,18 @@ public interface IHashAlgorithm {
 
 	abstract boolean matches(ImageHash hash1, ImageHash hash2, MatchMode mode);
 
+	// Computes the distance once and returns the tightest MatchMode that the two
+	// hashes match under, or null if they don't match under any of them. The pair
+	// also matches under every looser mode than the one returned.
+	default MatchMode tightestMatch(ImageHash hash1, ImageHash hash2) {
+		int distance = this.distanceAtMost(hash1, hash2, this.matchThreshold(MatchMode.SLOPPY));
+		if (distance <= this.matchThreshold(MatchMode.EXACT)) return MatchMode.EXACT;
+		if (distance <= this.matchThreshold(MatchMode.STRICT)) return MatchMode.STRICT;
+		if (distance <= this.matchThreshold(MatchMode.NORMAL)) return MatchMode.NORMAL;
+		if (distance <= this.matchThreshold(MatchMode.SLOPPY)) return MatchMode.SLOPPY;
+		return null;
+	}
+
 	// Implementations must all deal with every type of IImage, whether it has an
 	// alpha channel or not, or is a SourcedImage.
 	abstract ImageHash hash(IImage<?> img);
@@ -52,6 +73,28 @@ public interface IHashAlgorithm {
 	// Convert to the desired type and then call the other hash method
 	abstract ImageHash hash(BufferedImage img);
 
+	// Algorithms should override this and draw their thumbnails from the context,
+	// so that hashing one image with several algorithms only resizes it once per
+	// size.
+	default ImageHash hash(PreprocessingContext context) {
+		return this.hash(context.getImage());
+	}
+
+	// How the algorithm shrinks images into the thumbnail it hashes. Hashes made
+	// with different modes are not comparable, so algorithms that let it be chosen
+	// should make it part of their arguments and of algEquals().
+	default ResizeMode getResizeMode() {
+		return ResizeMode.BILINEAR;
+	}
+
+	// The smallest side length that images need to be decoded at for this
+	// algorithm to hash them well. Loaders can use it to decode large images at
+	// reduced resolution. Somewhat more than the thumbnail, so that the resize
+	// still has pixels to average over. Zero or less means full resolution.
+	default int getDecodeSideLength() {
+		return 0;
+	}
+
 	abstract void setMatchMode(MatchMode mode);
 
 	abstract MatchMode getMatchMode();
@@ -5,7 +5,6 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
 
@@ -20,10 +19,15 @@ public class ImageHash implements Serializable {
 	/********************/
 
 	// For Java serialization
-	private static final long serialVersionUID = -1248134817737622671L;
+	private static final long serialVersionUID = 3090570167733164962L;
 
-	// The hash itself
-	private final byte[] bits;
+	// The hash itself, packed big-endian into 64 bit words. The first bit of the
+	// hash is the most significant bit of the first word, and any bits past
+	// getLength() in the last word are zero, which the constructors enforce.
+	// Equality, hamming distance, and the stores that key on whole words all rely
+	// on that. Keeping the words around natively means that comparing two hashes
+	// never has to allocate.
+	private final long[] words;
 
 	// @nof
 	// This field is stored as one string for memory reasons. It should be laid out
@@ -37,10 +41,11 @@ public class ImageHash implements Serializable {
 	// @dof
 	private final IHashAlgorithm creator;
 
-	// Where the Image came from, if it was a SourcedImage. Otherwise null. Note
-	// that null appends as "null" with StringBuilder in toString(), which
+	// Where the Image came from, if it was a SourcedImage. Otherwise null. Every
+	// hash of a SourcedImage holds the image's own String, so they share one copy.
+	// Note that null appends as "null" with StringBuilder in toString(), which
 	// effectively serializes hashes.
-	private String source = null;
+	private final String source;
 
 	// Assume that the creator has been implemented correctly, and that the
 	// hashInformation is laid out properly. But, for String constructors, we'll
@@ -51,28 +56,56 @@ public class ImageHash implements Serializable {
 	/****************/
 
 	public ImageHash(IHashAlgorithm creator, byte[] bits) throws IllegalArgumentException {
-		PixelUtils.assertNotNull(new String[] { "creator", "bits" }, creator, bits);
-		// + (bits.length % 8) is to resolve the buffer cast issue
-		this.bits = Arrays.copyOf(bits, bits.length + (bits.length % 8));
-		this.creator = creator;
-		// Source remains null
+		this(creator, bits, null);
 	}
 
 	public ImageHash(IHashAlgorithm creator, byte[] bits, String source) throws IllegalArgumentException {
-		PixelUtils.assertNotNull(new String[] { "creator", "bits" }, creator, bits);
-		// + (bits.length % 8) is to resolve the buffer cast issue
-		this.bits = Arrays.copyOf(bits, bits.length + (bits.length % 8));
+		this(creator, packWords(creator, bits), source);
+	}
+
+	// The words array is not copied. It becomes the backing array, and any bits
+	// in it past the length of the hash are cleared.
+	public ImageHash(IHashAlgorithm creator, long[] words, String source) throws IllegalArgumentException {
+		PixelUtils.assertNotNull(new String[] { "creator", "words" }, creator, words);
+		int length = creator.getHashLength();
+		if (words.length != wordCount(length)) {
+			throw new IllegalArgumentException("Expected " + wordCount(length) + " words for a hash of length "
+					+ length + ", but got " + words.length + ".");
+		}
+		if (words.length != 0) words[words.length - 1] &= -1L << (64 * words.length - length);
+		this.words = words;
 		this.creator = creator;
 		this.source = source;
 	}
 
 	// Copy constructor
 	public ImageHash(ImageHash h) {
-		this.bits = h.bits;
+		this.words = h.words;
 		this.creator = h.creator;
 		this.source = h.source;
 	}
 
+	// The number of longs required to hold a hash of the given number of bits.
+	public static int wordCount(int hashLength) {
+		return (hashLength + 63) / 64;
+	}
+
+	private static long[] packWords(IHashAlgorithm creator, byte[] bits) {
+		PixelUtils.assertNotNull(new String[] { "creator", "bits" }, creator, bits);
+		return packWords(bits, wordCount(creator.getHashLength()));
+	}
+
+	// Packs big-endian bytes into words, zero filling or truncating to the number
+	// of words requested.
+	private static long[] packWords(byte[] bytes, int wordCount) {
+		long[] words = new long[wordCount];
+		int byteCount = Math.min(bytes.length, wordCount * 8);
+		for (int i = 0; i < byteCount; i++) {
+			words[i >> 3] |= (bytes[i] & 0xffL) << (56 - ((i & 7) << 3));
+		}
+		return words;
+	}
+
 	/*****************/
 	/* Serialization */
 	/*****************/
@@ -84,89 +117,13 @@ public class ImageHash implements Serializable {
 		// @dof
 	}
 
-	public static ImageHash fromString(String imageHash) throws IllegalArgumentException, ClassNotFoundException {
-		// Parse for arguments
-		// hexBits,algName,hashLength,comparisonType,source
-
-		String bits = null, algName = null, algArgs = null, source = null;
-		String[] split = imageHash.split(",");
-		// bits,algName,arg║arg║arg...,source
-
-		if (split.length < 4) {
-			throw new IllegalArgumentException(
-					"Failed to parse an ImageHash from the given string. Expected a String in the form: "
-							+ "bits,algName,args,source but instead got " + imageHash + " which only has "
-							+ split.length + " parts.");
-		} else if (split.length == 4) {
-			bits = split[0];
-			algName = split[1];
-			algArgs = split[2];
-			source = split[3];
-			// If source is missing, just leave it null.
-		} else if (split.length > 4) {
-			bits = split[0];
-			algName = split[1];
-			algArgs = split[2];
-			// Join the trailing pieces of the split onto the source. This fixes urls having
-			// commas in them.
-			source = split[3];
-			for (int i = 4; i < split.length; i++) {
-				source += ',' + split[i];
-			}
-		}
-
-		int hexCharCount = bits.length();
-		byte[] bytes = new byte[(hexCharCount / 2) + (hexCharCount % 2)];
-
-		int currentByte = 0; // For packing
-		boolean firstNibble = true;
-		for (char hexChar : (bits = bits.toUpperCase()).toCharArray()) {
-			// Valid Range: 48-57, 65-70
-			byte nibble = hexCharToByte(hexChar);
-			if (firstNibble) {
-				bytes[currentByte] = (byte) (nibble << 4);
-				firstNibble = false;
-			} else {
-				bytes[currentByte] = (byte) (bytes[currentByte] | nibble);
-				currentByte++;
-				firstNibble = true;
-			}
-		}
-
-		// Get creator, throws ClassNotFound if can't find. (algName/algArgs are invalid
-		// or algorithm hasn't been loaded)
-		IHashAlgorithm creator = AlgLoader.loadAlgorithm(algName, algArgs);
-
-		// Resize the bytes we parsed into a buffer of the size the creator is expecting.
-		int len = creator.getHashLength();
-		len = len + (len % 8);
-		if (len < bytes.length) {
-			throw new IllegalArgumentException("Did not read enough bits to create a hash. Expected " + len
-					+ " bytes of data, corresponding to " + len * 2 + " characters. Got : " + bits.toUpperCase()
-					+ ", only " + bits.length() + " characters.");
-		}
-		bytes = Arrays.copyOfRange(bytes, 0, len);
-
-		// There's a similar approach to error checking taken elsewhere. We throw
-		// IllegalArgumentException bit packing above if the bits are invalid, and we
-		// just trust that the user knows what to do with the Source.
-
-		return new ImageHash(creator, bytes, source);
-	}
+	// Parses with a parser per thread, so that reading many hashes of one algorithm
+	// only loads it once per thread. See ImageHashParser for what's accepted.
+	private static final ThreadLocal<ImageHashParser> parsers = ThreadLocal.withInitial(ImageHashParser::new);
 
-	private static byte hexCharToByte(char hexChar) throws IllegalArgumentException {
-		int hexInt = hexChar - 48;
-		// Shift to 0-9, 17-22
-		if (hexInt < 0x0) {
-			throw new IllegalArgumentException("hexBits contain non-hex characters.");
-		} else if (hexInt > 0x9) {
-			// Collapse lower range so 0-9, 10-15 for hex integer
-			hexInt -= 7;
-			if (hexInt > 0xF) {
-				throw new IllegalArgumentException("Serialized hash contains non-hex characters.");
-			}
-		}
-		return (byte) hexInt;
+	public static ImageHash fromString(String imageHash) throws IllegalArgumentException, ClassNotFoundException {
+		// bits,algName,args,source
+		return parsers.get().parse(imageHash);
 	}
 
 	/***********/
@@ -174,11 +131,22 @@ public class ImageHash implements Serializable {
 	/***********/
 
 	public BitSet getBitSet() {
-		return BitSet.valueOf(this.bits);
+		return BitSet.valueOf(this.getBits());
 	}
 
+	// Derived from the backing words, so this allocates. Prefer getWords() when
+	// comparing hashes.
 	public byte[] getBits() {
-		return this.bits;
+		byte[] bytes = new byte[this.words.length * 8];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (this.words[i >> 3] >>> (56 - ((i & 7) << 3)));
+		}
+		return bytes;
+	}
+
+	// Returns the backing array. Do not modify it.
+	public long[] getWords() {
+		return this.words;
 	}
 
 	public IHashAlgorithm getAlgorithm() {
@@ -200,22 +168,30 @@ public class ImageHash implements Serializable {
 		return this.source;
 	}
 
+	// Whether both hashes have the same source, and it isn't null. Hashes of the
+	// same SourcedImage share its String, so this is usually just a reference
+	// comparison.
+	public boolean sameSource(ImageHash h) {
+		return this.source != null && (this.source == h.source || this.source.equals(h.source));
+	}
+
 	public SourcedImage loadFromSource() throws IOException {
-		if (this.source == null || this.source.equals("null"))
+		String source = this.source;
+		if (source == null || source.equals("null"))
 			throw new IOException("This image has no source.");
 
-		boolean isURL = ImageUtils.validURL(this.source);
+		boolean isURL = ImageUtils.validURL(source);
 
 		if (isURL) {
 			try {
-				return new SourcedImage(new URL(this.source));
+				return new SourcedImage(new URL(source));
 			} catch (MalformedURLException e) { // We already tested this, it can be ignored.
 			}
 		} else {
-			return new SourcedImage(new File(this.source));
+			return new SourcedImage(new File(source));
 		}
 
-		throw new IOException("Was not able to load " + (isURL ? "url" : "file") + ": " + this.source);
+		throw new IOException("Was not able to load " + (isURL ? "url" : "file") + ": " + source);
 	}
 
 	public double distance(ImageHash hash) throws IllegalArgumentException {
@@ -224,25 +200,30 @@ public class ImageHash implements Serializable {
 
 	public int[] bitsToIntArray() {
 		int[] ints = new int[(this.getLength() + 31) / 32];
-		ByteBuffer.wrap(this.bits).asIntBuffer().get(ints);
+		for (int i = 0; i < ints.length; i++) {
+			ints[i] = (int) (this.words[i >> 1] >>> ((i & 1) == 0 ? 32 : 0));
+		}
 		return ints;
 	}
 
 	public long[] bitsToLongArray() {
-		long[] longs = new long[(this.getLength() + 63) / 64];
-		ByteBuffer.wrap(this.bits).asLongBuffer().get(longs);
-		return longs;
+		return Arrays.copyOf(this.words, this.words.length);
 	}
 
 	public float[] bitsToFloatArray() {
-		float[] floats = new float[(this.getLength() + 31) / 32];
-		ByteBuffer.wrap(this.bits).asFloatBuffer().get(floats);
+		int[] ints = this.bitsToIntArray();
+		float[] floats = new float[ints.length];
+		for (int i = 0; i < ints.length; i++) {
+			floats[i] = Float.intBitsToFloat(ints[i]);
+		}
 		return floats;
 	}
 
 	public double[] bitsToDoubleArray() {
-		double[] doubles = new double[(this.getLength() + 63) / 64];
-		ByteBuffer.wrap(this.bits).asDoubleBuffer().get(doubles);
+		double[] doubles = new double[this.words.length];
+		for (int i = 0; i < doubles.length; i++) {
+			doubles[i] = Double.longBitsToDouble(this.words[i]);
+		}
 		return doubles;
 	}
 
@@ -251,13 +232,9 @@ public class ImageHash implements Serializable {
 
 	// Returns the contents of this hash's bits in hexadecimal.
 	private String hexHash() {
-		char[] encodedChars = new char[this.bits.length * 2];
-		for (int i = 0; i < this.bits.length; i++) {
-			int b = this.bits[i];
-			char c1 = intToHexChar[(b & 0xf0) >> 4];
-			char c2 = intToHexChar[(b & 0x0f)];
-			encodedChars[i * 2] = c1;
-			encodedChars[i * 2 + 1] = c2;
+		char[] encodedChars = new char[this.words.length * 16];
+		for (int i = 0; i < encodedChars.length; i++) {
+			encodedChars[i] = intToHexChar[(int) (this.words[i >> 4] >>> (60 - ((i & 15) << 2))) & 0xf];
 		}
 		return new String(encodedChars);
 	}
@@ -271,13 +248,13 @@ public class ImageHash implements Serializable {
 		ImageHash o = (ImageHash) h;
 		String thatSauce = o.source == null ? "null" : o.source;
 		String thisSauce = this.source == null ? "null" : this.source;
-		return Arrays.equals(this.bits, o.bits) && this.creator.canCompare(this, o) && thisSauce.equals(thatSauce);
+		return Arrays.equals(this.words, o.words) && this.creator.canCompare(this, o) && thisSauce.equals(thatSauce);
 	}
 
 	@Override
 	public int hashCode() {
 		int saucehash = this.source == null ? "null".hashCode() : this.source.hashCode();
-		int bithash = Arrays.hashCode(this.bits);
+		int bithash = Arrays.hashCode(this.words);
 		int creatorhash = this.creator.hashCode();
 		int x = saucehash ^ bithash ^ creatorhash;
 		return (x >> 2) ^ x ^ (x << 2);
@@ -290,7 +267,7 @@ public class ImageHash implements Serializable {
 		if (!(h instanceof ImageHash))
 			return false;
 		ImageHash o = (ImageHash) h;
-		return Arrays.equals(this.bits, o.bits) && this.creator.canCompare(this, o);
+		return Arrays.equals(this.words, o.words) && this.creator.canCompare(this, o);
 	}
 
 	// throws when hashes are uncomparable
@@ -303,4 +280,9 @@ public class ImageHash implements Serializable {
 		return this.creator.matches(this, h, mode);
 	}
 
+	// throws when hashes are uncomparable, returns null if they don't match.
+	public MatchMode tightestMatch(ImageHash h) throws IllegalArgumentException {
+		return this.creator.tightestMatch(this, h);
+	}
+
 }
@@ -0,0 +1,305 @@
+package hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Parses hashes in the form written by {@link ImageHash#toString()},
+ * bits,algName,args,source, without splitting the line up first. The fields
+ * are found by scanning for commas, the hex is decoded straight into the words
+ * of the hash, and the only thing copied out of the line is the source.
+ *
+ * Text files of hashes nearly always hold a single algorithm, so each parser
+ * remembers the last one it loaded, and only goes to {@link AlgLoader} when the
+ * name or arguments change.
+ *
+ * Parses exactly what {@link ImageHash#fromString(String)} always has. The
+ * source is everything after the third comma, commas and all, except for any
+ * trailing commas, which String.split() used to drop. A source of "null" comes
+ * back as "null". Lower case hex is fine. Any padding past the words of the
+ * hash is ignored, and so are padding bits within the last word, which the
+ * ImageHash constructor clears.
+ *
+ * A parser is not safe to use from many threads at once. Use one per thread.
+ *
+ * @author apaz-cli
+ */
+public class ImageHashParser {
+
+	// How many bytes of a file each thread of readAll() parses at once.
+	public static final int CHUNK_SIZE = 1 << 24;
+
+	// Hex character to its value, or -1.
+	private static final byte[] HEX = new byte[128];
+	static {
+		Arrays.fill(HEX, (byte) -1);
+		for (int i = 0; i < 10; i++) HEX['0' + i] = (byte) i;
+		for (int i = 0; i < 6; i++) {
+			HEX['A' + i] = (byte) (10 + i);
+			HEX['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	private String lastName = null, lastArgs = null;
+	private IHashAlgorithm lastAlg = null;
+	private int lastGeneration = -1;
+
+	private final ByteView view = new ByteView();
+
+	/**
+	 * @throws IllegalArgumentException If the line isn't a hash.
+	 * @throws ClassNotFoundException   If the algorithm of the hash hasn't been
+	 *                                  registered with AlgLoader.
+	 */
+	public ImageHash parse(CharSequence line) throws IllegalArgumentException, ClassNotFoundException {
+		return this.parse(line, 0, line.length());
+	}
+
+	// Parses the characters in [from, to).
+	public ImageHash parse(CharSequence text, int from, int to)
+			throws IllegalArgumentException, ClassNotFoundException {
+		if (from < 0 || to > text.length() || from > to) throw new IndexOutOfBoundsException(
+				"[" + from + ", " + to + ") is out of bounds for a sequence of length " + text.length() + ".");
+		return this.parseRange(text, from, to);
+	}
+
+	/**
+	 * Parses the bytes in [from, to) of the buffer, without moving its position.
+	 * The source is decoded with the default charset, like FileReader does, which
+	 * has to be one that leaves ASCII as it is.
+	 */
+	public ImageHash parse(ByteBuffer bytes, int from, int to) throws IllegalArgumentException, ClassNotFoundException {
+		if (from < 0 || to > bytes.limit() || from > to) throw new IndexOutOfBoundsException(
+				"[" + from + ", " + to + ") is out of bounds for a buffer with limit " + bytes.limit() + ".");
+		this.view.bytes = bytes;
+		try {
+			return this.parseRange(this.view, from, to);
+		} finally {
+			this.view.bytes = null;
+		}
+	}
+
+	private ImageHash parseRange(CharSequence text, int from, int to) throws ClassNotFoundException {
+		// split(",") dropped trailing empty strings, so trailing commas never made it
+		// into the source.
+		int end = to;
+		while (end > from && text.charAt(end - 1) == ',') end--;
+
+		int c1 = indexOfComma(text, from, end);
+		int c2 = c1 < 0 ? -1 : indexOfComma(text, c1 + 1, end);
+		int c3 = c2 < 0 ? -1 : indexOfComma(text, c2 + 1, end);
+		if (c3 < 0) {
+			int parts = end == from ? (to == from ? 1 : 0) : (c1 < 0 ? 1 : c2 < 0 ? 2 : 3);
+			throw new IllegalArgumentException(
+					"Failed to parse an ImageHash from the given string. Expected a String in the form: "
+							+ "bits,algName,args,source but instead got " + text.subSequence(from, to)
+							+ " which only has " + parts + " parts.");
+		}
+
+		IHashAlgorithm creator = this.algorithm(text, c1 + 1, c2, c2 + 1, c3);
+
+		// Older versions of this library padded the hex string by a varying amount, so
+		// accept anything that covers the hash, and ignore any trailing padding.
+		int len = creator.getHashLength();
+		int hexCharCount = c1 - from;
+		if (hexCharCount < (len + 3) / 4) {
+			throw new IllegalArgumentException("Did not read enough bits to create a hash. Expected " + len
+					+ " bits of data, corresponding to " + ((len + 3) / 4) + " characters. Got : "
+					+ text.subSequence(from, c1) + ", only " + hexCharCount + " characters.");
+		}
+
+		long[] words = new long[ImageHash.wordCount(len)];
+		int usedChars = Math.min(hexCharCount, words.length * 16);
+		for (int i = 0; i < usedChars; i++) {
+			char c = text.charAt(from + i);
+			int nibble = c < 128 ? HEX[c] : -1;
+			if (nibble < 0) throw new IllegalArgumentException("Serialized hash contains non-hex characters.");
+			words[i >> 4] |= (long) nibble << (60 - ((i & 15) << 2));
+		}
+
+		return new ImageHash(creator, words, text.subSequence(c3 + 1, end).toString());
+	}
+
+	private IHashAlgorithm algorithm(CharSequence text, int nameFrom, int nameTo, int argsFrom, int argsTo)
+			throws ClassNotFoundException {
+		int generation = AlgLoader.generation();
+		if (generation == this.lastGeneration && regionEquals(this.lastName, text, nameFrom, nameTo)
+				&& regionEquals(this.lastArgs, text, argsFrom, argsTo))
+			return this.lastAlg;
+
+		String name = text.subSequence(nameFrom, nameTo).toString();
+		String args = text.subSequence(argsFrom, argsTo).toString();
+		IHashAlgorithm alg = AlgLoader.loadAlgorithm(name, args);
+		this.lastName = name;
+		this.lastArgs = args;
+		this.lastAlg = alg;
+		this.lastGeneration = generation;
+		return alg;
+	}
+
+	private static int indexOfComma(CharSequence text, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (text.charAt(i) == ',') return i;
+		}
+		return -1;
+	}
+
+	private static boolean regionEquals(String s, CharSequence text, int from, int to) {
+		if (s == null || s.length() != to - from) return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) != text.charAt(from + i)) return false;
+		}
+		return true;
+	}
+
+	/*********/
+	/* Files */
+	/*********/
+
+	/**
+	 * Reads every hash in a text file of them, one per line, as written by
+	 * {@link hashstore.LinearHashStore}. The file is mapped, cut into chunks of
+	 * about CHUNK_SIZE bytes at line breaks, and the chunks are parsed in
+	 * parallel. Blank lines are skipped.
+	 *
+	 * @return The hashes, in the order they're in in the file.
+	 * @throws IllegalArgumentException If a line isn't a hash.
+	 * @throws ClassNotFoundException   If an algorithm hasn't been registered with
+	 *                                  AlgLoader.
+	 */
+	public static List<ImageHash> readAll(File textFile)
+			throws IOException, IllegalArgumentException, ClassNotFoundException {
+		return readAll(textFile, CHUNK_SIZE);
+	}
+
+	static List<ImageHash> readAll(File textFile, int chunkSize)
+			throws IOException, IllegalArgumentException, ClassNotFoundException {
+		try (FileChannel channel = FileChannel.open(textFile.toPath(), StandardOpenOption.READ)) {
+			List<long[]> chunks = chunks(channel, chunkSize);
+			List<List<ImageHash>> parsed;
+			try {
+				parsed = chunks.parallelStream().map(chunk -> {
+					try {
+						return parseChunk(channel, chunk[0], chunk[1]);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					} catch (ClassNotFoundException e) {
+						throw new AlgorithmNotFound(e);
+					}
+				}).collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} catch (AlgorithmNotFound e) {
+				throw (ClassNotFoundException) e.getCause();
+			}
+
+			int total = 0;
+			for (List<ImageHash> l : parsed) total += l.size();
+			List<ImageHash> all = new ArrayList<>(total);
+			for (List<ImageHash> l : parsed) all.addAll(l);
+			return all;
+		}
+	}
+
+	// The [start, end) of each chunk, each ending just after a newline or at the
+	// end of the file.
+	private static List<long[]> chunks(FileChannel channel, int chunkSize) throws IOException {
+		long size = channel.size();
+		List<long[]> chunks = new ArrayList<>();
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long start = 0;
+		while (start < size) {
+			long end = start + chunkSize;
+			if (end >= size) end = size;
+			else {
+				// Move the end up to just past the next newline.
+				boolean found = false;
+				while (!found && end < size) {
+					probe.clear();
+					int read = channel.read(probe, end);
+					if (read <= 0) break;
+					for (int i = 0; i < read; i++) {
+						if (probe.get(i) == '\n') {
+							end += i + 1;
+							found = true;
+							break;
+						}
+					}
+					if (!found) end += read;
+				}
+				end = Math.min(end, size);
+			}
+			chunks.add(new long[] { start, end });
+			start = end;
+		}
+		return chunks;
+	}
+
+	private static List<ImageHash> parseChunk(FileChannel channel, long start, long end)
+			throws IOException, ClassNotFoundException {
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		ImageHashParser parser = new ImageHashParser();
+		List<ImageHash> hashes = new ArrayList<>();
+		int limit = bytes.limit(), lineStart = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i < limit && bytes.get(i) != '\n') continue;
+			int lineEnd = i;
+			if (lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r') lineEnd--;
+			if (lineEnd > lineStart) hashes.add(parser.parse(bytes, lineStart, lineEnd));
+			lineStart = i + 1;
+		}
+		return hashes;
+	}
+
+	// Carries a ClassNotFoundException out of a parallel stream.
+	private static class AlgorithmNotFound extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		AlgorithmNotFound(ClassNotFoundException cause) {
+			super(cause);
+		}
+	}
+
+	// The bytes of a buffer as chars, so the same code parses both. Only ASCII
+	// matters until the source, and subSequence() decodes the bytes properly, so
+	// its indices are byte offsets.
+	private static class ByteView implements CharSequence {
+		private static final Charset charset = Charset.defaultCharset();
+
+		ByteBuffer bytes;
+
+		@Override
+		public int length() {
+			return this.bytes.limit();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (this.bytes.get(index) & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			byte[] b = new byte[end - start];
+			// The absolute get(int, byte[]) is only in Java 13 and later.
+			this.bytes.duplicate().position(start).get(b);
+			return new String(b, charset);
+		}
+
+		@Override
+		public String toString() {
+			return this.subSequence(0, this.length()).toString();
+		}
+	}
+
+}
@@ -1,5 +1,23 @@
 package hash;
 
+// Declared from loosest to tightest, so a pair that matches under one mode also
+// matches under every mode that compares less than it.
 public enum MatchMode {
-	SLOPPY, NORMAL, STRICT, EXACT
+	SLOPPY(8), NORMAL(5), STRICT(2), EXACT(0);
+
+	// Two hashes match under this mode when fewer than this many bits out of every
+	// 64 differ. EXACT is the exception, and requires that no bits differ.
+	private final int bitsPer64;
+
+	private MatchMode(int bitsPer64) {
+		this.bitsPer64 = bitsPer64;
+	}
+
+	// The largest Hamming distance that still counts as a match for a hash of the
+	// given length. Worked out in integers, so there's no floating point rounding
+	// to worry about.
+	public int maxDistance(int hashLength) {
+		if (this == EXACT) return 0;
+		return (int) ((this.bitsPer64 * (long) hashLength + 63) / 64) - 1;
+	}
 }
@@ -0,0 +1,71 @@
+package hash;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import image.IImage;
+import image.ResizeMode;
+import image.implementations.GreyscaleImage;
+import image.implementations.SourcedImage;
+
+/**
+ * Holds the work that hash algorithms do to an image before they hash it, so
+ * that hashing one image with many algorithms only pays for it once. Each
+ * greyscale thumbnail is computed the first time it's asked for, and then
+ * reused by every algorithm that wants the same size and ResizeMode.
+ * 
+ * Every thumbnail is resized from the original image, in one pass that also
+ * converts it to greyscale, exactly as the algorithms do on their own. So hashes
+ * made through a context are identical to hashes made without one. That does
+ * mean each distinct side length costs one pass over the full image. Building
+ * the smaller thumbnails from the larger ones would save those passes, but it
+ * would change the pixels, and so the hashes. Thumbnails made with different
+ * ResizeModes are kept apart.
+ * 
+ * A context belongs to a single image. Don't modify what it hands out, as other
+ * algorithms will be handed the same objects.
+ * 
+ * @author apaz-cli
+ */
+public class PreprocessingContext {
+
+	private final IImage<?> img;
+	private final String source;
+
+	// Resize mode to side length to thumbnail
+	private final Map<ResizeMode, Map<Integer, GreyscaleImage>> thumbnails = new EnumMap<>(ResizeMode.class);
+
+	public PreprocessingContext(IImage<?> img) {
+		if (img == null) throw new IllegalArgumentException("The image cannot be null.");
+		this.img = img;
+		this.source = img instanceof SourcedImage ? ((SourcedImage) img).getSource() : null;
+	}
+
+	public IImage<?> getImage() { return this.img; }
+
+	// The source of the image if it was a SourcedImage, otherwise null.
+	public String getSource() { return this.source; }
+
+	// The image resized bilinearly to sideLength x sideLength and converted to
+	// greyscale.
+	public GreyscaleImage getGreyscaleThumbnail(int sideLength) {
+		return this.getGreyscaleThumbnail(sideLength, ResizeMode.BILINEAR);
+	}
+
+	// The image resized to sideLength x sideLength with the given mode and
+	// converted to greyscale.
+	public synchronized GreyscaleImage getGreyscaleThumbnail(int sideLength, ResizeMode mode) {
+		if (mode == null) throw new IllegalArgumentException("The resize mode cannot be null.");
+		Map<Integer, GreyscaleImage> sized = this.thumbnails.computeIfAbsent(mode, m -> new HashMap<>());
+		GreyscaleImage thumbnail = sized.get(sideLength);
+		if (thumbnail == null) {
+			// Resizing before converting to greyscale is faster, and is what the
+			// algorithms have always done. The image does both in one pass.
+			thumbnail = this.img.resizeGreyscale(sideLength, sideLength, mode);
+			sized.put(sideLength, thumbnail);
+		}
+		return thumbnail;
+	}
+
+}
@@ -8,10 +8,11 @@ import hash.HashUtils;
 import hash.IHashAlgorithm;
 import hash.ImageHash;
 import hash.MatchMode;
+import hash.PreprocessingContext;
 import image.IImage;
 import image.PixelUtils;
+import image.ResizeMode;
 import image.implementations.GreyscaleImage;
-import image.implementations.SourcedImage;
 
 public class DifferenceHash implements IHashAlgorithm {
 
@@ -20,10 +21,15 @@ public class DifferenceHash implements IHashAlgorithm {
 	}
 
 	public DifferenceHash() {
-		this.sideLength = 16;
+		this(16);
 	}
 
 	public DifferenceHash(int sideLength) throws ArithmeticException {
+		this(sideLength, ResizeMode.BILINEAR);
+	}
+
+	public DifferenceHash(int sideLength, ResizeMode resizeMode) throws ArithmeticException {
+		if (resizeMode == null) throw new IllegalArgumentException("The resize mode cannot be null.");
 		if (sideLength < 1) throw new IllegalArgumentException("Side length is too small.");
 		try {
 			PixelUtils.safeSquare(sideLength);
@@ -31,13 +37,19 @@ public class DifferenceHash implements IHashAlgorithm {
 			throw new IllegalArgumentException(e);
 		}
 		this.sideLength = sideLength;
+		this.resizeMode = resizeMode;
+		this.thresholds = HashUtils.matchThresholds(this.getHashLength());
 	}
 
 	public DifferenceHash(int sideLength, MatchMode mode) {
+		this(sideLength);
 		this.setMatchMode(mode);
 	}
 
 	private int sideLength;
+	private ResizeMode resizeMode;
+	// Indexed by MatchMode#ordinal()
+	private int[] thresholds;
 
 	private MatchMode mm = MatchMode.NORMAL;
 
@@ -49,6 +61,12 @@ public class DifferenceHash implements IHashAlgorithm {
 	@Override
 	public MatchMode getMatchMode() { return mm; }
 
+	@Override
+	public ResizeMode getResizeMode() { return this.resizeMode; }
+
+	@Override
+	public int getDecodeSideLength() { return this.sideLength * 4; }
+
 	@Override
 	public String algName() {
 		return "dHash";
@@ -62,29 +80,33 @@ public class DifferenceHash implements IHashAlgorithm {
 
 	@Override
 	public String toArguments() {
-		return "" + this.sideLength;
+		// Bilinear is left out, so that older hashes still load.
+		return this.resizeMode == ResizeMode.BILINEAR ? "" + this.sideLength
+				: this.sideLength + "║" + this.resizeMode.name();
 	}
 
 	@Override
 	public IHashAlgorithm fromArguments(String serialized) throws IllegalArgumentException {
+		String[] arguments = serialized.split("║");
 		try {
-			return new DifferenceHash(Integer.parseInt(serialized.trim()));
+			return new DifferenceHash(Integer.parseInt(arguments[0].trim()), HashUtils.parseResizeMode(arguments, 1));
 		} catch (NumberFormatException e) {
-			throw new IllegalArgumentException("Expected one integer value.");
+			throw new IllegalArgumentException("Expected an integer side length, optionally followed by a resize mode.");
 		}
 	}
 
 	@Override
 	public double distance(ImageHash hash1, ImageHash hash2) {
 		if (this.canCompare(hash1, hash2)) {
-			return HashUtils.hammingDistance(hash1.bitsToLongArray(), hash2.bitsToLongArray());
+			return HashUtils.hammingDistance(hash1, hash2);
 		} else throw new IllegalArgumentException("The chosen image hashes are not comparable because they came from different algorithms.");
 	}
 
 	@Override
 	public boolean algEquals(IHashAlgorithm o) {
 		if (!(o instanceof DifferenceHash)) return false;
-		else return ((DifferenceHash) o).sideLength == this.sideLength && ((DifferenceHash)o).mm.equals(mm);
+		else return ((DifferenceHash) o).sideLength == this.sideLength && ((DifferenceHash)o).mm.equals(mm)
+				&& ((DifferenceHash) o).resizeMode == this.resizeMode;
 	}
 
 	@Override
@@ -95,39 +117,39 @@ public class DifferenceHash implements IHashAlgorithm {
 
 	@Override
 	public int hashCode() {
-		return (this.sideLength << 2) ^ this.mm.hashCode();
+		return (this.sideLength << 2) ^ this.mm.hashCode() ^ this.resizeMode.hashCode();
+	}
+
+	@Override
+	public int distanceAtMost(ImageHash hash1, ImageHash hash2, int maxBits) {
+		if (this.canCompare(hash1, hash2)) {
+			return HashUtils.hammingDistanceAtMost(hash1, hash2, maxBits);
+		} else throw new IllegalArgumentException("Algorithm " + hash1.getAlgName() + " and algorithm "
+				+ hash2.getAlgName() + " are not comparable under algorithm " + this.algName() + ".");
+	}
+
+	@Override
+	public int matchThreshold(MatchMode mode) {
+		return this.thresholds[(mode == null ? this.mm : mode).ordinal()];
 	}
 
 	@Override
 	public boolean matches(ImageHash hash1, ImageHash hash2, MatchMode mode) {
-		if (!this.canCompare(hash1, hash2)) {
-			throw new IllegalArgumentException("Algorithm " + hash1.getAlgName() + " and algorithm "
-					+ hash2.getAlgName() + " are not comparable under algorithm " + this.algName() + ".");
-		}
-		if (mode == null) mode = mm;
-
-		// Doubles are represented exactly for a very large number of bits, so this is
-		// okay.
-		double dist = this.distance(hash1, hash2);
-		switch (mode) {
-		case SLOPPY:
-			return dist < (8 / (double) 64) * this.getHashLength();
-		case NORMAL:
-			return dist < (5 / (double) 64) * this.getHashLength();
-		case STRICT:
-			return dist < (2 / (double) 64) * this.getHashLength();
-		case EXACT:
-			return dist == 0;
-		default:
-			throw new IllegalArgumentException("Invalid MatchMode: " + mode);
-		}
+		// Throws when the hashes are not comparable.
+		int threshold = this.matchThreshold(mode);
+		return this.distanceAtMost(hash1, hash2, threshold) <= threshold;
 	}
 
 	@Override
 	public ImageHash hash(IImage<?> img) {
+		return this.hash(new PreprocessingContext(img));
+	}
+
+	@Override
+	public ImageHash hash(PreprocessingContext context) {
 		// This size seems odd, but we're averaging the pixels next to each other
 		// horizontally, and end up with an sideLength x sideLength length hash.
-		byte[] thumbnail = img.resizeBilinear(this.sideLength, this.sideLength).toGreyscale().getPixels();
+		byte[] thumbnail = context.getGreyscaleThumbnail(this.sideLength, this.resizeMode).getPixels();
 
 		int numHashBits = thumbnail.length - this.sideLength;
 		byte[] hash = new byte[(numHashBits + 7) / 8];
@@ -152,7 +174,7 @@ public class DifferenceHash implements IHashAlgorithm {
 		// Shift in the last byte of the array, since that didn't get done above
 		hash[hash.length - 1] <<= (8 - (this.getHashLength() % 8));
 
-		return new ImageHash(this, hash, img instanceof SourcedImage ? ((SourcedImage) img).getSource() : null);
+		return new ImageHash(this, hash, context.getSource());
 	}
 
 	@Override
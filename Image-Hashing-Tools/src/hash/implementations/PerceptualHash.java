@@ -9,17 +9,16 @@ import hash.HashUtils;
 import hash.IHashAlgorithm;
 import hash.ImageHash;
 import hash.MatchMode;
+import hash.PreprocessingContext;
 import image.IImage;
 import image.PixelUtils;
+import image.ResizeMode;
 import image.implementations.RGBImage;
-import image.implementations.SourcedImage;
 
 public class PerceptualHash implements IHashAlgorithm {
 
 	static {
-		PerceptualHash phash = new PerceptualHash();
-		phash.DCTCoefficients = null; // Free unnecessary memory, as the alg does not need to actually work.
-		AlgLoader.register(phash);
+		AlgLoader.register(new PerceptualHash());
 	}
 
 	public PerceptualHash() {
@@ -27,10 +26,37 @@ public class PerceptualHash implements IHashAlgorithm {
 	}
 
 	public PerceptualHash(int sideLength) {
+		this(sideLength, ResizeMode.BILINEAR);
+	}
+
+	public PerceptualHash(int sideLength, ResizeMode resizeMode) {
+		this(sideLength, resizeMode, sideLength);
+	}
+
+	/**
+	 * Creates a pHash that is taken from the transform of a larger thumbnail, the
+	 * way {@link PerceptualHashFamily} derives its smaller hashes. The image is
+	 * resized to sourceSideLength, transformed, and the upper-left (sideLength / 2)
+	 * x (sideLength / 2) corner of the transform becomes the hash.
+	 * 
+	 * These hashes are not comparable with those of a PerceptualHash that resizes
+	 * to sideLength itself, or with ones derived from a different source size.
+	 * 
+	 * @param sideLength       The side length of the hash's own thumbnail
+	 * @param resizeMode       How the image is shrunk into the larger thumbnail
+	 * @param sourceSideLength The side length of the thumbnail that is transformed
+	 */
+	public PerceptualHash(int sideLength, ResizeMode resizeMode, int sourceSideLength) {
+		if (resizeMode == null)
+			throw new IllegalArgumentException("The resize mode cannot be null.");
 		if (PixelUtils.safeSquare(sideLength) % 2 != 0)
 			throw new IllegalArgumentException("sideLength must be even.");
+		if (sourceSideLength < sideLength || sourceSideLength % 2 != 0)
+			throw new IllegalArgumentException("sourceSideLength must be even, and at least sideLength.");
 		this.sideLength = sideLength;
-		this.DCTCoefficients = HalfDCTII.createHalfDCTIICoefficients(sideLength);
+		this.sourceSideLength = sourceSideLength;
+		this.resizeMode = resizeMode;
+		this.thresholds = HashUtils.matchThresholds(this.getHashLength());
 	}
 
 	public PerceptualHash(int sideLength, MatchMode mode) {
@@ -39,7 +65,12 @@ public class PerceptualHash implements IHashAlgorithm {
 	}
 
 	private int sideLength;
-	private double[] DCTCoefficients;
+	// The side length of the thumbnail that's transformed. Equal to sideLength,
+	// unless the hash is derived from a larger transform.
+	private int sourceSideLength;
+	private ResizeMode resizeMode;
+	// Indexed by MatchMode#ordinal()
+	private int[] thresholds;
 	private MatchMode mm = MatchMode.NORMAL;
 
 	@Override
@@ -53,6 +84,29 @@ public class PerceptualHash implements IHashAlgorithm {
 		return mm;
 	}
 
+	@Override
+	public ResizeMode getResizeMode() {
+		return this.resizeMode;
+	}
+
+	@Override
+	public int getDecodeSideLength() {
+		return this.sourceSideLength * 4;
+	}
+
+	public int getSideLength() {
+		return this.sideLength;
+	}
+
+	public int getSourceSideLength() {
+		return this.sourceSideLength;
+	}
+
+	// Whether this hash is taken from the transform of a larger thumbnail.
+	public boolean isDerived() {
+		return this.sourceSideLength != this.sideLength;
+	}
+
 	@Override
 	public String algName() {
 		return "pHash";
@@ -70,22 +124,31 @@ public class PerceptualHash implements IHashAlgorithm {
 
 	@Override
 	public String toArguments() {
-		return "" + this.sideLength;
+		// Bilinear is left out, so that older hashes still load. The source side
+		// length is only written for derived hashes, for the same reason.
+		if (this.isDerived())
+			return this.sideLength + "║" + this.resizeMode.name() + "║" + this.sourceSideLength;
+		return this.resizeMode == ResizeMode.BILINEAR ? "" + this.sideLength
+				: this.sideLength + "║" + this.resizeMode.name();
 	}
 
 	@Override
 	public IHashAlgorithm fromArguments(String serialized) throws IllegalArgumentException {
+		String[] arguments = serialized.split("║");
 		try {
-			return new PerceptualHash(Integer.parseInt(serialized.trim()));
+			int sideLength = Integer.parseInt(arguments[0].trim());
+			int sourceSideLength = arguments.length > 2 ? Integer.parseInt(arguments[2].trim()) : sideLength;
+			return new PerceptualHash(sideLength, HashUtils.parseResizeMode(arguments, 1), sourceSideLength);
 		} catch (NumberFormatException e) {
-			throw new IllegalArgumentException("Expected one integer value.");
+			throw new IllegalArgumentException(
+					"Expected an integer side length, optionally followed by a resize mode and a source side length.");
 		}
 	}
 
 	@Override
 	public double distance(ImageHash hash1, ImageHash hash2) {
 		if (this.canCompare(hash1, hash2)) {
-			return HashUtils.hammingDistance(hash1.bitsToLongArray(), hash2.bitsToLongArray());
+			return HashUtils.hammingDistance(hash1, hash2);
 		} else
 			throw new IllegalArgumentException("The chosen ");
 	}
@@ -95,7 +158,9 @@ public class PerceptualHash implements IHashAlgorithm {
 		if (!(o instanceof PerceptualHash))
 			return false;
 		else
-			return ((PerceptualHash) o).sideLength == this.sideLength && ((PerceptualHash) o).mm.equals(mm);
+			return ((PerceptualHash) o).sideLength == this.sideLength && ((PerceptualHash) o).mm.equals(mm)
+					&& ((PerceptualHash) o).resizeMode == this.resizeMode
+					&& ((PerceptualHash) o).sourceSideLength == this.sourceSideLength;
 	}
 
 	@Override
@@ -108,52 +173,69 @@ public class PerceptualHash implements IHashAlgorithm {
 
 	@Override
 	public int hashCode() {
-		return (this.sideLength << 4) ^ this.mm.hashCode();
+		return (this.sideLength << 4) ^ (this.sourceSideLength << 16) ^ this.mm.hashCode() ^ this.resizeMode.hashCode();
 	}
 
 	@Override
-	public boolean matches(ImageHash hash1, ImageHash hash2, MatchMode mode) {
-		if (!this.canCompare(hash1, hash2)) {
+	public int distanceAtMost(ImageHash hash1, ImageHash hash2, int maxBits) {
+		if (this.canCompare(hash1, hash2)) {
+			return HashUtils.hammingDistanceAtMost(hash1, hash2, maxBits);
+		} else
 			throw new IllegalArgumentException("Algorithm " + hash1.getAlgName() + " and algorithm "
 					+ hash2.getAlgName() + " are not comparable under algorithm " + this.algName() + ".");
-		}
-		if (mode == null)
-			mode = mm;
-
-		// Doubles are represented exactly for a very large number of bits, so this is
-		// okay.
-		double dist = this.distance(hash1, hash2);
-		switch (mode) {
-		case SLOPPY:
-			return dist < (8 / (double) 64) * this.getHashLength();
-		case NORMAL:
-			return dist < (5 / (double) 64) * this.getHashLength();
-		case STRICT:
-			return dist < (2 / (double) 64) * this.getHashLength();
-		case EXACT:
-			return dist == 0;
-		default:
-			throw new IllegalArgumentException("Invalid MatchMode: " + mode);
-		}
+	}
+
+	@Override
+	public int matchThreshold(MatchMode mode) {
+		return this.thresholds[(mode == null ? this.mm : mode).ordinal()];
+	}
+
+	@Override
+	public boolean matches(ImageHash hash1, ImageHash hash2, MatchMode mode) {
+		// Throws when the hashes are not comparable.
+		int threshold = this.matchThreshold(mode);
+		return this.distanceAtMost(hash1, hash2, threshold) <= threshold;
 	}
 
 	@Override
 	public ImageHash hash(IImage<?> img) {
+		return this.hash(new PreprocessingContext(img));
+	}
+
+	@Override
+	public ImageHash hash(PreprocessingContext context) {
 		// Algorithm summary can be found here:
 		// http://hackerfactor.com/blog/index.php%3F/archives/432-Looks-Like-It.html
 		// And also check out phash.org
-		double[] transformedTrimmedDCT = HalfDCTII.halfDCTII(resize(img, this.sideLength), this.sideLength,
-				this.DCTCoefficients);
+		// The tables are looked up here rather than in the constructor, so that
+		// algorithms that are only parsed never build them.
+		double[] transformedTrimmedDCT = HalfDCTII.tablesFor(this.sourceSideLength)
+				.transform(resize(context, this.sourceSideLength, this.resizeMode));
 
 		// Now we put the bits of the hash into a long[], and make an ImageHash object
 		// out of it.
-		return new ImageHash(this, constructHash(transformedTrimmedDCT),
-				img instanceof SourcedImage ? ((SourcedImage) img).getSource() : null);
+		return this.hashFromTransform(transformedTrimmedDCT, this.sourceSideLength / 2, context.getSource());
+	}
+
+	// Takes this hash's corner out of a transform with the given side length, which
+	// must be at least this hash's. Also used by PerceptualHashFamily, which
+	// computes a shared transform itself.
+	ImageHash hashFromTransform(double[] transformed, int transformedSide, String source) {
+		int cornerSide = this.sideLength / 2;
+		double[] corner = transformed;
+		if (cornerSide != transformedSide) {
+			corner = new double[cornerSide * cornerSide];
+			for (int u = 0; u < cornerSide; u++) {
+				System.arraycopy(transformed, u * transformedSide, corner, u * cornerSide, cornerSide);
+			}
+		}
+		return new ImageHash(this, constructHash(corner), source);
 	}
 
-	// Resize the image, and convert it to a 2d array of doubles.
-	private static byte[] resize(IImage<?> img, int size) {
-		return img.resizeBilinear(size, size).toGreyscale().getPixels();
+	// Resize the image and convert it to greyscale, or fetch it if that's already
+	// been done.
+	static byte[] resize(PreprocessingContext context, int size, ResizeMode mode) {
+		return context.getGreyscaleThumbnail(size, mode).getPixels();
 	}
 
 	private byte[] constructHash(double[] transformedTrimmedDCT) {
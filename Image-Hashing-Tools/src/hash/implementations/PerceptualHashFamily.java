@@ -0,0 +1,130 @@
+package hash.implementations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import hash.HalfDCTII;
+import hash.ImageHash;
+import hash.PreprocessingContext;
+import image.IImage;
+import image.ResizeMode;
+
+/**
+ * Hashes an image with several {@link PerceptualHash}es of different side
+ * lengths at once, for about the cost of the largest one.
+ * 
+ * The image is resized and converted to greyscale once, to the largest side
+ * length, and transformed once. The low frequencies of a DCT describe the same
+ * coarse structure that a smaller thumbnail would, so each smaller hash is taken
+ * from the upper-left (sideLength / 2) x (sideLength / 2) corner of the shared
+ * transform, which is exactly the block that hash would have kept from its own.
+ * 
+ * The smaller hashes don't resize the original image themselves, and their bits
+ * differ a lot from what that PerceptualHash would produce on its own, often by
+ * more than its SLOPPY threshold. So they aren't created by that
+ * PerceptualHash, but by a derived one that records the larger side length (see
+ * {@link PerceptualHash#PerceptualHash(int, ResizeMode, int)}), and they can
+ * only be compared with other hashes derived the same way. Hashing an image
+ * with that derived PerceptualHash by itself gives the same bits. Hashes of the
+ * largest side length are the same as those of the standalone PerceptualHash.
+ * 
+ * Every algorithm in a family must use the same ResizeMode.
+ * 
+ * @author apaz-cli
+ */
+public class PerceptualHashFamily {
+
+	private final PerceptualHash[] algorithms;
+	private final int largestSideLength;
+	private final ResizeMode resizeMode;
+	// The same tables as a standalone PerceptualHash of the largest size uses.
+	private final HalfDCTII.Tables tables;
+
+	public PerceptualHashFamily(int... sideLengths) {
+		this(Arrays.stream(sideLengths).mapToObj(PerceptualHash::new).toArray(PerceptualHash[]::new));
+	}
+
+	public PerceptualHashFamily(Collection<PerceptualHash> algorithms) {
+		this(algorithms.toArray(new PerceptualHash[algorithms.size()]));
+	}
+
+	public PerceptualHashFamily(PerceptualHash... algorithms) {
+		if (algorithms == null || algorithms.length == 0)
+			throw new IllegalArgumentException("A PerceptualHashFamily needs at least one PerceptualHash.");
+
+		int largest = 0;
+		for (PerceptualHash alg : algorithms) {
+			if (alg == null)
+				throw new IllegalArgumentException("The algorithms cannot be null.");
+			if (alg.getResizeMode() != algorithms[0].getResizeMode())
+				throw new IllegalArgumentException("All algorithms in a PerceptualHashFamily must use the same resize mode.");
+			largest = Math.max(largest, alg.getSourceSideLength());
+		}
+
+		int size = largest;
+		this.largestSideLength = size;
+		this.resizeMode = algorithms[0].getResizeMode();
+
+		// Every algorithm that doesn't already transform a thumbnail of the largest
+		// size is replaced by one derived from it, so that the hashes say how they
+		// were made.
+		this.algorithms = new PerceptualHash[algorithms.length];
+		for (int i = 0; i < algorithms.length; i++) {
+			PerceptualHash alg = algorithms[i];
+			if (alg.getSourceSideLength() != size) {
+				alg = new PerceptualHash(alg.getSideLength(), this.resizeMode, size);
+				alg.setMatchMode(algorithms[i].getMatchMode());
+			}
+			this.algorithms[i] = alg;
+		}
+		this.tables = HalfDCTII.tablesFor(size);
+	}
+
+	/**
+	 * @return The algorithms that create this family's hashes, in order. The
+	 *         smaller ones are derived from the largest side length, and are not
+	 *         the ones this family was constructed with.
+	 */
+	public List<PerceptualHash> getAlgorithms() {
+		return new ArrayList<>(Arrays.asList(this.algorithms));
+	}
+
+	public int size() {
+		return this.algorithms.length;
+	}
+
+	/**
+	 * Hashes the image with every algorithm in this family.
+	 * 
+	 * @param img The image to hash
+	 * @return The hashes, in the same order as the algorithms this family was
+	 *         constructed with.
+	 */
+	public ImageHash[] hash(IImage<?> img) {
+		return this.hash(new PreprocessingContext(img));
+	}
+
+	/**
+	 * Hashes the image with every algorithm in this family, drawing the thumbnail
+	 * from the context.
+	 * 
+	 * @param context The preprocessing context of the image to hash
+	 * @return The hashes, in the same order as the algorithms this family was
+	 *         constructed with.
+	 */
+	public ImageHash[] hash(PreprocessingContext context) {
+		int half = this.largestSideLength / 2;
+		double[] transformed = this.tables
+				.transform(PerceptualHash.resize(context, this.largestSideLength, this.resizeMode));
+
+		String source = context.getSource();
+		ImageHash[] hashes = new ImageHash[this.algorithms.length];
+		for (int i = 0; i < this.algorithms.length; i++) {
+			hashes[i] = this.algorithms[i].hashFromTransform(transformed, half, source);
+		}
+		return hashes;
+	}
+
+}
@@ -0,0 +1,320 @@
+package hashstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import hash.HashUtils;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.MatchMode;
+import pipeline.dedup.HashMatch;
+import utils.NeighborHeap;
+
+/**
+ * A HashStore backed by a BK-tree, which makes use of hamming distance being a
+ * metric with only a handful of possible values.
+ *
+ * Every node has at most one child at each distance from it. A new hash walks
+ * down from the root, following the child at its distance from each node,
+ * until there is no such child, and becomes it. So inserting never rebalances
+ * or rebuilds anything. A search within r of the query only has to visit the
+ * children of a node at distance d from the query whose distance from that
+ * node is within [d - r, d + r], by the triangle inequality.
+ *
+ * There are no node objects. The hashes are numbered in the order they were
+ * stored, and the tree is a few int arrays indexed by that number: the first
+ * child and next sibling of each node, and the distance to its parent. Hashes
+ * identical to one already in the tree don't go any deeper. They're chained
+ * off of it in another array instead.
+ *
+ * BK-trees prune well at small radii, and hardly at all at large ones. So a
+ * range search that has visited half as many nodes as it could have compared
+ * against gives up and compares against everything instead, same as
+ * {@link vptree.HammingVPTree#rangeSearch(ImageHash, int)}.
+ *
+ * Safe to store to and query from many threads at once.
+ *
+ * @author apaz-cli
+ */
+public class BKTreeHashStore implements HashStore {
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Everything below is guarded by lock.
+	private IHashAlgorithm alg = null;
+	private int wordCount;
+
+	private ImageHash[] items = new ImageHash[0];
+	private long[] words = new long[0];
+	// -1 for none. The root is always 0.
+	private int[] firstChild = new int[0], nextSibling = new int[0], nextDuplicate = new int[0];
+	private int[] parentDistance = new int[0];
+	private int size = 0;
+
+	public BKTreeHashStore() {}
+
+	public BKTreeHashStore(Collection<? extends ImageHash> hashes) {
+		this.storeAll(hashes);
+	}
+
+	public int size() {
+		return HammingStores.read(this.lock, () -> this.size);
+	}
+
+	/***********/
+	/* Storing */
+	/***********/
+
+	@Override
+	public void store(ImageHash hash) {
+		HammingStores.store(this, hash);
+	}
+
+	@Override
+	public void storeAll(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) return;
+
+		this.lock.writeLock().lock();
+		try {
+			// The tree only knows how to count differing bits.
+			IHashAlgorithm alg = HammingStores.checkStored("BKTreeHashStore", this.alg, hashes);
+			if (this.alg == null) {
+				this.alg = alg;
+				this.wordCount = ImageHash.wordCount(alg.getHashLength());
+			}
+
+			this.ensureCapacity(this.size + hashes.size());
+			for (ImageHash h : hashes) {
+				this.insert(h);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= this.items.length) return;
+		int old = this.items.length;
+		capacity = Math.max(capacity, Math.max(16, old * 2));
+		this.items = Arrays.copyOf(this.items, capacity);
+		this.words = Arrays.copyOf(this.words, capacity * this.wordCount);
+		this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+		this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+		this.nextDuplicate = Arrays.copyOf(this.nextDuplicate, capacity);
+		this.parentDistance = Arrays.copyOf(this.parentDistance, capacity);
+	}
+
+	// Holding the write lock, with room for one more.
+	private void insert(ImageHash h) {
+		int id = this.size++;
+		this.items[id] = h;
+		System.arraycopy(h.getWords(), 0, this.words, id * this.wordCount, this.wordCount);
+		this.firstChild[id] = -1;
+		this.nextSibling[id] = -1;
+		this.nextDuplicate[id] = -1;
+		if (id == 0) return;
+
+		int node = 0;
+		for (;;) {
+			int d = this.distance(id, node);
+			if (d == 0) {
+				this.nextDuplicate[id] = this.nextDuplicate[node];
+				this.nextDuplicate[node] = id;
+				return;
+			}
+
+			int child = this.firstChild[node];
+			while (child != -1 && this.parentDistance[child] != d) {
+				child = this.nextSibling[child];
+			}
+			if (child == -1) {
+				this.parentDistance[id] = d;
+				this.nextSibling[id] = this.firstChild[node];
+				this.firstChild[node] = id;
+				return;
+			}
+			node = child;
+		}
+	}
+
+	private int distance(int id1, int id2) {
+		return HashUtils.hammingDistance(this.words, id1 * this.wordCount, this.words, id2 * this.wordCount,
+				this.wordCount);
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	@Override
+	public ImageHash NN(ImageHash h) throws IOException {
+		return HammingStores.NN(this, h);
+	}
+
+	/**
+	 * A depth first search whose radius is the distance to the kth best hash
+	 * found so far, so it shrinks as the search goes on. Subtrees are pushed with
+	 * the lowest distance any hash in them could have, and skipped when they're
+	 * popped if the radius has since shrunk below that.
+	 */
+	@Override
+	public List<ImageHash> kNN(ImageHash h, int k) throws IOException {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			NeighborHeap neighbors = new NeighborHeap(Math.min(k, this.size));
+			if (neighbors.capacity() == 0) return new ArrayList<>();
+
+			long[] q = h.getWords();
+			// (lower bound << 32 | node)
+			long[] stack = new long[64];
+			int top = 0;
+			stack[top++] = 0;
+			while (top > 0) {
+				long entry = stack[--top];
+				if (entry >>> 32 > neighbors.radius()) continue;
+				int node = (int) entry;
+
+				int d = HashUtils.hammingDistance(q, 0, this.words, node * this.wordCount, this.wordCount);
+				for (int dup = node; dup != -1; dup = this.nextDuplicate[dup]) {
+					neighbors.offer(d, dup);
+				}
+
+				int radius = neighbors.radius();
+				for (int child = this.firstChild[node]; child != -1; child = this.nextSibling[child]) {
+					int bound = Math.abs(this.parentDistance[child] - d);
+					if (bound > radius) continue;
+					if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+					stack[top++] = ((long) bound << 32) | child;
+				}
+			}
+
+			List<ImageHash> nearest = new ArrayList<>();
+			for (long found : neighbors.sorted()) {
+				nearest.add(this.items[(int) found]);
+			}
+			return nearest;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			List<ImageHash> found = new ArrayList<>();
+			if (this.size == 0) return found;
+			int radius = HammingStores.radius(distance, this.alg.getHashLength());
+			if (radius < 0) return found;
+			this.rangeSearch(h.getWords(), 0, radius, 0, (id, d) -> found.add(this.items[id]));
+			return found;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<HashMatch> findMatches(MatchMode mode) {
+		this.lock.readLock().lock();
+		try {
+			if (this.size == 0) return new ArrayList<>();
+			int threshold = this.alg.matchThreshold(mode);
+			if (threshold == 0) return HashStore.exactMatches(Arrays.copyOf(this.items, this.size), false);
+
+			// Every query tries the tree on its own, since one that gives up costs at most
+			// half of the scan it falls back on.
+			return HammingStores.joinWithLater(this.items, this.size, (i, later) -> this.rangeSearch(this.words,
+					i * this.wordCount, threshold, i + 1, (id, d) -> later.accept(id)));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ImageHash> toList() throws IOException {
+		return HammingStores.read(this.lock, () -> HammingStores.toList(this.items, this.size));
+	}
+
+	/**
+	 * @param query  The hash to search around
+	 * @param radius The radius of the search
+	 * @return Whether a range search would stay within its budget in the tree,
+	 *         rather than giving up and comparing against everything.
+	 */
+	boolean prunes(ImageHash query, int radius) {
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, query);
+			return this.size != 0 && this.rangeSearch(query.getWords(), 0, radius, 0, (id, d) -> {});
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// The ids chained off of id as identical to it, in chain order.
+	List<Integer> duplicatesOf(int id) {
+		this.lock.readLock().lock();
+		try {
+			List<Integer> duplicates = new ArrayList<>();
+			for (int dup = this.nextDuplicate[id]; dup != -1; dup = this.nextDuplicate[dup]) {
+				duplicates.add(dup);
+			}
+			return duplicates;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// Holding the read lock, with at least one hash stored. Calls hit once for
+	// every hash with an id of at least minId within radius of the query whose
+	// words start at q[offset]. Returns whether the tree stayed under budget,
+	// rather than giving up and comparing against everything.
+	private boolean rangeSearch(long[] q, int offset, int radius, int minId, HammingStores.Hit hit) {
+		int budget = (this.size - minId) / 2, visited = 0;
+		// (distance << 32 | id), so they can be thrown out if the search gives up.
+		long[] found = new long[16];
+		int foundCount = 0;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0 && visited <= budget) {
+			int node = stack[--top];
+			visited++;
+			int d = HashUtils.hammingDistance(q, offset, this.words, node * this.wordCount, this.wordCount);
+			if (d <= radius) {
+				for (int dup = node; dup != -1; dup = this.nextDuplicate[dup]) {
+					if (dup < minId) continue;
+					if (foundCount == found.length) found = Arrays.copyOf(found, foundCount * 2);
+					found[foundCount++] = ((long) d << 32) | dup;
+				}
+			}
+
+			for (int child = this.firstChild[node]; child != -1; child = this.nextSibling[child]) {
+				if (Math.abs(this.parentDistance[child] - d) > radius) continue;
+				if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+				stack[top++] = child;
+			}
+		}
+
+		if (top == 0) {
+			for (int i = 0; i < foundCount; i++) {
+				hit.hit((int) found[i], (int) (found[i] >>> 32));
+			}
+			return true;
+		}
+
+		for (int id = minId; id < this.size; id++) {
+			int d = HashUtils.hammingDistanceAtMost(q, offset, this.words, id * this.wordCount, this.wordCount, radius);
+			if (d <= radius) hit.hit(id, d);
+		}
+		return false;
+	}
+
+}
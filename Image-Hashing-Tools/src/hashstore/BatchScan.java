@@ -0,0 +1,160 @@
+package hashstore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import hash.ImageHash;
+
+// Answers many queries with one pass over the stored hashes, for the stores
+// that have nothing better to do than scan. The stored hashes are fed in blocks,
+// and each block is compared against the queries a block of queries at a time,
+// so that both stay in cache. The query blocks run in parallel. Each query's
+// state is only ever touched by the task that has its block.
+class BatchScan {
+
+	static final int QUERY_BLOCK_SIZE = 64;
+	// How many stored hashes the stores feed in at once.
+	static final int STORED_BLOCK_SIZE = 4096;
+
+	private final ImageHash[] queries;
+	// Exactly one of these is used.
+	private final int k;
+	private final double distance;
+	private final List<PriorityQueue<Candidate>> nearest;
+	private final List<List<Candidate>> within;
+	// How many stored hashes have been scanned, so ties go to whichever was stored
+	// first.
+	private long scanned = 0;
+
+	private BatchScan(List<ImageHash> queries, int k, double distance) {
+		this.queries = queries.toArray(new ImageHash[queries.size()]);
+		for (ImageHash q : this.queries) {
+			if (q == null) throw new IllegalArgumentException("The queries cannot be null.");
+		}
+		this.k = k;
+		this.distance = distance;
+		this.nearest = new ArrayList<>();
+		this.within = new ArrayList<>();
+		for (int i = 0; i < this.queries.length; i++) {
+			if (k >= 0) this.nearest.add(new PriorityQueue<>(Candidate.WORST_FIRST));
+			else this.within.add(new ArrayList<>());
+		}
+	}
+
+	static BatchScan kNN(List<ImageHash> queries, int k) {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		return new BatchScan(queries, k, 0);
+	}
+
+	static BatchScan withinDistance(List<ImageHash> queries, double distance) {
+		return new BatchScan(queries, -1, distance);
+	}
+
+	// Compares every query against the next block of stored hashes.
+	void scan(List<ImageHash> block) {
+		final ImageHash[] stored = block.toArray(new ImageHash[block.size()]);
+		final long first = this.scanned;
+		int queryBlocks = (this.queries.length + QUERY_BLOCK_SIZE - 1) / QUERY_BLOCK_SIZE;
+		IntStream.range(0, queryBlocks).parallel().forEach(b -> {
+			int start = b * QUERY_BLOCK_SIZE, end = Math.min(this.queries.length, start + QUERY_BLOCK_SIZE);
+			for (int s = 0; s < stored.length; s++) {
+				for (int q = start; q < end; q++) {
+					this.offer(q, stored[s], first + s);
+				}
+			}
+		});
+		this.scanned += stored.length;
+	}
+
+	private void offer(int q, ImageHash h, long order) {
+		double d = this.queries[q].distance(h);
+		if (this.k < 0) {
+			if (d <= this.distance) this.within.get(q).add(new Candidate(h, d, order));
+			return;
+		}
+		if (this.k == 0) return;
+
+		PriorityQueue<Candidate> heap = this.nearest.get(q);
+		if (heap.size() < this.k) {
+			heap.add(new Candidate(h, d, order));
+		} else if (d < heap.peek().distance) {
+			heap.poll();
+			heap.add(new Candidate(h, d, order));
+		}
+	}
+
+	// For each query, its k nearest, nearest first, or everything within the
+	// distance, in the order they were stored.
+	List<List<ImageHash>> results() {
+		return this.found().stream().map(found -> found.stream().map(c -> c.hash).collect(Collectors.toList()))
+				.collect(Collectors.toList());
+	}
+
+	@FunctionalInterface
+	static interface Resolver {
+		ImageHash get(long scanned) throws IOException;
+	}
+
+	// The same, but made from how many hashes were scanned before each one, for
+	// stores that scan something cheaper than the hashes they return.
+	List<List<ImageHash>> results(Resolver resolver) throws IOException {
+		List<List<ImageHash>> results = new ArrayList<>();
+		for (List<Candidate> found : this.found()) {
+			List<ImageHash> hashes = new ArrayList<>(found.size());
+			for (Candidate c : found) {
+				hashes.add(resolver.get(c.order));
+			}
+			results.add(hashes);
+		}
+		return results;
+	}
+
+	private List<List<Candidate>> found() {
+		if (this.k < 0) return this.within;
+		return this.nearest.stream().map(heap -> heap.stream().sorted(Candidate.WORST_FIRST.reversed())
+				.collect(Collectors.toList())).collect(Collectors.toList());
+	}
+
+	private static class Candidate {
+		static final Comparator<Candidate> WORST_FIRST = Comparator.<Candidate>comparingDouble(c -> c.distance)
+				.thenComparingLong(c -> c.order).reversed();
+
+		final ImageHash hash;
+		final double distance;
+		final long order;
+
+		Candidate(ImageHash hash, double distance, long order) {
+			this.hash = hash;
+			this.distance = distance;
+			this.order = order;
+		}
+	}
+
+	@FunctionalInterface
+	static interface Query {
+		List<ImageHash> apply(ImageHash query) throws IOException;
+	}
+
+	// For stores with an index, which is faster for each query than any scan.
+	// Runs the queries in parallel.
+	static List<List<ImageHash>> eachInParallel(List<ImageHash> queries, Query query) throws IOException {
+		try {
+			return queries.parallelStream().map(q -> {
+				try {
+					return query.apply(q);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package hashstore;
+
+import java.util.Arrays;
+
+// Maps int keys to the ids of the hashes that have them, for the stores that
+// look hashes up by part of their bits. Ids are handed out in order, starting
+// at 0. The buckets are linked lists threaded through next, from the last id
+// added to the first, so the whole table is a few int arrays no matter how many
+// hashes are in it. Not thread safe.
+class BucketTable {
+	int[] keys = new int[16];
+	int[] heads = filled(16);
+	int used = 0;
+	int[] next = new int[16];
+
+	void add(int key, int id) {
+		if (id >= this.next.length) this.next = Arrays.copyOf(this.next, Math.max(id + 1, this.next.length * 2));
+		if ((this.used + 1) * 2 > this.keys.length) this.grow();
+
+		int slot = this.find(key);
+		if (this.heads[slot] == -1) {
+			this.keys[slot] = key;
+			this.used++;
+		}
+		this.next[id] = this.heads[slot];
+		this.heads[slot] = id;
+	}
+
+	// The first id in the bucket, or -1 if it's empty.
+	int first(int key) {
+		return this.heads[this.find(key)];
+	}
+
+	// The slot holding key, or the empty slot where it would go.
+	private int find(int key) {
+		int mask = this.keys.length - 1;
+		int hash = key * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (this.heads[slot] != -1 && this.keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldKeys = this.keys, oldHeads = this.heads;
+		this.keys = new int[oldKeys.length * 2];
+		this.heads = filled(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldHeads[i] == -1) continue;
+			int slot = this.find(oldKeys[i]);
+			this.keys[slot] = oldKeys[i];
+			this.heads[slot] = oldHeads[i];
+		}
+	}
+
+	private static int[] filled(int length) {
+		int[] arr = new int[length];
+		Arrays.fill(arr, -1);
+		return arr;
+	}
+}
@@ -0,0 +1,203 @@
+package hashstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hash.ImageHash;
+import pipeline.dedup.HashMatch;
+import utils.Pair;
+import utils.SourceDictionary;
+
+/**
+ * Groups hashes with exactly the same bits, in one pass over them.
+ *
+ * Every hash is looked up by its words in an open addressing table of ints,
+ * which holds the first hash seen with those words. The rest are chained onto
+ * it. So finding every exact match takes O(n) time, however many duplicates
+ * there are, instead of comparing every pair.
+ *
+ * That makes it the whole of a search for exact matches, and a cheap first pass
+ * for fuzzier ones: join just the distinct hashes, then expand every match
+ * between them into the matches between their groups with
+ * {@link #expand(List, boolean)}.
+ *
+ * Doesn't look at algorithms at all. That's up to the caller.
+ *
+ * Skipping pairs with the same source interns the sources into a
+ * {@link SourceDictionary} of the groups' own, once, so that every pair
+ * compares two ints rather than two strings. Groups of many copies of one image
+ * pair up every one of them.
+ *
+ * @author apaz-cli
+ */
+public class DuplicateGroups {
+
+	private final ImageHash[] hashes;
+	// The index of the first hash of each group, in the order they first appear.
+	private final int[] firsts;
+	// The index of the next hash in the same group, or -1.
+	private final int[] next;
+	// The id of each hash's source, made the first time it's needed.
+	private int[] sourceIds;
+
+	private DuplicateGroups(ImageHash[] hashes, int[] firsts, int[] next) {
+		this.hashes = hashes;
+		this.firsts = firsts;
+		this.next = next;
+	}
+
+	public static DuplicateGroups of(ImageHash[] hashes) {
+		int n = hashes.length;
+		int capacity = Integer.highestOneBit(Math.max(2, n) * 2 - 1) * 2;
+		int mask = capacity - 1;
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+
+		int[] next = new int[n], last = new int[n];
+		int[] firsts = new int[n];
+		int groups = 0;
+		for (int i = 0; i < n; i++) {
+			if (hashes[i] == null) throw new IllegalArgumentException("The hashes cannot be null.");
+			long[] words = hashes[i].getWords();
+			next[i] = -1;
+
+			int slot = mix(words) & mask;
+			while (table[slot] != -1 && !Arrays.equals(hashes[table[slot]].getWords(), words)) {
+				slot = (slot + 1) & mask;
+			}
+			int first = table[slot];
+			if (first == -1) {
+				table[slot] = i;
+				last[i] = i;
+				firsts[groups++] = i;
+			} else {
+				next[last[first]] = i;
+				last[first] = i;
+			}
+		}
+		return new DuplicateGroups(hashes, Arrays.copyOf(firsts, groups), next);
+	}
+
+	private static int mix(long[] words) {
+		long h = words.length;
+		for (long w : words) {
+			h = (h ^ w) * 0x9E3779B97F4A7C15L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return The number of distinct hashes.
+	 */
+	public int distinctCount() {
+		return this.firsts.length;
+	}
+
+	/**
+	 * @return The first hash of each group, in the order they first appear.
+	 */
+	public ImageHash[] distinct() {
+		ImageHash[] distinct = new ImageHash[this.firsts.length];
+		for (int g = 0; g < this.firsts.length; g++) {
+			distinct[g] = this.hashes[this.firsts[g]];
+		}
+		return distinct;
+	}
+
+	/**
+	 * @param group The index of a distinct hash
+	 * @return Every hash with the same bits as it, in their original order.
+	 */
+	public List<ImageHash> group(int group) {
+		List<ImageHash> members = new ArrayList<>();
+		for (int i = this.firsts[group]; i != -1; i = this.next[i]) {
+			members.add(this.hashes[i]);
+		}
+		return members;
+	}
+
+	/**
+	 * @return Every group with more than one hash in it.
+	 */
+	public List<List<ImageHash>> duplicates() {
+		List<List<ImageHash>> duplicates = new ArrayList<>();
+		for (int g = 0; g < this.firsts.length; g++) {
+			if (this.next[this.firsts[g]] != -1) duplicates.add(this.group(g));
+		}
+		return duplicates;
+	}
+
+	/**
+	 * @param skipSameSource Whether to leave out pairs with the same source
+	 * @return Every pair of hashes with the same bits, once each, with the one
+	 *         that came first first.
+	 */
+	public List<HashMatch> matches(boolean skipSameSource) {
+		int[] sources = skipSameSource ? this.sourceIds() : null;
+		List<HashMatch> matches = new ArrayList<>();
+		for (int first : this.firsts) {
+			for (int i = first; i != -1; i = this.next[i]) {
+				for (int j = this.next[i]; j != -1; j = this.next[j]) {
+					this.addMatch(matches, i, j, sources);
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Turns matches between distinct hashes into matches between every hash in
+	 * their groups. Together with {@link #matches(boolean)}, that's every match
+	 * between the original hashes.
+	 *
+	 * @param distinctMatches Pairs of the hashes returned by {@link #distinct()}
+	 * @param skipSameSource  Whether to leave out pairs with the same source
+	 * @return Every pair of a hash from the first group and a hash from the
+	 *         second.
+	 */
+	public List<HashMatch> expand(List<Pair<ImageHash, ImageHash>> distinctMatches, boolean skipSameSource) {
+		List<HashMatch> matches = new ArrayList<>();
+		if (distinctMatches.isEmpty()) return matches;
+		int[] sources = skipSameSource ? this.sourceIds() : null;
+
+		Map<ImageHash, Integer> firstOf = new IdentityHashMap<>();
+		for (int first : this.firsts) {
+			firstOf.put(this.hashes[first], first);
+		}
+		for (Pair<ImageHash, ImageHash> p : distinctMatches) {
+			Integer first1 = firstOf.get(p.getKey()), first2 = firstOf.get(p.getValue());
+			if (first1 == null || first2 == null)
+				throw new IllegalArgumentException("Matches to expand must be between distinct hashes of these groups.");
+			for (int i = first1; i != -1; i = this.next[i]) {
+				for (int j = first2; j != -1; j = this.next[j]) {
+					this.addMatch(matches, i, j, sources);
+				}
+			}
+		}
+		return matches;
+	}
+
+	// Equal sources get equal ids, and hashes without one never match each other
+	// on it, the same as ImageHash.sameSource().
+	private synchronized int[] sourceIds() {
+		if (this.sourceIds == null) {
+			SourceDictionary dictionary = new SourceDictionary();
+			int[] ids = new int[this.hashes.length];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = dictionary.intern(this.hashes[i].getSource());
+			}
+			this.sourceIds = ids;
+		}
+		return this.sourceIds;
+	}
+
+	// sources is null if pairs with the same source are kept.
+	private void addMatch(List<HashMatch> matches, int i, int j, int[] sources) {
+		if (sources != null && sources[i] != SourceDictionary.NO_SOURCE && sources[i] == sources[j]) return;
+		matches.add(new HashMatch(this.hashes[i], this.hashes[j]));
+	}
+
+}
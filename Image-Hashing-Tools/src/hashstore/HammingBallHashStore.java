@@ -0,0 +1,323 @@
+package hashstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.MatchMode;
+import pipeline.dedup.HashMatch;
+
+/**
+ * A HashStore for hashes of up to 128 bits, which answers small radius queries
+ * by looking up every possible hash within the radius of the query.
+ *
+ * The hashes are kept in an open addressing table keyed by their one or two
+ * words, with identical hashes chained together. There are only
+ * sum(C(n, i) for i <= r) hashes within r bits of an n bit query, so for small
+ * r it's cheaper to look each of them up than to look at everything that's
+ * stored. For a 64 bit hash at the STRICT threshold of 1 bit that's 65 lookups,
+ * and at 2 bits, 2081. Each query works out which is cheaper, looking everything
+ * up or scanning every distinct hash in the table, and does that.
+ *
+ * Safe to store to and query from many threads at once.
+ *
+ * @author apaz-cli
+ */
+public class HammingBallHashStore implements HashStore {
+
+	public static final int MAX_HASH_LENGTH = 128;
+
+	// Roughly how many distinct hashes can be compared against in the time it
+	// takes to look up one. Queries that would take more lookups than there are
+	// distinct hashes, divided by this, scan instead.
+	private static final int PROBE_COST = 4;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Everything below is guarded by lock.
+	private IHashAlgorithm alg = null;
+	private int hashLength;
+
+	// Two words per slot. The second is 0 for hashes of one word.
+	private long[] keys = new long[32];
+	// The last id stored with each key, or -1 for an empty slot.
+	private int[] heads = filled(16);
+	private int distinct = 0;
+	// The id stored before this one with the same key, or -1.
+	private int[] next = new int[16];
+	private ImageHash[] items = new ImageHash[16];
+	private int size = 0;
+
+	public HammingBallHashStore() {}
+
+	public HammingBallHashStore(Collection<? extends ImageHash> hashes) {
+		this.storeAll(hashes);
+	}
+
+	public int size() {
+		return HammingStores.read(this.lock, () -> this.size);
+	}
+
+	/**
+	 * @param radius The radius of a query
+	 * @return Whether a query with that radius would look up every hash within it,
+	 *         rather than scanning.
+	 */
+	public boolean enumerates(int radius) {
+		this.lock.readLock().lock();
+		try {
+			return this.alg != null && this.probes(radius) * PROBE_COST <= this.distinct;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/***********/
+	/* Storing */
+	/***********/
+
+	@Override
+	public void store(ImageHash hash) {
+		HammingStores.store(this, hash);
+	}
+
+	@Override
+	public void storeAll(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) return;
+
+		this.lock.writeLock().lock();
+		try {
+			IHashAlgorithm alg = HammingStores.checkStored("HammingBallHashStore", this.alg, hashes);
+			if (this.alg == null) {
+				if (alg.getHashLength() > MAX_HASH_LENGTH) throw new IllegalArgumentException(
+						"HammingBallHashStore only supports hashes of up to " + MAX_HASH_LENGTH + " bits. Got: "
+								+ alg.getHashLength());
+				this.alg = alg;
+				this.hashLength = alg.getHashLength();
+			}
+
+			int newSize = this.size + hashes.size();
+			if (newSize > this.items.length) {
+				int capacity = Math.max(newSize, this.items.length * 2);
+				this.items = Arrays.copyOf(this.items, capacity);
+				this.next = Arrays.copyOf(this.next, capacity);
+			}
+			for (ImageHash h : hashes) {
+				long[] words = h.getWords();
+				long w0 = words[0], w1 = words.length > 1 ? words[1] : 0;
+				if ((this.distinct + 1) * 2 > this.heads.length) this.grow();
+
+				int id = this.size++;
+				this.items[id] = h;
+				int slot = this.find(w0, w1);
+				if (this.heads[slot] == -1) {
+					this.keys[slot * 2] = w0;
+					this.keys[slot * 2 + 1] = w1;
+					this.distinct++;
+				}
+				this.next[id] = this.heads[slot];
+				this.heads[slot] = id;
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	// The slot holding the key, or the empty slot where it would go.
+	private int find(long w0, long w1) {
+		int mask = this.heads.length - 1;
+		long h = (w0 * 0x9E3779B97F4A7C15L ^ w1) * 0xC2B2AE3D27D4EB4FL;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (this.heads[slot] != -1 && (this.keys[slot * 2] != w0 || this.keys[slot * 2 + 1] != w1)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = this.keys;
+		int[] oldHeads = this.heads;
+		this.keys = new long[oldKeys.length * 2];
+		this.heads = filled(oldHeads.length * 2);
+		for (int s = 0; s < oldHeads.length; s++) {
+			if (oldHeads[s] == -1) continue;
+			int slot = this.find(oldKeys[s * 2], oldKeys[s * 2 + 1]);
+			this.keys[slot * 2] = oldKeys[s * 2];
+			this.keys[slot * 2 + 1] = oldKeys[s * 2 + 1];
+			this.heads[slot] = oldHeads[s];
+		}
+	}
+
+	private static int[] filled(int length) {
+		int[] arr = new int[length];
+		Arrays.fill(arr, -1);
+		return arr;
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	// The number of hashes within radius of any hash.
+	private long probes(int radius) {
+		long probes = 0, choose = 1;
+		for (int i = 0; i <= Math.min(radius, this.hashLength); i++) {
+			probes += choose;
+			if (probes > Integer.MAX_VALUE) return probes;
+			choose = choose * (this.hashLength - i) / (i + 1);
+		}
+		return probes;
+	}
+
+	@Override
+	public ImageHash NN(ImageHash h) throws IOException {
+		return HammingStores.NN(this, h);
+	}
+
+	// Looks up everything at distance 0, then 1, and so on, until there are k, or
+	// it would be cheaper to scan.
+	@Override
+	public List<ImageHash> kNN(ImageHash h, int k) throws IOException {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			List<ImageHash> nearest = new ArrayList<>();
+			k = Math.min(k, this.size);
+			if (k == 0) return nearest;
+
+			long[] q = h.getWords();
+			long w0 = q[0], w1 = q.length > 1 ? q[1] : 0;
+			for (int level = 0; level <= this.hashLength; level++) {
+				if (this.probes(level) * PROBE_COST > this.distinct) break;
+				this.enumerate(w0, w1, 0, level, level, (slot, d) -> this.addAll(nearest, slot));
+				if (nearest.size() >= k) return new ArrayList<>(nearest.subList(0, k));
+			}
+
+			// (distance << 32 | slot) of every distinct hash.
+			long[] all = new long[this.distinct];
+			int count = 0;
+			for (int slot = 0; slot < this.heads.length; slot++) {
+				if (this.heads[slot] == -1) continue;
+				all[count++] = ((long) this.distance(w0, w1, slot) << 32) | slot;
+			}
+			Arrays.sort(all);
+			nearest.clear();
+			for (int i = 0; nearest.size() < k; i++) {
+				this.addAll(nearest, (int) all[i]);
+			}
+			return new ArrayList<>(nearest.subList(0, k));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			List<ImageHash> found = new ArrayList<>();
+			if (this.size == 0) return found;
+			int radius = HammingStores.radius(distance, this.hashLength);
+			if (radius < 0) return found;
+
+			long[] q = h.getWords();
+			this.rangeSearch(q[0], q.length > 1 ? q[1] : 0, radius, (slot, d) -> this.addAll(found, slot));
+			return found;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<HashMatch> findMatches(MatchMode mode) {
+		this.lock.readLock().lock();
+		try {
+			if (this.size == 0) return new ArrayList<>();
+			int threshold = this.alg.matchThreshold(mode);
+			if (threshold == 0) return HashStore.exactMatches(Arrays.copyOf(this.items, this.size), false);
+			if (this.probes(threshold) * PROBE_COST > this.distinct)
+				return HashStore.selfJoin(Arrays.copyOf(this.items, this.size), this.alg, mode, false);
+
+			// Partitioned by distinct hash, rather than by id.
+			int[] slots = IntStream.range(0, this.heads.length).filter(s -> this.heads[s] != -1).toArray();
+			List<HashMatch> matches = HammingStores.joinInPartitions(slots.length, (from, to, found) -> {
+				for (int i = from; i < to; i++) {
+					final int slot = slots[i];
+					// Every pair of distinct hashes comes up twice, once from each side, so
+					// only keep the one from the lower slot.
+					this.enumerate(this.keys[slot * 2], this.keys[slot * 2 + 1], 0, threshold, 1, (other, d) -> {
+						if (other <= slot) return;
+						for (int a = this.heads[slot]; a != -1; a = this.next[a]) {
+							for (int b = this.heads[other]; b != -1; b = this.next[b]) {
+								found.add(new HashMatch(this.items[a], this.items[b]));
+							}
+						}
+					});
+				}
+			});
+			matches.addAll(HashStore.exactMatches(Arrays.copyOf(this.items, this.size), false));
+			return matches;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ImageHash> toList() throws IOException {
+		return HammingStores.read(this.lock, () -> HammingStores.toList(this.items, this.size));
+	}
+
+	// Holding the read lock.
+	private void rangeSearch(long w0, long w1, int radius, HammingStores.Hit hit) {
+		if (this.probes(radius) * PROBE_COST <= this.distinct) {
+			this.enumerate(w0, w1, 0, radius, 0, hit);
+			return;
+		}
+
+		for (int slot = 0; slot < this.heads.length; slot++) {
+			if (this.heads[slot] == -1) continue;
+			int d = this.distance(w0, w1, slot);
+			if (d <= radius) hit.hit(slot, d);
+		}
+	}
+
+	// Looks up every hash that differs from (w0, w1) in at least minFlips and at
+	// most flips bits, only flipping bits at or after the given one, so that each
+	// is looked up once.
+	private void enumerate(long w0, long w1, int bit, int flips, int minFlips, HammingStores.Hit hit) {
+		if (minFlips <= 0) {
+			int slot = this.find(w0, w1);
+			if (this.heads[slot] != -1) hit.hit(slot, this.distance(w0, w1, slot));
+		}
+		if (flips == 0) return;
+
+		for (int b = bit; b < this.hashLength; b++) {
+			if (b < 64) this.enumerate(w0 ^ (1L << (63 - b)), w1, b + 1, flips - 1, minFlips - 1, hit);
+			else this.enumerate(w0, w1 ^ (1L << (127 - b)), b + 1, flips - 1, minFlips - 1, hit);
+		}
+	}
+
+	private int distance(long w0, long w1, int slot) {
+		return Long.bitCount(w0 ^ this.keys[slot * 2]) + Long.bitCount(w1 ^ this.keys[slot * 2 + 1]);
+	}
+
+	// Adds every hash stored with the key in this slot, in the order they were
+	// stored.
+	private void addAll(List<ImageHash> found, int slot) {
+		int start = found.size();
+		for (int id = this.heads[slot]; id != -1; id = this.next[id]) {
+			found.add(this.items[id]);
+		}
+		Collections.reverse(found.subList(start, found.size()));
+	}
+
+}
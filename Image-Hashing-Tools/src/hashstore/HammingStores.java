@@ -0,0 +1,149 @@
+package hashstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import hash.ComparisonType;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import pipeline.dedup.HashMatch;
+
+/**
+ * The plumbing shared by the stores that index hashes by hamming distance:
+ * checking what's stored and queried, turning distances into radii, the
+ * methods that every store implements the same way, and splitting
+ * findMatches() into partitions of queries that run in parallel.
+ *
+ * @author apaz-cli
+ */
+class HammingStores {
+
+	// The number of queries each task of findMatches() handles.
+	static final int FIND_MATCHES_PARTITION_SIZE = 256;
+
+	private HammingStores() {}
+
+	@FunctionalInterface
+	static interface Hit {
+		// id is whatever the store numbers its hashes by.
+		void hit(int id, int distance);
+	}
+
+	@FunctionalInterface
+	static interface PartitionJoin {
+		// Adds the matches of the queries in [from, to).
+		void join(int from, int to, List<HashMatch> matches);
+	}
+
+	@FunctionalInterface
+	static interface LaterSearch {
+		// Passes the id of every hash stored after query that matches it to later.
+		void search(int query, IntConsumer later);
+	}
+
+	/**
+	 * Checks that the hashes can go into a store that holds hashes of alg.
+	 *
+	 * @param store The name of the store, for the messages
+	 * @param alg   The algorithm of the store, or null if it's empty, in which
+	 *              case it's the algorithm of the first hash, which has to be
+	 *              compared by hamming distance.
+	 * @return The algorithm of the store.
+	 */
+	static IHashAlgorithm checkStored(String store, IHashAlgorithm alg, Collection<? extends ImageHash> hashes) {
+		if (alg == null) {
+			alg = hashes.iterator().next().getAlgorithm();
+			if (alg.getComparisonType() != ComparisonType.HAMMING) throw new IllegalArgumentException(
+					store + " only supports algorithms compared by hamming distance. Got: " + alg.algName());
+		}
+		for (ImageHash h : hashes) {
+			if (!h.getAlgorithm().algEquals(alg)) {
+				throw new IllegalArgumentException("Cannot go from a " + store + " of one algorithm type to another. "
+						+ "At least one of the hashes passed to this method came from a different algorithm. Please keep them seperate.");
+			}
+		}
+		return alg;
+	}
+
+	// alg is null for an empty store, which can be queried with anything.
+	static void checkQuery(IHashAlgorithm alg, ImageHash h) {
+		if (h == null) throw new IllegalArgumentException("The query cannot be null.");
+		if (alg != null && !alg.algEquals(h.getAlgorithm())) throw new IllegalArgumentException("Algorithm "
+				+ h.getAlgName() + " is not comparable to the algorithm of this store, " + alg.algName() + ".");
+	}
+
+	// Hamming distances are whole numbers, so searching within distance is the
+	// same as searching within floor(distance), and anything from the length of
+	// the hashes up finds everything. Returns -1 if distance is negative, since
+	// nothing is within that.
+	static int radius(double distance, int hashLength) {
+		if (distance < 0) return -1;
+		return distance >= hashLength ? hashLength : (int) distance;
+	}
+
+	/*****************/
+	/* Store methods */
+	/*****************/
+
+	static void store(HashStore store, ImageHash hash) {
+		if (hash == null) throw new NullPointerException("hash was null.");
+		store.storeAll(Collections.singleton(hash));
+	}
+
+	// The nearest hash, or null if the store is empty.
+	static ImageHash NN(HashStore store, ImageHash h) throws IOException {
+		List<ImageHash> nearest = store.kNN(h, 1);
+		return nearest.isEmpty() ? null : nearest.get(0);
+	}
+
+	// Holds the read lock while it reads.
+	static <T> T read(ReadWriteLock lock, Supplier<T> read) {
+		lock.readLock().lock();
+		try {
+			return read.get();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// The first size items, as a list of their own.
+	static List<ImageHash> toList(ImageHash[] items, int size) {
+		return new ArrayList<>(Arrays.asList(items).subList(0, size));
+	}
+
+	/**************/
+	/* Self joins */
+	/**************/
+
+	// Each hash is only paired with the ones stored after it, so every pair comes
+	// out once. items are the stored hashes, by id.
+	static List<HashMatch> joinWithLater(ImageHash[] items, int count, LaterSearch search) {
+		return joinInPartitions(count, (from, to, matches) -> {
+			for (int i = from; i < to; i++) {
+				ImageHash query = items[i];
+				search.search(i, id -> matches.add(new HashMatch(query, items[id])));
+			}
+		});
+	}
+
+	// Runs the queries [0, count) in partitions of FIND_MATCHES_PARTITION_SIZE, in
+	// parallel, and collects what they find.
+	static List<HashMatch> joinInPartitions(int count, PartitionJoin join) {
+		int partitions = (count + FIND_MATCHES_PARTITION_SIZE - 1) / FIND_MATCHES_PARTITION_SIZE;
+		return IntStream.range(0, partitions).parallel().mapToObj(p -> {
+			List<HashMatch> matches = new ArrayList<>();
+			join.join(p * FIND_MATCHES_PARTITION_SIZE, Math.min(count, (p + 1) * FIND_MATCHES_PARTITION_SIZE), matches);
+			return matches;
+		}).flatMap(List::stream).collect(Collectors.toList());
+	}
+
+}
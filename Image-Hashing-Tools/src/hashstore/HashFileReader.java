@@ -0,0 +1,153 @@
+package hashstore;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import hash.AlgLoader;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+
+/**
+ * Streams hashes back out of a hash file, laid out as described in
+ * {@link HashFiles}. The algorithm is loaded once, from the header. After that,
+ * each hash is just its words and its source, read side by side through two
+ * buffers, one over the records and one over the source table.
+ *
+ * The algorithm has to be registered with {@link AlgLoader}, the same as for
+ * {@link ImageHash#fromString(String)}.
+ *
+ * @author apaz-cli
+ */
+public class HashFileReader implements Closeable {
+
+	private final FileChannel channel;
+	private final IHashAlgorithm alg;
+	private final int wordCount;
+	private final long count;
+	private final Cursor records, sources;
+	private long read = 0;
+
+	public HashFileReader(File file) throws IOException {
+		this.channel = new FileInputStream(file).getChannel();
+		try {
+			DataInputStream header = new DataInputStream(Channels.newInputStream(this.channel));
+			if (header.readInt() != HashFiles.MAGIC) throw new IOException(file + " is not a hash file.");
+			int version = header.readInt();
+			if (version != HashFiles.VERSION) throw new IOException(
+					file + " is version " + version + " of the hash file format, which can't be read here.");
+
+			String algName = header.readUTF(), algArgs = header.readUTF();
+			try {
+				this.alg = AlgLoader.loadAlgorithm(algName, algArgs);
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+			int length = header.readInt();
+			if (length != this.alg.getHashLength()) throw new IOException("The header of " + file + " says its hashes are "
+					+ length + " bits, but " + algName + " with " + algArgs + " makes " + this.alg.getHashLength() + ".");
+			this.wordCount = ImageHash.wordCount(length);
+
+			this.count = header.readLong();
+			long sourcesOffset = header.readLong();
+			if (this.count < 0) throw new IOException(file + " was never finished.");
+			this.records = new Cursor(this.channel.position());
+			this.sources = new Cursor(sourcesOffset);
+		} catch (IOException e) {
+			this.channel.close();
+			throw e;
+		}
+	}
+
+	public IHashAlgorithm getAlgorithm() {
+		return this.alg;
+	}
+
+	// The number of hashes in the file.
+	public long size() {
+		return this.count;
+	}
+
+	/**
+	 * @return The next hash, or null if they've all been read.
+	 */
+	public ImageHash read() throws IOException {
+		if (this.read == this.count) return null;
+
+		ByteBuffer buffer = this.records.require(this.wordCount * 8);
+		long[] words = new long[this.wordCount];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = buffer.getLong();
+		}
+
+		int length = this.sources.require(4).getInt();
+		String source = null;
+		if (length >= 0) {
+			buffer = this.sources.require(length);
+			source = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+					StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+		}
+
+		this.read++;
+		return new ImageHash(this.alg, words, source);
+	}
+
+	/**
+	 * @return Every hash that hasn't been read yet.
+	 */
+	public List<ImageHash> readAll() throws IOException {
+		List<ImageHash> hashes = new ArrayList<>((int) Math.min(Integer.MAX_VALUE - 8, this.count - this.read));
+		ImageHash h;
+		while ((h = this.read()) != null) {
+			hashes.add(h);
+		}
+		return hashes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	// A buffered position in the file.
+	private class Cursor {
+		private ByteBuffer buffer = ByteBuffer.allocate(HashFileWriter.BUFFER_SIZE);
+		private long position;
+
+		Cursor(long position) {
+			this.position = position;
+			this.buffer.limit(0);
+		}
+
+		// Returns the buffer, with at least that many bytes left in it.
+		ByteBuffer require(int bytes) throws IOException {
+			if (this.buffer.remaining() >= bytes) return this.buffer;
+			if (this.buffer.capacity() < bytes) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(bytes, this.buffer.capacity() * 2));
+				bigger.put(this.buffer).flip();
+				this.buffer = bigger;
+			}
+
+			this.buffer.compact();
+			while (this.buffer.hasRemaining()) {
+				int n = channel.read(this.buffer, this.position);
+				if (n <= 0) break;
+				this.position += n;
+			}
+			this.buffer.flip();
+			if (this.buffer.remaining() < bytes) throw new EOFException("The hash file ends early.");
+			return this.buffer;
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package hashstore;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import image.PixelUtils;
+import pipeline.hasher.HasherOutput;
+
+/**
+ * Streams hashes into a hash file, laid out as described in {@link HashFiles}.
+ *
+ * The records go straight into the file as they come. The sources go into a
+ * temporary file next to it, which is appended as the source table on
+ * {@link #close()}, so nothing is held in memory but the buffers. The file
+ * isn't readable until it's closed.
+ *
+ * @author apaz-cli
+ */
+public class HashFileWriter implements HasherOutput, Closeable {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final IHashAlgorithm alg;
+	private final int wordCount;
+	private final FileChannel channel;
+	private final ByteBuffer records;
+	// Where the count and the offset of the source table go, once they're known.
+	private final long countPosition;
+
+	private final File sourceFile;
+	private final DataOutputStream sources;
+
+	private long count = 0;
+	private boolean closed = false;
+
+	public HashFileWriter(File file, IHashAlgorithm alg) throws IOException {
+		PixelUtils.assertNotNull(new String[] { "file", "alg" }, file, alg);
+		this.alg = alg;
+		this.wordCount = ImageHash.wordCount(alg.getHashLength());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(HashFiles.MAGIC);
+		header.writeInt(HashFiles.VERSION);
+		header.writeUTF(alg.algName());
+		header.writeUTF(alg.toArguments());
+		header.writeInt(alg.getHashLength());
+		this.countPosition = header.size();
+		header.writeLong(-1);
+		header.writeLong(-1);
+
+		this.sourceFile = File.createTempFile(file.getName(), ".sources", file.getAbsoluteFile().getParentFile());
+		this.sourceFile.deleteOnExit();
+		this.sources = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(this.sourceFile), BUFFER_SIZE));
+		this.channel = new FileOutputStream(file).getChannel();
+		this.records = ByteBuffer.allocate(Math.max(Math.max(BUFFER_SIZE, this.wordCount * 8), bytes.size()));
+		this.records.put(bytes.toByteArray());
+	}
+
+	public synchronized void write(ImageHash hash) throws IOException {
+		if (this.closed) throw new IOException("This writer has been closed.");
+		if (!this.alg.algEquals(hash.getAlgorithm())) throw new IllegalArgumentException(
+				"A hash file holds hashes from only one algorithm. Expected: " + this.alg.algName() + " with "
+						+ this.alg.toArguments() + " but got: " + hash.getAlgName() + " with "
+						+ hash.getAlgorithm().toArguments());
+
+		if (this.records.remaining() < this.wordCount * 8) this.flushRecords();
+		for (long w : hash.getWords()) {
+			this.records.putLong(w);
+		}
+
+		String source = hash.getSource();
+		if (source == null) {
+			this.sources.writeInt(-1);
+		} else {
+			byte[] utf8 = source.getBytes(StandardCharsets.UTF_8);
+			this.sources.writeInt(utf8.length);
+			this.sources.write(utf8);
+		}
+		this.count++;
+	}
+
+	// So that it can be the output of an ImageHasher.
+	@Override
+	public void store(ImageHash hash) {
+		try {
+			this.write(hash);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public synchronized long size() {
+		return this.count;
+	}
+
+	private void flushRecords() throws IOException {
+		this.records.flip();
+		while (this.records.hasRemaining()) {
+			this.channel.write(this.records);
+		}
+		this.records.clear();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed) return;
+		this.closed = true;
+		try {
+			this.flushRecords();
+			this.sources.close();
+
+			long sourcesOffset = this.channel.position();
+			try (FileChannel in = new FileInputStream(this.sourceFile).getChannel()) {
+				long size = in.size();
+				for (long done = 0; done < size;) {
+					done += in.transferTo(done, size - done, this.channel);
+				}
+			}
+
+			ByteBuffer trailer = ByteBuffer.allocate(16);
+			trailer.putLong(this.count).putLong(sourcesOffset).flip();
+			for (long position = this.countPosition; trailer.hasRemaining();) {
+				position += this.channel.write(trailer, position);
+			}
+		} finally {
+			this.sources.close();
+			this.channel.close();
+			this.sourceFile.delete();
+		}
+	}
+
+}
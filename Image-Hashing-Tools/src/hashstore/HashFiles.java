@@ -0,0 +1,105 @@
+package hashstore;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+
+import hash.ImageHash;
+import hash.ImageHashParser;
+
+/**
+ * A binary file of hashes, which loads far faster than a text file of
+ * {@link ImageHash#toString()} lines. Parsing those means splitting each line,
+ * decoding its hex a character at a time, and looking its algorithm up again.
+ * Here the algorithm is named once, in the header, and every hash after it is
+ * a fixed number of words. Written by {@link HashFileWriter}, and read back by
+ * {@link HashFileReader}.
+ *
+ * The layout, all big-endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * UTF    algorithm name      (as DataOutput.writeUTF())
+ * UTF    algorithm arguments
+ * int    hash length in bits
+ * long   number of hashes
+ * long   offset of the source table from the start of the file
+ * long[] the words of each hash, ImageHash.wordCount(length) per hash
+ * the source table: for each hash, an int length and then that many bytes of
+ * UTF-8, or a length of -1 for no source
+ * </pre>
+ *
+ * The number of hashes is written as -1 until the writer is closed, so that a
+ * file that was never finished can't be mistaken for a short one.
+ *
+ * @author apaz-cli
+ */
+public class HashFiles {
+
+	// "IHSH"
+	static final int MAGIC = 0x49485348;
+	static final int VERSION = 1;
+
+	private HashFiles() {}
+
+	/**
+	 * @return Whether the file starts like a hash file. Doesn't check the rest.
+	 */
+	public static boolean isHashFile(File file) throws IOException {
+		if (file.length() < 8) return false;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	public static List<ImageHash> readAll(File hashFile) throws IOException {
+		try (HashFileReader reader = new HashFileReader(hashFile)) {
+			return reader.readAll();
+		}
+	}
+
+	/**
+	 * Converts a text file of hashes, one {@link ImageHash#toString()} per line,
+	 * as written by {@link LinearHashStore}, into a hash file. Every hash has to
+	 * come from the same algorithm.
+	 *
+	 * @param textFile The text file to read
+	 * @param hashFile Where to write the hash file
+	 * @return The number of hashes converted.
+	 * @throws IOException If either file can't be used, or a line can't be
+	 *                     parsed.
+	 */
+	public static long convert(File textFile, File hashFile) throws IOException {
+		HashFileWriter writer = null;
+		boolean finished = false;
+		try (BufferedReader r = new BufferedReader(new FileReader(textFile))) {
+			ImageHashParser parser = new ImageHashParser();
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				ImageHash h = parser.parse(line);
+				if (writer == null) writer = new HashFileWriter(hashFile, h.getAlgorithm());
+				writer.write(h);
+			}
+			if (writer == null)
+				throw new IOException(textFile + " has no hashes, so there's no algorithm to convert with.");
+			writer.close();
+			finished = true;
+			return writer.size();
+		} catch (ClassNotFoundException | IllegalArgumentException e) {
+			throw new IOException("Could not convert " + textFile + ".", e);
+		} finally {
+			// Don't leave half a conversion behind, looking like a whole one.
+			if (!finished && writer != null) {
+				writer.close();
+				hashFile.delete();
+			}
+		}
+	}
+
+}
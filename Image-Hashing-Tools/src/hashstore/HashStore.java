@@ -5,11 +5,16 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import hash.ComparisonType;
+import hash.IHashAlgorithm;
 import hash.ImageHash;
 import hash.MatchMode;
 import pipeline.dedup.HashMatch;
 import pipeline.hasher.HasherOutput;
+import utils.Pair;
+import vptree.HammingVPTree;
 
 public interface HashStore extends HasherOutput {
 
@@ -30,6 +35,17 @@ public interface HashStore extends HasherOutput {
 				.collect(Collectors.toList());
 	}
 
+	// The same as calling kNN() for each query, in order. Stores that can only
+	// scan override these to answer every query in one pass over their hashes.
+	default List<List<ImageHash>> kNNBatch(List<ImageHash> queries, int k) throws IOException {
+		return BatchScan.eachInParallel(queries, q -> this.kNN(q, k));
+	}
+
+	default List<List<ImageHash>> allWithinDistanceBatch(List<ImageHash> queries, double distance)
+			throws IOException {
+		return BatchScan.eachInParallel(queries, q -> this.allWithinDistance(q, distance));
+	}
+
 	abstract List<ImageHash> toList() throws IOException;
 
 	default List<String> toSourceList() throws IOException {
@@ -42,4 +58,48 @@ public interface HashStore extends HasherOutput {
 
 	abstract List<HashMatch> findMatches(MatchMode mode);
 
+	/**
+	 * Finds every pair of the given hashes that match each other, once each.
+	 * 
+	 * Identical hashes are grouped together first, by {@link DuplicateGroups}. For
+	 * exact matches, that's all there is to do. Otherwise, only one hash of each
+	 * group is joined against the others, and the matches between them are
+	 * expanded back out to their groups. Hashes compared by hamming distance are
+	 * put in a {@link HammingVPTree} and joined against it, so that most pairs are
+	 * never compared at all. Anything else is compared pair by pair, in parallel.
+	 * 
+	 * @param hashes         The hashes to match against each other, all from alg
+	 * @param alg            The algorithm that made them
+	 * @param mode           How close a pair has to be to match
+	 * @param skipSameSource Whether to leave out pairs with the same source
+	 * @return The matches, in no particular order.
+	 */
+	static List<HashMatch> selfJoin(ImageHash[] hashes, IHashAlgorithm alg, MatchMode mode, boolean skipSameSource) {
+		final int threshold = alg.matchThreshold(mode);
+		DuplicateGroups groups = DuplicateGroups.of(hashes);
+		List<HashMatch> matches = groups.matches(skipSameSource);
+		if (threshold == 0) return matches;
+
+		final ImageHash[] distinct = groups.distinct();
+		List<Pair<ImageHash, ImageHash>> pairs;
+		if (alg.getComparisonType() == ComparisonType.HAMMING) {
+			pairs = new HammingVPTree(distinct).selfJoin(threshold);
+		} else {
+			pairs = IntStream.range(0, distinct.length).parallel().mapToObj(i -> IntStream.range(i + 1, distinct.length)
+					.filter(j -> alg.distanceAtMost(distinct[i], distinct[j], threshold) <= threshold)
+					.mapToObj(j -> new Pair<>(distinct[i], distinct[j]))).flatMap(s -> s).collect(Collectors.toList());
+		}
+		matches.addAll(groups.expand(pairs, skipSameSource));
+		return matches;
+	}
+
+	/**
+	 * @param hashes         The hashes to match against each other
+	 * @param skipSameSource Whether to leave out pairs with the same source
+	 * @return Every pair of the hashes with exactly the same bits, once each.
+	 */
+	static List<HashMatch> exactMatches(ImageHash[] hashes, boolean skipSameSource) {
+		return DuplicateGroups.of(hashes).matches(skipSameSource);
+	}
+
 }
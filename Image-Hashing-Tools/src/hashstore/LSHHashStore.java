@@ -0,0 +1,371 @@
+package hashstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import hash.HashUtils;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.MatchMode;
+import pipeline.dedup.HashMatch;
+
+/**
+ * An approximate HashStore, which uses locality sensitive hashing to only
+ * compare a query against hashes that are likely to be close to it.
+ *
+ * There are L tables, and each one is keyed by k bits of the hash, picked at
+ * random when the store is made. Two hashes d bits apart have the same key in
+ * a table with probability C(n - d, k) / C(n, k), where n is the length of the
+ * hash, so close hashes are likely to collide in at least one of the tables,
+ * and far ones aren't. A query is only compared against the hashes it collides
+ * with.
+ *
+ * That means queries can miss things. More tables find more, at the cost of
+ * memory and more candidates to compare against. More bits per table make for
+ * fewer, closer candidates, but miss more. {@link #expectedRecall(int)} works
+ * out the chance of finding a hash at a given distance, and
+ * {@link #measureRecall(int, MatchMode)} checks it against a linear scan.
+ *
+ * Safe to store to and query from many threads at once.
+ *
+ * @author apaz-cli
+ */
+public class LSHHashStore implements HashStore {
+
+	public static final int DEFAULT_TABLES = 10;
+	// Or the length of the hash, if that's shorter.
+	public static final int DEFAULT_BITS_PER_TABLE = 20;
+
+	private final int tableCount;
+	private final long seed;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Everything below is guarded by lock. All but the items, words, and size are
+	// set once, by the first store.
+	private int bitsPerTable;
+	private IHashAlgorithm alg = null;
+	private int wordCount;
+	// The bits that make up the key of each table.
+	private int[][] sampledBits;
+	private BucketTable[] tables;
+
+	private ImageHash[] items = new ImageHash[16];
+	private long[] words = new long[0];
+	private int size = 0;
+
+	public LSHHashStore() {
+		this(DEFAULT_TABLES, 0);
+	}
+
+	public LSHHashStore(Collection<? extends ImageHash> hashes) {
+		this();
+		this.storeAll(hashes);
+	}
+
+	/**
+	 * @param tables       The number of tables, L
+	 * @param bitsPerTable The number of bits in the key of each table, k, from 1
+	 *                     to 32. Or 0 for the default.
+	 */
+	public LSHHashStore(int tables, int bitsPerTable) {
+		this(tables, bitsPerTable, new Random().nextLong());
+	}
+
+	/**
+	 * @param tables       The number of tables, L
+	 * @param bitsPerTable The number of bits in the key of each table, k, from 1
+	 *                     to 32. Or 0 for the default.
+	 * @param seed         Picks the bits of each table
+	 */
+	public LSHHashStore(int tables, int bitsPerTable, long seed) {
+		if (tables < 1) throw new IllegalArgumentException("There must be at least one table.");
+		if (bitsPerTable < 0 || bitsPerTable > 32)
+			throw new IllegalArgumentException("The bits per table must be between 1 and 32, or 0. Got: " + bitsPerTable);
+		this.tableCount = tables;
+		this.bitsPerTable = bitsPerTable;
+		this.seed = seed;
+	}
+
+	public int getTables() {
+		return this.tableCount;
+	}
+
+	/**
+	 * @return The number of bits in the key of each table, or 0 if nothing has
+	 *         been stored yet and it hasn't been picked.
+	 */
+	public int getBitsPerTable() {
+		this.lock.readLock().lock();
+		try {
+			return this.alg == null ? this.bitsPerTable : this.sampledBits[0].length;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		return HammingStores.read(this.lock, () -> this.size);
+	}
+
+	/***********/
+	/* Storing */
+	/***********/
+
+	@Override
+	public void store(ImageHash hash) {
+		HammingStores.store(this, hash);
+	}
+
+	@Override
+	public void storeAll(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) return;
+
+		this.lock.writeLock().lock();
+		try {
+			IHashAlgorithm alg = HammingStores.checkStored("LSHHashStore", this.alg, hashes);
+			if (this.alg == null) this.initialize(alg);
+
+			int newSize = this.size + hashes.size();
+			if (newSize > this.items.length) {
+				int capacity = Math.max(newSize, this.items.length * 2);
+				this.items = Arrays.copyOf(this.items, capacity);
+				this.words = Arrays.copyOf(this.words, capacity * this.wordCount);
+			}
+			for (ImageHash h : hashes) {
+				int id = this.size++;
+				this.items[id] = h;
+				System.arraycopy(h.getWords(), 0, this.words, id * this.wordCount, this.wordCount);
+				for (int t = 0; t < this.tableCount; t++) {
+					this.tables[t].add(this.key(this.words, id * this.wordCount, t), id);
+				}
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	// Holding the write lock.
+	private void initialize(IHashAlgorithm alg) {
+		int hashLength = alg.getHashLength();
+		int k = this.bitsPerTable == 0 ? Math.min(DEFAULT_BITS_PER_TABLE, hashLength) : this.bitsPerTable;
+		if (k > hashLength) throw new IllegalArgumentException(
+				"Cannot sample " + k + " bits per table from a hash of length " + hashLength + ".");
+
+		// A partial shuffle of every bit position for each table.
+		Random r = new Random(this.seed);
+		int[] positions = new int[hashLength];
+		for (int i = 0; i < hashLength; i++) {
+			positions[i] = i;
+		}
+		this.sampledBits = new int[this.tableCount][];
+		this.tables = new BucketTable[this.tableCount];
+		for (int t = 0; t < this.tableCount; t++) {
+			for (int i = 0; i < k; i++) {
+				int j = i + r.nextInt(hashLength - i);
+				int temp = positions[i];
+				positions[i] = positions[j];
+				positions[j] = temp;
+			}
+			this.sampledBits[t] = Arrays.copyOf(positions, k);
+			Arrays.sort(this.sampledBits[t]);
+			this.tables[t] = new BucketTable();
+		}
+		this.bitsPerTable = k;
+		this.wordCount = ImageHash.wordCount(hashLength);
+		this.words = new long[this.items.length * this.wordCount];
+		this.alg = alg;
+	}
+
+	// The sampled bits of table t, of the hash whose words start at offset. The
+	// hashes are big endian, so bit 0 is the highest bit of the first word.
+	private int key(long[] words, int offset, int t) {
+		int key = 0;
+		for (int bit : this.sampledBits[t]) {
+			key = (key << 1) | (int) (words[offset + (bit >>> 6)] >>> (63 - (bit & 63))) & 1;
+		}
+		return key;
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	// Holding the read lock. The ids of at least minId that share a bucket with
+	// the query whose words start at q[offset] in any table, sorted, without
+	// duplicates.
+	private int[] candidates(long[] q, int offset, int minId) {
+		int[] found = new int[16];
+		int count = 0;
+		for (int t = 0; t < this.tableCount; t++) {
+			BucketTable table = this.tables[t];
+			for (int id = table.first(this.key(q, offset, t)); id >= minId; id = table.next[id]) {
+				if (count == found.length) found = Arrays.copyOf(found, count * 2);
+				found[count++] = id;
+			}
+		}
+
+		Arrays.sort(found, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || found[unique - 1] != found[i]) found[unique++] = found[i];
+		}
+		return Arrays.copyOf(found, unique);
+	}
+
+	@Override
+	public ImageHash NN(ImageHash h) throws IOException {
+		return HammingStores.NN(this, h);
+	}
+
+	// The k nearest of the hashes the query collides with, so there may be fewer
+	// than k, and they may not be the true nearest.
+	@Override
+	public List<ImageHash> kNN(ImageHash h, int k) throws IOException {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			List<ImageHash> nearest = new ArrayList<>();
+			if (k == 0 || this.size == 0) return nearest;
+
+			long[] q = h.getWords();
+			int[] candidates = this.candidates(q, 0, 0);
+			long[] entries = new long[candidates.length];
+			for (int i = 0; i < candidates.length; i++) {
+				int d = HashUtils.hammingDistance(q, 0, this.words, candidates[i] * this.wordCount, this.wordCount);
+				entries[i] = ((long) d << 32) | candidates[i];
+			}
+			Arrays.sort(entries);
+			for (int i = 0; i < Math.min(k, entries.length); i++) {
+				nearest.add(this.items[(int) entries[i]]);
+			}
+			return nearest;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// Only finds the hashes the query collides with.
+	@Override
+	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			List<ImageHash> found = new ArrayList<>();
+			if (this.size == 0) return found;
+			int radius = HammingStores.radius(distance, this.alg.getHashLength());
+			if (radius < 0) return found;
+			for (int id : this.withinDistance(h.getWords(), 0, radius, 0)) {
+				found.add(this.items[id]);
+			}
+			return found;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// Holding the read lock.
+	private int[] withinDistance(long[] q, int offset, int radius, int minId) {
+		int[] candidates = this.candidates(q, offset, minId);
+		int count = 0;
+		for (int id : candidates) {
+			int d = HashUtils.hammingDistanceAtMost(q, offset, this.words, id * this.wordCount, this.wordCount, radius);
+			if (d <= radius) candidates[count++] = id;
+		}
+		return Arrays.copyOf(candidates, count);
+	}
+
+	// Only finds the pairs that collide in at least one table.
+	@Override
+	public List<HashMatch> findMatches(MatchMode mode) {
+		this.lock.readLock().lock();
+		try {
+			if (this.size == 0) return new ArrayList<>();
+			int threshold = this.alg.matchThreshold(mode);
+			if (threshold == 0) return HashStore.exactMatches(Arrays.copyOf(this.items, this.size), false);
+
+			return HammingStores.joinWithLater(this.items, this.size, (i, later) -> {
+				for (int id : this.withinDistance(this.words, i * this.wordCount, threshold, i + 1)) {
+					later.accept(id);
+				}
+			});
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ImageHash> toList() throws IOException {
+		return HammingStores.read(this.lock, () -> HammingStores.toList(this.items, this.size));
+	}
+
+	/**********/
+	/* Recall */
+	/**********/
+
+	/**
+	 * @param distance The hamming distance between a query and a stored hash
+	 * @return The probability that the query collides with the stored hash in at
+	 *         least one table, 1 - (1 - C(n - d, k) / C(n, k))^L. Or NaN if
+	 *         nothing has been stored yet, and so the length of the hashes isn't
+	 *         known.
+	 */
+	public double expectedRecall(int distance) {
+		if (distance < 0) throw new IllegalArgumentException("The distance cannot be negative.");
+		this.lock.readLock().lock();
+		try {
+			if (this.alg == null) return Double.NaN;
+			int n = this.alg.getHashLength();
+			// The chance that none of the k sampled bits are among the d that differ.
+			double collide = 1;
+			for (int i = 0; i < this.bitsPerTable; i++) {
+				collide *= Math.max(0, n - distance - i) / (double) (n - i);
+			}
+			return 1 - Math.pow(1 - collide, this.tableCount);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Measures how many of the matches to a random sample of the stored hashes
+	 * this store finds, by comparing against a linear scan. The scan is over the
+	 * whole store for every hash in the sample, so keep the sample small.
+	 *
+	 * @param samples The number of stored hashes to search around
+	 * @param mode    The threshold to search within
+	 * @return The fraction of the other hashes within the threshold of each
+	 *         sampled hash that a search finds, over the whole sample. 1 if there
+	 *         are none to find.
+	 */
+	public double measureRecall(int samples, MatchMode mode) {
+		if (samples < 1) throw new IllegalArgumentException("There must be at least one sample.");
+		this.lock.readLock().lock();
+		try {
+			if (this.size == 0) return 1;
+			int threshold = this.alg.matchThreshold(mode);
+			Random r = new Random(this.seed);
+
+			long expected = 0, found = 0;
+			for (int s = 0; s < samples; s++) {
+				int query = r.nextInt(this.size), offset = query * this.wordCount;
+				for (int id = 0; id < this.size; id++) {
+					if (id != query && HashUtils.hammingDistanceAtMost(this.words, offset, this.words,
+							id * this.wordCount, this.wordCount, threshold) <= threshold)
+						expected++;
+				}
+				// Minus itself.
+				found += this.withinDistance(this.words, offset, threshold, 0).length - 1;
+			}
+			return expected == 0 ? 1 : found / (double) expected;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+}
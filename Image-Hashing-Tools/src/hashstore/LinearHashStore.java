@@ -11,11 +11,11 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Vector;
 import java.util.stream.Collectors;
 
 import hash.IHashAlgorithm;
 import hash.ImageHash;
+import hash.ImageHashParser;
 import hash.MatchMode;
 import image.PixelUtils;
 import pipeline.dedup.HashMatch;
@@ -128,19 +128,47 @@ public class LinearHashStore implements HashStore, Closeable {
 	}
 
 	@Override
-	public synchronized List<ImageHash> toList() throws IOException {
-		List<ImageHash> l = new ArrayList<>();
+	public synchronized List<List<ImageHash>> kNNBatch(List<ImageHash> queries, int k) throws IOException {
+		return this.scan(BatchScan.kNN(queries, k));
+	}
+
+	@Override
+	public synchronized List<List<ImageHash>> allWithinDistanceBatch(List<ImageHash> queries, double distance)
+			throws IOException {
+		return this.scan(BatchScan.withinDistance(queries, distance));
+	}
+
+	// Reads and parses the file once for the whole batch, rather than once per
+	// query.
+	private List<List<ImageHash>> scan(BatchScan batch) throws IOException {
+		List<ImageHash> block = new ArrayList<>(BatchScan.STORED_BLOCK_SIZE);
 		BufferedReader r = makeReader();
-		String line;
-		while ((line = r.readLine()) != null) {
-			try {
-				l.add(ImageHash.fromString(line));
-			} catch (ClassNotFoundException e) {
-				throw new IOException(e);
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				block.add(ImageHash.fromString(line));
+				if (block.size() == BatchScan.STORED_BLOCK_SIZE) {
+					batch.scan(block);
+					block.clear();
+				}
 			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			r.close();
+		}
+		batch.scan(block);
+		return batch.results();
+	}
+
+	@Override
+	public synchronized List<ImageHash> toList() throws IOException {
+		this.writer.flush();
+		try {
+			return ImageHashParser.readAll(this.textFile);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
 		}
-		r.close();
-		return l;
 	}
 
 	@Override
@@ -165,66 +193,10 @@ public class LinearHashStore implements HashStore, Closeable {
 	@Override
 	public List<HashMatch> findMatches(MatchMode mode) {
 		try {
-			List<ImageHash> allHashes = new ArrayList<>();
-			{
-				BufferedReader reader = makeReader();
-				try {
-					String line;
-					while ((line = reader.readLine()) != null) {
-						try {
-							allHashes.add(ImageHash.fromString(line));
-						} catch (ClassNotFoundException e) {
-							throw new IOException(e);
-						}
-					}
-				} finally {
-					reader.close();
-				}
-			}
+			List<ImageHash> allHashes = this.toList();
 			if (allHashes.isEmpty()) return new ArrayList<>();
 			this.alg = allHashes.get(0).getAlgorithm();
-			final IHashAlgorithm alg = this.alg;
-			final List<HashMatch> results = new Vector<>();
-
-			List<Pair<List<ImageHash>, List<ImageHash>>> currentHashesAndRests = new ArrayList<>();
-
-			int atATime = 500;
-
-			for (int i = 0; i < allHashes.size(); i += atATime) {
-				// Find current position,
-				int endIndex = Math.min(allHashes.size(), i + atATime);
-				List<ImageHash> currentHashes = allHashes.subList(i, endIndex);
-				List<ImageHash> rest = allHashes.subList(endIndex, allHashes.size());
-
-				currentHashesAndRests.add(new Pair<>(currentHashes, rest));
-			}
-
-			// Try to find duplicates inside each of the sublists by n^2 brute force.
-			currentHashesAndRests.parallelStream().map(currentPartitionAndRest -> currentPartitionAndRest.getKey())
-					.forEach(currentHashes -> {
-						for (int y = 0; y < currentHashes.size(); y++) {
-							for (int z = y + 1; z < currentHashes.size(); z++) {
-								if (currentHashes.get(y).getSource().equals(currentHashes.get(z).getSource())) continue;
-								if (alg.matches(currentHashes.get(y), currentHashes.get(z), mode))
-									results.add(new HashMatch(currentHashes.get(y), currentHashes.get(z)));
-							}
-						}
-					});
-
-			// Compare each of the (now internally consistent) list of hashes to the rest of
-			// the hashes, all at once and in parallel.
-			currentHashesAndRests.parallelStream().forEach(currentHashesAndRest -> {
-				final List<ImageHash> currentHashes = currentHashesAndRest.getKey();
-				final List<ImageHash> rest = currentHashesAndRest.getValue();
-				rest.stream().forEach(h -> {
-					for (ImageHash c : currentHashes) {
-						if (h.getSource().equals(c.getSource())) continue;
-						if (alg.matches(h, c, mode)) results.add(new HashMatch(h, c));
-					}
-				});
-			});
-
-			return results;
+			return HashStore.selfJoin(allHashes.toArray(new ImageHash[allHashes.size()]), this.alg, mode, true);
 		} catch (IOException e) {
 			System.err.println("There was a fatal error trying to write to read from the list of hashes.");
 			System.exit(2);
@@ -8,7 +8,6 @@ import java.util.Objects;
 import java.util.Vector;
 import java.util.stream.Collectors;
 
-import hash.IHashAlgorithm;
 import hash.ImageHash;
 import hash.MatchMode;
 import pipeline.dedup.HashMatch;
@@ -28,7 +27,7 @@ public class ListHashStore implements HashStore {
 
 	@Override
 	public ImageHash NN(ImageHash h) throws IOException {
-		return hashes.parallelStream().map(hash -> new Pair<>(h, h.distance(hash)))
+		return hashes.parallelStream().map(hash -> new Pair<>(hash, h.distance(hash)))
 				.min((pair1, pair2) -> pair1.getValue().compareTo(pair2.getValue())).map(pair -> pair.getKey())
 				.orElse(null);
 	}
@@ -38,7 +37,7 @@ public class ListHashStore implements HashStore {
 		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
 		Objects.nonNull(h);
 
-		List<Pair<ImageHash, Double>> sorted = hashes.parallelStream().map(hash -> new Pair<>(h, h.distance(hash)))
+		List<Pair<ImageHash, Double>> sorted = hashes.parallelStream().map(hash -> new Pair<>(hash, h.distance(hash)))
 				.sorted((pair1, pair2) -> pair1.getValue().compareTo(pair2.getValue())).collect(Collectors.toList());
 
 		return new ArrayList<>(sorted.stream().map(p -> p.getKey()).collect(Collectors.toList())
@@ -47,10 +46,28 @@ public class ListHashStore implements HashStore {
 
 	@Override
 	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
-		return hashes.parallelStream().map(hash -> new Pair<>(h, h.distance(hash)))
+		return hashes.parallelStream().map(hash -> new Pair<>(hash, h.distance(hash)))
 				.filter(pair -> pair.getValue() <= distance).map(pair -> pair.getKey()).collect(Collectors.toList());
 	}
 
+	@Override
+	public List<List<ImageHash>> kNNBatch(List<ImageHash> queries, int k) {
+		return this.scan(BatchScan.kNN(queries, k));
+	}
+
+	@Override
+	public List<List<ImageHash>> allWithinDistanceBatch(List<ImageHash> queries, double distance) {
+		return this.scan(BatchScan.withinDistance(queries, distance));
+	}
+
+	private List<List<ImageHash>> scan(BatchScan batch) {
+		List<ImageHash> snapshot = new ArrayList<>(hashes);
+		for (int i = 0; i < snapshot.size(); i += BatchScan.STORED_BLOCK_SIZE) {
+			batch.scan(snapshot.subList(i, Math.min(snapshot.size(), i + BatchScan.STORED_BLOCK_SIZE)));
+		}
+		return batch.results();
+	}
+
 	@Override
 	public List<ImageHash> toList() throws IOException { return new ArrayList<>(hashes); }
 
@@ -60,19 +77,8 @@ public class ListHashStore implements HashStore {
 	@Override
 	public List<HashMatch> findMatches(MatchMode mode) {
 		ImageHash[] hashes = this.hashes.toArray(new ImageHash[this.hashes.size()]);
-		List<HashMatch> matches = new ArrayList<>();
-
-		if (hashes.length == 0) return matches;
-		IHashAlgorithm alg = hashes[0].getAlgorithm();
-
-		for (int i = 0; i < hashes.length; ++i) {
-			for (int j = i + 1; j < hashes.length; ++j) {
-				ImageHash h1 = hashes[i], h2 = hashes[j];
-				if (alg.matches(h1, h2, mode)) matches.add(new HashMatch(h1, h2));
-			}
-		}
-
-		return matches;
+		if (hashes.length == 0) return new ArrayList<>();
+		return HashStore.selfJoin(hashes, hashes[0].getAlgorithm(), mode, false);
 	}
 
 }
@@ -0,0 +1,378 @@
+package hashstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import hash.HashUtils;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.MatchMode;
+import pipeline.dedup.HashMatch;
+
+/**
+ * A HashStore that does multi-index hashing, for finding hashes within a small
+ * hamming distance of each other without comparing against everything.
+ *
+ * Every hash is split into m disjoint substrings, and there is one hash table
+ * per substring, from its value to the hashes that have it. If two hashes are
+ * within r bits of each other, then by the pigeonhole principle at least one of
+ * their substrings differs by at most floor(r / m) bits. So a query only has to
+ * look up every value within floor(r / m) bits of each of its substrings, and
+ * compare against what it finds there.
+ *
+ * How many substrings to use is a trade-off. Fewer, longer substrings make for
+ * smaller buckets, but a larger radius to enumerate around each one. By
+ * default, m is picked so that a search at the algorithm's
+ * {@link MatchMode#NORMAL} threshold enumerates at most one bit of difference
+ * per substring. For 64 bit hashes that's 3 substrings, and for 256 bit hashes,
+ * 10. When a radius is so large that enumerating it would cost more than
+ * looking at every hash, the store just looks at every hash.
+ *
+ * Unlike {@link VPHashStore}, nothing is ever rebuilt, so storing is cheap and
+ * the store can be the HasherOutput of a running ImageHasher. Safe to store to
+ * and query from many threads at once.
+ *
+ * @author apaz-cli
+ */
+public class MIHHashStore implements HashStore {
+
+	// Substrings are kept as ints.
+	public static final int MAX_SUBSTRING_LENGTH = 32;
+
+	// Roughly how many hashes can be compared against in the time it takes to
+	// look up one substring value. Searches that would take more lookups than the
+	// hashes they could be compared against, divided by this, scan instead.
+	private static final int PROBE_COST = 4;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Everything below is guarded by lock. All but the items, words, and size are
+	// set once, by the first store.
+	private IHashAlgorithm alg = null;
+	private int substrings;
+	private int wordCount;
+	// The first bit and number of bits of each substring.
+	private int[] starts, lengths;
+	private BucketTable[] tables;
+
+	private ImageHash[] items = new ImageHash[16];
+	private long[] words = new long[0];
+	private int size = 0;
+
+	public MIHHashStore() {
+		this(0);
+	}
+
+	/**
+	 * @param substrings The number of substrings to split each hash into, or 0 to
+	 *                   pick based on the length of the first hash stored.
+	 */
+	public MIHHashStore(int substrings) {
+		if (substrings < 0) throw new IllegalArgumentException("The number of substrings cannot be negative.");
+		this.substrings = substrings;
+	}
+
+	public MIHHashStore(Collection<? extends ImageHash> hashes) {
+		this();
+		this.storeAll(hashes);
+	}
+
+	/**
+	 * @param hashLength The length of the hashes to be stored
+	 * @return The number of substrings that a search at the NORMAL threshold can
+	 *         handle by looking up every value within one bit of each one.
+	 */
+	public static int defaultSubstrings(int hashLength) {
+		int perTable = (MatchMode.NORMAL.maxDistance(hashLength) + 2) / 2;
+		int fitInInts = (hashLength + MAX_SUBSTRING_LENGTH - 1) / MAX_SUBSTRING_LENGTH;
+		return Math.max(1, Math.max(perTable, fitInInts));
+	}
+
+	/**
+	 * @return The number of substrings each hash is split into, or 0 if nothing
+	 *         has been stored yet and it hasn't been picked.
+	 */
+	public int getSubstrings() {
+		this.lock.readLock().lock();
+		try {
+			return this.substrings;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		return HammingStores.read(this.lock, () -> this.size);
+	}
+
+	/***********/
+	/* Storing */
+	/***********/
+
+	@Override
+	public void store(ImageHash hash) {
+		HammingStores.store(this, hash);
+	}
+
+	@Override
+	public void storeAll(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) return;
+
+		this.lock.writeLock().lock();
+		try {
+			IHashAlgorithm alg = HammingStores.checkStored("MIHHashStore", this.alg, hashes);
+			if (this.alg == null) this.initialize(alg);
+
+			int newSize = this.size + hashes.size();
+			if (newSize > this.items.length) {
+				int capacity = Math.max(newSize, this.items.length * 2);
+				this.items = Arrays.copyOf(this.items, capacity);
+				this.words = Arrays.copyOf(this.words, capacity * this.wordCount);
+			}
+			for (ImageHash h : hashes) {
+				int id = this.size++;
+				this.items[id] = h;
+				System.arraycopy(h.getWords(), 0, this.words, id * this.wordCount, this.wordCount);
+				for (int t = 0; t < this.substrings; t++) {
+					this.tables[t].add(this.substring(this.words, id * this.wordCount, t), id);
+				}
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	// Holding the write lock.
+	private void initialize(IHashAlgorithm alg) {
+		int hashLength = alg.getHashLength();
+		int m = this.substrings == 0 ? defaultSubstrings(hashLength) : this.substrings;
+		if (m > hashLength) throw new IllegalArgumentException(
+				"Cannot split a hash of length " + hashLength + " into " + m + " substrings.");
+		if ((hashLength + m - 1) / m > MAX_SUBSTRING_LENGTH) throw new IllegalArgumentException(
+				"Splitting a hash of length " + hashLength + " into " + m + " substrings makes substrings longer than "
+						+ MAX_SUBSTRING_LENGTH + " bits. Use at least "
+						+ ((hashLength + MAX_SUBSTRING_LENGTH - 1) / MAX_SUBSTRING_LENGTH) + ".");
+
+		// As even as possible.
+		this.starts = new int[m];
+		this.lengths = new int[m];
+		this.tables = new BucketTable[m];
+		for (int t = 0; t < m; t++) {
+			this.starts[t] = t * hashLength / m;
+			this.lengths[t] = (t + 1) * hashLength / m - this.starts[t];
+			this.tables[t] = new BucketTable();
+		}
+		this.substrings = m;
+		this.wordCount = ImageHash.wordCount(hashLength);
+		this.words = new long[this.items.length * this.wordCount];
+		this.alg = alg;
+	}
+
+	// Reads substring t of the hash whose words start at offset. The hashes are
+	// big endian, so bit 0 is the highest bit of the first word.
+	private int substring(long[] words, int offset, int t) {
+		int start = this.starts[t], length = this.lengths[t];
+		int shift = start & 63;
+		long bits = words[offset + (start >>> 6)] << shift;
+		if (shift + length > 64) bits |= words[offset + (start >>> 6) + 1] >>> (64 - shift);
+		return (int) (bits >>> (64 - length));
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	@Override
+	public ImageHash NN(ImageHash h) throws IOException {
+		return HammingStores.NN(this, h);
+	}
+
+	/**
+	 * Searches outwards one bit of substring difference at a time. Once every
+	 * value within L bits of every substring has been looked up, every hash
+	 * within m * (L + 1) - 1 bits of the query has been found, so the search
+	 * stops as soon as there are k of those.
+	 */
+	@Override
+	public List<ImageHash> kNN(ImageHash h, int k) throws IOException {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			k = Math.min(k, this.size);
+			if (k == 0) return new ArrayList<>();
+
+			long[] q = h.getWords();
+			int[] qs = this.substrings(q);
+			// Each hash is only found once, at the level and table it's first seen in.
+			Entries found = new Entries(16);
+			for (int level = 0;; level++) {
+				if (this.probes(level) * PROBE_COST > this.size) return this.kNNScan(q, k);
+				this.searchLevel(q, qs, level, Integer.MAX_VALUE, 0, found::add);
+
+				long bound = (long) this.substrings * (level + 1) - 1;
+				int complete = 0;
+				for (int i = 0; i < found.count; i++) {
+					if (found.packed[i] >>> 32 <= bound) complete++;
+				}
+				if (complete >= k || found.count == this.size) return this.nearest(found, k);
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	private List<ImageHash> kNNScan(long[] q, int k) {
+		Entries all = new Entries(this.size);
+		for (int id = 0; id < this.size; id++) {
+			all.add(id, HashUtils.hammingDistance(q, 0, this.words, id * this.wordCount, this.wordCount));
+		}
+		return this.nearest(all, k);
+	}
+
+	// The k nearest entries, ties going to whichever was stored first.
+	private List<ImageHash> nearest(Entries entries, int k) {
+		long[] sorted = Arrays.copyOf(entries.packed, entries.count);
+		Arrays.sort(sorted);
+		List<ImageHash> nearest = new ArrayList<>(k);
+		for (int i = 0; i < k; i++) {
+			nearest.add(this.items[(int) sorted[i]]);
+		}
+		return nearest;
+	}
+
+	// A growable list of (distance << 32 | id), so that sorting them sorts by
+	// distance and nothing is boxed.
+	private static class Entries {
+		long[] packed;
+		int count = 0;
+
+		Entries(int capacity) {
+			this.packed = new long[Math.max(1, capacity)];
+		}
+
+		void add(int id, int distance) {
+			if (this.count == this.packed.length) this.packed = Arrays.copyOf(this.packed, this.count * 2);
+			this.packed[this.count++] = ((long) distance << 32) | id;
+		}
+	}
+
+	@Override
+	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			HammingStores.checkQuery(this.alg, h);
+			List<ImageHash> found = new ArrayList<>();
+			if (this.size == 0) return found;
+			int radius = HammingStores.radius(distance, this.alg.getHashLength());
+			if (radius < 0) return found;
+			this.rangeSearch(h.getWords(), 0, radius, 0, (id, d) -> found.add(this.items[id]));
+			return found;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<HashMatch> findMatches(MatchMode mode) {
+		this.lock.readLock().lock();
+		try {
+			if (this.size == 0) return new ArrayList<>();
+			int threshold = this.alg.matchThreshold(mode);
+			if (threshold == 0) return HashStore.exactMatches(Arrays.copyOf(this.items, this.size), false);
+
+			return HammingStores.joinWithLater(this.items, this.size, (i, later) -> this.rangeSearch(this.words,
+					i * this.wordCount, threshold, i + 1, (id, d) -> later.accept(id)));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ImageHash> toList() throws IOException {
+		return HammingStores.read(this.lock, () -> HammingStores.toList(this.items, this.size));
+	}
+
+	// Holding the read lock. Calls hit once for every hash with an id of at least
+	// minId within radius of the query whose words start at q[offset].
+	private void rangeSearch(long[] q, int offset, int radius, int minId, HammingStores.Hit hit) {
+		int maxLevel = radius / this.substrings;
+		if (this.probes(maxLevel) * PROBE_COST > this.size - minId) {
+			for (int id = minId; id < this.size; id++) {
+				int d = HashUtils.hammingDistanceAtMost(q, offset, this.words, id * this.wordCount, this.wordCount,
+						radius);
+				if (d <= radius) hit.hit(id, d);
+			}
+			return;
+		}
+
+		if (offset != 0) q = Arrays.copyOfRange(q, offset, offset + this.wordCount);
+		int[] qs = this.substrings(q);
+		for (int level = 0; level <= maxLevel; level++) {
+			this.searchLevel(q, qs, level, radius, minId, hit);
+		}
+	}
+
+	// Looks up every value exactly level bits away from each substring of the
+	// query, and calls hit for every hash there within radius that hasn't been
+	// seen at an earlier level or in an earlier table. That's the hashes whose
+	// closest substring to the query's is level bits away, and the first one
+	// that close is this table's.
+	private void searchLevel(long[] q, int[] qs, int level, int radius, int minId, HammingStores.Hit hit) {
+		for (int t = 0; t < this.substrings; t++) {
+			if (level > this.lengths[t]) continue;
+
+			// Gosper's hack, for every mask of level bits out of lengths[t].
+			long mask = (1L << level) - 1, limit = 1L << this.lengths[t];
+			while (mask < limit) {
+				for (int id = this.tables[t].first(qs[t] ^ (int) mask); id != -1; id = this.tables[t].next[id]) {
+					// Buckets go from the last stored to the first.
+					if (id < minId) break;
+					int offset = id * this.wordCount;
+					int d = HashUtils.hammingDistanceAtMost(q, 0, this.words, offset, this.wordCount, radius);
+					if (d <= radius && this.firstSeenIn(qs, offset, t, level)) hit.hit(id, d);
+				}
+				if (mask == 0) break;
+				long lowest = mask & -mask, ripple = mask + lowest;
+				mask = (((ripple ^ mask) >>> 2) / lowest) | ripple;
+			}
+		}
+	}
+
+	private boolean firstSeenIn(int[] qs, int offset, int table, int level) {
+		for (int t = 0; t < this.substrings; t++) {
+			if (t == table) continue;
+			int d = Integer.bitCount(qs[t] ^ this.substring(this.words, offset, t));
+			if (d < level || (d == level && t < table)) return false;
+		}
+		return true;
+	}
+
+	private int[] substrings(long[] q) {
+		int[] qs = new int[this.substrings];
+		for (int t = 0; t < this.substrings; t++) {
+			qs[t] = this.substring(q, 0, t);
+		}
+		return qs;
+	}
+
+	// The number of table lookups it takes to search every substring out to the
+	// given level.
+	private long probes(int level) {
+		long probes = 0;
+		for (int length : this.lengths) {
+			long choose = 1;
+			for (int l = 0; l <= Math.min(level, length); l++) {
+				probes += choose;
+				if (probes > Integer.MAX_VALUE) return probes;
+				choose = choose * (length - l) / (l + 1);
+			}
+		}
+		return probes;
+	}
+
+}
@@ -0,0 +1,710 @@
+package hashstore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import hash.AlgLoader;
+import hash.ComparisonType;
+import hash.HashUtils;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.MatchMode;
+import image.PixelUtils;
+import pipeline.dedup.HashMatch;
+import utils.NeighborHeap;
+
+/**
+ * A HashStore that keeps its hashes off the heap, in a memory-mapped file, so
+ * that it can hold far more of them than would fit as ImageHash objects. Each
+ * hash is a fixed-width record of its words and the offset of its source in a
+ * second file next to it, named the same with ".sources" on the end. Searches
+ * scan the records straight out of the mapping, and only the results are made
+ * into ImageHashes.
+ *
+ * Opening a store only maps the file, so it's instant however big the file is,
+ * and the operating system pages the records in as they're scanned. The file
+ * grows by remapping as hashes are stored, in segments of at most a gigabyte,
+ * because that's as much as one mapping can hold.
+ *
+ * The record file is laid out as a header, padded to HEADER_SIZE bytes, and
+ * then the records, all big-endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * long   number of hashes
+ * int    hash length in bits
+ * UTF    algorithm name      (as DataOutput.writeUTF())
+ * UTF    algorithm arguments
+ * each record: ImageHash.wordCount(length) words, then a long offset of its
+ * source in the sources file, or -1 for no source
+ * </pre>
+ *
+ * The sources file is each source as an int length and then that many bytes of
+ * UTF-8.
+ *
+ * Only supports algorithms compared by hamming distance. Safe to store to and
+ * query from many threads at once.
+ *
+ * @author apaz-cli
+ */
+public class MappedHashStore implements HashStore, Closeable {
+
+	// "IHMS"
+	static final int MAGIC = 0x49484D53;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 4096;
+	private static final int COUNT_POSITION = 8;
+
+	// The largest a single mapping gets. Package visible, so that tests can open
+	// stores with much smaller segments.
+	static final int MAX_SEGMENT_BYTES = 1 << 30;
+	// The capacity of the first segment, in records. Each grows by doubling.
+	private static final int INITIAL_CAPACITY = 1024;
+	// How many records each task of a scan looks at.
+	private static final int SCAN_CHUNK_SIZE = 1 << 16;
+	// How many records each task of findMatches() compares against the rest.
+	private static final int JOIN_BLOCK_SIZE = 256;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final IHashAlgorithm alg;
+	private final int wordCount;
+	private final int recordBytes;
+	// Every segment but the last holds exactly this many records.
+	private final int segmentRecords;
+
+	private final File sourceFile;
+	private final FileChannel records, sources;
+	private final MappedByteBuffer header;
+
+	// Guarded by lock.
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private long capacity = 0;
+	private int size;
+	private long sourcesEnd;
+	private boolean closed = false;
+
+	/**
+	 * Opens an existing store.
+	 *
+	 * @param file The record file of the store
+	 * @throws IOException If it can't be read, isn't a store, or its algorithm
+	 *                     isn't registered with {@link AlgLoader}.
+	 */
+	public MappedHashStore(File file) throws IOException {
+		this(file, null);
+	}
+
+	/**
+	 * Opens a store, or creates an empty one if the file doesn't exist or is
+	 * empty.
+	 *
+	 * @param file The record file of the store
+	 * @param alg  The algorithm of the hashes to be stored. If the store already
+	 *             exists, it has to be the same as the one it was made with.
+	 */
+	public MappedHashStore(File file, IHashAlgorithm alg) throws IOException {
+		this(file, alg, MAX_SEGMENT_BYTES);
+	}
+
+	// Records are laid out one after another however the file is mapped, so a
+	// store can be reopened with a different segment size.
+	MappedHashStore(File file, IHashAlgorithm alg, int maxSegmentBytes) throws IOException {
+		PixelUtils.assertNotNull("file", file);
+		boolean create = !file.exists() || file.length() == 0;
+		if (create && alg == null) throw new FileNotFoundException(file + " does not exist.");
+		if (alg != null && alg.getComparisonType() != ComparisonType.HAMMING) throw new IllegalArgumentException(
+				"MappedHashStore only supports algorithms compared by hamming distance. Got: " + alg.algName());
+
+		this.sourceFile = new File(file.getPath() + ".sources");
+		this.records = new RandomAccessFile(file, "rw").getChannel();
+		FileChannel sources = null;
+		try {
+			sources = new RandomAccessFile(this.sourceFile, "rw").getChannel();
+			// Mapping it would grow it.
+			if (!create && this.records.size() < HEADER_SIZE) throw new IOException(file + " is not a MappedHashStore.");
+			this.header = this.records.map(MapMode.READ_WRITE, 0, HEADER_SIZE);
+			if (create) {
+				this.writeHeader(alg);
+				this.alg = alg;
+			} else {
+				this.alg = this.readHeader(file);
+				if (alg != null && !alg.algEquals(this.alg)) throw new IllegalArgumentException(file
+						+ " holds hashes from " + this.alg.algName() + " with " + this.alg.toArguments()
+						+ ", not from " + alg.algName() + " with " + alg.toArguments() + ".");
+			}
+		} catch (IOException | RuntimeException e) {
+			this.records.close();
+			if (sources != null) sources.close();
+			throw e;
+		}
+		this.sources = sources;
+		this.sourcesEnd = sources.size();
+
+		this.wordCount = ImageHash.wordCount(this.alg.getHashLength());
+		this.recordBytes = (this.wordCount + 1) * 8;
+		this.segmentRecords = Math.min(MAX_SEGMENT_BYTES, maxSegmentBytes) / this.recordBytes;
+		if (this.segmentRecords < 1) {
+			this.close();
+			throw new IllegalArgumentException("A segment must hold at least one record.");
+		}
+		long fileRecords = (this.records.size() - HEADER_SIZE) / this.recordBytes;
+		this.ensureCapacity(Math.max(this.size, fileRecords));
+	}
+
+	private void writeHeader(IHashAlgorithm alg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(0);
+		out.writeInt(alg.getHashLength());
+		out.writeUTF(alg.algName());
+		out.writeUTF(alg.toArguments());
+		if (out.size() > HEADER_SIZE) throw new IllegalArgumentException(
+				"The name and arguments of " + alg.algName() + " are too long to fit in the header.");
+		this.header.put(bytes.toByteArray());
+		this.size = 0;
+	}
+
+	private IHashAlgorithm readHeader(File file) throws IOException {
+		if (this.header.getInt(0) != MAGIC) throw new IOException(file + " is not a MappedHashStore.");
+		int version = this.header.getInt(4);
+		if (version != VERSION) throw new IOException(
+				file + " is version " + version + " of the MappedHashStore format, which can't be read here.");
+		long count = this.header.getLong(COUNT_POSITION);
+		if (count < 0 || count > Integer.MAX_VALUE) throw new IOException(file + " has a corrupt header.");
+		this.size = (int) count;
+
+		int length = this.header.getInt(16);
+		byte[] rest = new byte[HEADER_SIZE - 20];
+		((ByteBuffer) this.header.duplicate().position(20)).get(rest);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(rest));
+		String algName = in.readUTF(), algArgs = in.readUTF();
+		IHashAlgorithm alg;
+		try {
+			alg = AlgLoader.loadAlgorithm(algName, algArgs);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		if (length != alg.getHashLength()) throw new IOException("The header of " + file + " says its hashes are "
+				+ length + " bits, but " + algName + " with " + algArgs + " makes " + alg.getHashLength() + ".");
+		return alg;
+	}
+
+	// Holding the write lock, or in the constructor. Maps enough of the file to
+	// hold that many records, growing the last segment if it's not full and adding
+	// more if it is.
+	private void ensureCapacity(long records) throws IOException {
+		while (this.capacity < records) {
+			int last = this.segments.length - 1;
+			long inLast = last < 0 ? this.segmentRecords : this.segments[last].capacity() / this.recordBytes;
+			if (inLast < this.segmentRecords) {
+				long needed = records - (long) last * this.segmentRecords;
+				long grown = Math.min(this.segmentRecords, Math.max(inLast * 2, needed));
+				this.segments[last] = this.mapSegment(last, grown);
+				this.capacity = (long) last * this.segmentRecords + grown;
+			} else {
+				long first = Math.min(this.segmentRecords, Math.max(INITIAL_CAPACITY, records - this.capacity));
+				this.segments = Arrays.copyOf(this.segments, last + 2);
+				this.segments[last + 1] = this.mapSegment(last + 1, first);
+				this.capacity += first;
+			}
+		}
+	}
+
+	private MappedByteBuffer mapSegment(int segment, long records) throws IOException {
+		long position = HEADER_SIZE + (long) segment * this.segmentRecords * this.recordBytes;
+		return this.records.map(MapMode.READ_WRITE, position, records * this.recordBytes);
+	}
+
+	public int size() {
+		return HammingStores.read(this.lock, () -> this.size);
+	}
+
+	public IHashAlgorithm getAlgorithm() {
+		return this.alg;
+	}
+
+	/***********/
+	/* Storing */
+	/***********/
+
+	@Override
+	public void store(ImageHash hash) {
+		HammingStores.store(this, hash);
+	}
+
+	@Override
+	public void storeAll(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) return;
+
+		this.lock.writeLock().lock();
+		try {
+			this.checkOpen();
+			for (ImageHash h : hashes) {
+				if (!h.getAlgorithm().algEquals(this.alg)) {
+					throw new IllegalArgumentException("Cannot go from a MappedHashStore of one algorithm type to another. "
+							+ "At least one of the hashes passed to this method came from a different algorithm. Please keep them seperate.");
+				}
+			}
+			long newSize = (long) this.size + hashes.size();
+			if (newSize > Integer.MAX_VALUE) throw new IllegalStateException("A MappedHashStore is full at "
+					+ Integer.MAX_VALUE + " hashes.");
+
+			// The sources are written before the records, and the records before the
+			// count, so that the count never covers anything that isn't there. The file
+			// is grown first, so that the sources are never written for records that
+			// can't be.
+			this.ensureCapacity(newSize);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			long[] sourceOffsets = new long[hashes.size()];
+			int i = 0;
+			for (ImageHash h : hashes) {
+				String source = h.getSource();
+				if (source == null) {
+					sourceOffsets[i++] = -1;
+				} else {
+					sourceOffsets[i++] = this.sourcesEnd + out.size();
+					byte[] utf8 = source.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(utf8.length);
+					out.write(utf8);
+				}
+			}
+			ByteBuffer written = ByteBuffer.wrap(bytes.toByteArray());
+			while (written.hasRemaining()) {
+				this.sourcesEnd += this.sources.write(written, this.sourcesEnd);
+			}
+
+			int id = this.size;
+			i = 0;
+			for (ImageHash h : hashes) {
+				MappedByteBuffer segment = this.segments[id / this.segmentRecords];
+				int position = (id % this.segmentRecords) * this.recordBytes;
+				for (long w : h.getWords()) {
+					segment.putLong(position, w);
+					position += 8;
+				}
+				segment.putLong(position, sourceOffsets[i++]);
+				id++;
+			}
+			this.size = (int) newSize;
+			this.header.putLong(COUNT_POSITION, newSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	// Calls visit for every hash within radius, and keeps searching within what
+	// it returns.
+	@FunctionalInterface
+	private static interface Visitor {
+		int visit(int id, int distance);
+	}
+
+	private void checkOpen() {
+		if (this.closed) throw new IllegalStateException("This MappedHashStore has been closed.");
+	}
+
+	private void checkQuery(ImageHash h) {
+		this.checkOpen();
+		if (h == null) throw new IllegalArgumentException("The query cannot be null.");
+		if (!this.alg.algEquals(h.getAlgorithm())) throw new IllegalArgumentException("Algorithm " + h.getAlgName()
+				+ " is not comparable to the algorithm of this store, " + this.alg.algName() + ".");
+	}
+
+	// Holding the read lock. Scans the records with ids in [from, to), one
+	// segment at a time.
+	private void scan(long[] q, int from, int to, int radius, Visitor visitor) {
+		int id = from;
+		while (id < to) {
+			int s = id / this.segmentRecords;
+			MappedByteBuffer segment = this.segments[s];
+			int end = (int) Math.min(to, (long) (s + 1) * this.segmentRecords);
+			for (int position = (id - s * this.segmentRecords) * this.recordBytes; id < end; id++) {
+				int d = 0;
+				for (int w = 0; w < this.wordCount && d <= radius; w++) {
+					d += Long.bitCount(q[w] ^ segment.getLong(position + w * 8));
+				}
+				if (d <= radius) radius = visitor.visit(id, d);
+				position += this.recordBytes;
+			}
+		}
+	}
+
+	private int chunks() {
+		return (this.size + SCAN_CHUNK_SIZE - 1) / SCAN_CHUNK_SIZE;
+	}
+
+	@Override
+	public ImageHash NN(ImageHash h) throws IOException {
+		return HammingStores.NN(this, h);
+	}
+
+	// Ties go to whichever was stored first.
+	@Override
+	public List<ImageHash> kNN(ImageHash h, int k) throws IOException {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		this.lock.readLock().lock();
+		try {
+			this.checkQuery(h);
+			final int n = Math.min(k, this.size);
+			if (n == 0) return new ArrayList<>();
+
+			long[] q = h.getWords();
+			long[] nearest = IntStream.range(0, this.chunks()).parallel().mapToObj(c -> {
+				NeighborHeap heap = new NeighborHeap(n);
+				int from = c * SCAN_CHUNK_SIZE, to = Math.min(this.size, from + SCAN_CHUNK_SIZE);
+				this.scan(q, from, to, Integer.MAX_VALUE, (id, d) -> {
+					heap.offer(d, id);
+					return heap.radius();
+				});
+				return heap.sorted();
+			}).flatMapToLong(Arrays::stream).sorted().limit(n).toArray();
+
+			List<ImageHash> found = new ArrayList<>(n);
+			for (long entry : nearest) {
+				found.add(this.get((int) entry));
+			}
+			return found;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// In the order they were stored.
+	@Override
+	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			this.checkQuery(h);
+			List<ImageHash> found = new ArrayList<>();
+			if (this.size == 0) return found;
+			int radius = HammingStores.radius(distance, this.alg.getHashLength());
+			if (radius < 0) return found;
+
+			long[] q = h.getWords();
+			int[] ids = IntStream.range(0, this.chunks()).parallel().mapToObj(c -> {
+				IntStream.Builder hits = IntStream.builder();
+				int from = c * SCAN_CHUNK_SIZE, to = Math.min(this.size, from + SCAN_CHUNK_SIZE);
+				this.scan(q, from, to, radius, (id, d) -> {
+					hits.add(id);
+					return radius;
+				});
+				return hits.build();
+			}).flatMapToInt(s -> s).toArray();
+
+			for (int id : ids) {
+				found.add(this.get(id));
+			}
+			return found;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// Each block of records is read out of the mapping once for all the queries,
+	// rather than once for each of them. Only the results are given their sources.
+	@Override
+	public List<List<ImageHash>> kNNBatch(List<ImageHash> queries, int k) throws IOException {
+		return this.scan(queries, BatchScan.kNN(queries, k));
+	}
+
+	@Override
+	public List<List<ImageHash>> allWithinDistanceBatch(List<ImageHash> queries, double distance)
+			throws IOException {
+		return this.scan(queries, BatchScan.withinDistance(queries, distance));
+	}
+
+	private List<List<ImageHash>> scan(List<ImageHash> queries, BatchScan batch) throws IOException {
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			for (ImageHash q : queries) {
+				this.checkQuery(q);
+			}
+			List<ImageHash> block = new ArrayList<>(BatchScan.STORED_BLOCK_SIZE);
+			for (int id = 0; id < this.size; id++) {
+				block.add(new ImageHash(this.alg, this.words(id), null));
+				if (block.size() == BatchScan.STORED_BLOCK_SIZE || id == this.size - 1) {
+					batch.scan(block);
+					block.clear();
+				}
+			}
+			// Records are scanned in order, so how many came before one is its id.
+			Map<Integer, ImageHash> found = new HashMap<>();
+			return batch.results(id -> this.matched(found, (int) id));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Groups identical records first, with a hash table keyed on their words as
+	 * they sit in the mapping, and every pair within a group matches. For exact
+	 * matches that's all there is to do. Otherwise, blocks of the first record of
+	 * each group are compared against the first records stored after them, so
+	 * that each record is read once per block rather than once per pair, and the
+	 * matches are expanded back out to their groups. Only the hashes that match
+	 * something are made into ImageHashes, once each.
+	 */
+	@Override
+	public List<HashMatch> findMatches(MatchMode mode) {
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			int threshold = this.alg.matchThreshold(mode);
+
+			// The next record after each one with the same words, or -1.
+			int[] next = new int[this.size];
+			int[] firsts = this.groupIdentical(next);
+
+			// (id << 32 | later id)
+			LongStream.Builder pairs = LongStream.builder();
+			for (int first : firsts) {
+				for (int i = first; i != -1; i = next[i]) {
+					for (int j = next[i]; j != -1; j = next[j]) {
+						pairs.add(((long) i << 32) | j);
+					}
+				}
+			}
+
+			// Distinct hashes are at least one bit apart.
+			if (threshold > 0) {
+				int blocks = (firsts.length + JOIN_BLOCK_SIZE - 1) / JOIN_BLOCK_SIZE;
+				// (index in firsts << 32 | later index)
+				long[] joined = IntStream.range(0, blocks).parallel().mapToObj(b -> {
+					LongStream.Builder found = LongStream.builder();
+					this.joinBlock(firsts, b * JOIN_BLOCK_SIZE, Math.min(firsts.length, (b + 1) * JOIN_BLOCK_SIZE),
+							threshold, found);
+					return found.build();
+				}).flatMapToLong(s -> s).toArray();
+
+				for (long pair : joined) {
+					for (int i = firsts[(int) (pair >>> 32)]; i != -1; i = next[i]) {
+						for (int j = firsts[(int) pair]; j != -1; j = next[j]) {
+							pairs.add(i < j ? ((long) i << 32) | j : ((long) j << 32) | i);
+						}
+					}
+				}
+			}
+
+			Map<Integer, ImageHash> matched = new HashMap<>();
+			List<HashMatch> matches = new ArrayList<>();
+			for (long pair : pairs.build().toArray()) {
+				matches.add(new HashMatch(this.matched(matched, (int) (pair >>> 32)), this.matched(matched, (int) pair)));
+			}
+			return matches;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// Holding the read lock. Links every record to the next one with the same
+	// words, and returns the first record of each group, in order. Open
+	// addressing, at most half full, with each slot holding the earliest id seen
+	// so far of a group + 1, or 0 if it's empty. The records are added from the
+	// last one back, so that each group is linked in order and its slot ends up
+	// holding its first record.
+	private int[] groupIdentical(int[] next) {
+		int capacity = Integer.highestOneBit(Math.max(1, this.size)) * 4;
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		long[] words = new long[this.wordCount], other = new long[this.wordCount];
+		for (int id = this.size - 1; id >= 0; id--) {
+			this.readWords(id, words);
+			next[id] = -1;
+			int slot = mix(words) & mask;
+			for (; table[slot] != 0; slot = (slot + 1) & mask) {
+				int later = table[slot] - 1;
+				if (Arrays.equals(words, this.readWords(later, other))) {
+					next[id] = later;
+					break;
+				}
+			}
+			table[slot] = id + 1;
+		}
+		return Arrays.stream(table).filter(entry -> entry != 0).map(entry -> entry - 1).sorted().toArray();
+	}
+
+	private static int mix(long[] words) {
+		long h = 0;
+		for (long w : words) {
+			h = (h ^ w) * 0x9E3779B97F4A7C15L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+
+	// Holding the read lock. Compares the records ids[from, to) against every
+	// record after each of them in ids, and adds the pairs of indices in ids that
+	// match.
+	private void joinBlock(int[] ids, int from, int to, int threshold, LongStream.Builder pairs) {
+		int count = to - from;
+		long[] block = new long[count * this.wordCount];
+		long[] other = new long[this.wordCount];
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(this.readWords(ids[from + i], other), 0, block, i * this.wordCount, this.wordCount);
+		}
+
+		for (int j = from + 1; j < ids.length; j++) {
+			this.readWords(ids[j], other);
+			for (int i = 0, queries = Math.min(count, j - from); i < queries; i++) {
+				int d = HashUtils.hammingDistanceAtMost(block, i * this.wordCount, other, 0, this.wordCount, threshold);
+				if (d <= threshold) pairs.add(((long) (from + i) << 32) | j);
+			}
+		}
+	}
+
+	// Holding the read lock.
+	private ImageHash matched(Map<Integer, ImageHash> matched, int id) throws IOException {
+		ImageHash h = matched.get(id);
+		if (h == null) {
+			h = this.get(id);
+			matched.put(id, h);
+		}
+		return h;
+	}
+
+	// Reads the sources file straight through rather than seeking to each one,
+	// since the records point into it in order. Skips to each record's offset, so
+	// that sources orphaned by a crash between writing them and the records are
+	// passed over.
+	@Override
+	public List<ImageHash> toList() throws IOException {
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			List<ImageHash> all = new ArrayList<>(this.size);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(this.sourceFile), HashFileWriter.BUFFER_SIZE))) {
+				long position = 0;
+				for (int id = 0; id < this.size; id++) {
+					long offset = this.sourceOffset(id);
+					String source = null;
+					if (offset >= 0 && offset < position) {
+						// Never written this way, but don't go backwards.
+						source = this.readSource(offset);
+					} else if (offset >= 0) {
+						for (long skip = offset - position; skip > 0;) {
+							long skipped = in.skip(skip);
+							if (skipped <= 0) throw new IOException(this.sourceFile + " ends early.");
+							skip -= skipped;
+						}
+						byte[] utf8 = new byte[in.readInt()];
+						in.readFully(utf8);
+						source = new String(utf8, StandardCharsets.UTF_8);
+						position = offset + 4 + utf8.length;
+					}
+					all.add(new ImageHash(this.alg, this.words(id), source));
+				}
+			}
+			return all;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/***********/
+	/* Records */
+	/***********/
+
+	private long[] words(int id) {
+		return this.readWords(id, new long[this.wordCount]);
+	}
+
+	// Reads the words of the record into the array, and returns it.
+	private long[] readWords(int id, long[] words) {
+		MappedByteBuffer segment = this.segments[id / this.segmentRecords];
+		int position = (id % this.segmentRecords) * this.recordBytes;
+		for (int w = 0; w < this.wordCount; w++) {
+			words[w] = segment.getLong(position + w * 8);
+		}
+		return words;
+	}
+
+	private long sourceOffset(int id) {
+		MappedByteBuffer segment = this.segments[id / this.segmentRecords];
+		return segment.getLong((id % this.segmentRecords) * this.recordBytes + this.wordCount * 8);
+	}
+
+	// Holding the read lock.
+	private ImageHash get(int id) throws IOException {
+		long offset = this.sourceOffset(id);
+		return new ImageHash(this.alg, this.words(id), offset < 0 ? null : this.readSource(offset));
+	}
+
+	private String readSource(long offset) throws IOException {
+		ByteBuffer length = this.readSources(offset, 4);
+		return new String(this.readSources(offset + 4, length.getInt()).array(), StandardCharsets.UTF_8);
+	}
+
+	private ByteBuffer readSources(long position, int bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(bytes);
+		while (buffer.hasRemaining()) {
+			if (this.sources.read(buffer, position + buffer.position()) < 0)
+				throw new IOException(this.sourceFile + " ends early.");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes everything out to disk and closes the files. The store can't be used
+	 * after.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			if (this.closed) return;
+			this.closed = true;
+			for (MappedByteBuffer segment : this.segments) {
+				segment.force();
+			}
+			this.header.force();
+			this.segments = new MappedByteBuffer[0];
+		} finally {
+			try {
+				this.records.close();
+			} finally {
+				this.sources.close();
+				this.lock.writeLock().unlock();
+			}
+		}
+	}
+
+}
@@ -5,20 +5,53 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
-import java.util.function.BiFunction;
 
+import hash.ComparisonType;
+import hash.HashUtils;
 import hash.IHashAlgorithm;
 import hash.ImageHash;
 import hash.MatchMode;
 import pipeline.dedup.HashMatch;
-import vptree.VPTree;
+import vptree.HammingVPTree;
+import vptree.RangeResult;
+import vptree.VPEntry;
 
+/**
+ * A HashStore backed by {@link HammingVPTree}s.
+ * 
+ * A tree can't be added to, so new hashes go into a delta list first, which
+ * queries scan linearly. The delta never holds more than deltaCapacity hashes.
+ * When it fills, it's built into a small tree of its own, and queries search
+ * every tree. To keep the number of trees down, whenever a tree is no more than
+ * twice the size of all of the newer trees put together, they're merged into
+ * one in the background, and swapped in when it's done. So each tree is more
+ * than twice the size of everything after it, there are O(log n) trees, and
+ * every hash is rebuilt into a new tree O(log n) times. Storing n hashes one at
+ * a time costs O(n log^2 n) overall, and the store can be used as the
+ * HasherOutput of a running ImageHasher.
+ * 
+ * Safe to store to and query from many threads at once.
+ * 
+ * @author apaz-cli
+ */
 public class VPHashStore implements HashStore {
 
-	IHashAlgorithm alg;
-	VPTree<ImageHash> vpt = null;
+	public static final int DEFAULT_DELTA_CAPACITY = 1024;
+
+	volatile IHashAlgorithm alg;
+	// Everything below is guarded by this.
+	// Oldest and biggest first. Only ever appended to, except by a merge, which
+	// replaces a run of trees at the end with one.
+	private ArrayList<HammingVPTree> trees = new ArrayList<>();
+	private ArrayList<ImageHash> delta = new ArrayList<>();
+	private boolean merging = false;
+	private int deltaCapacity = DEFAULT_DELTA_CAPACITY;
+
+	public VPHashStore() {}
 
 	public VPHashStore(ImageHash hash) {
 		this.store(hash);
@@ -28,120 +61,270 @@ public class VPHashStore implements HashStore {
 		this.storeAll(hashes);
 	}
 
-	/**
-	 * Calling this several times instead of storeAll() once will lead to horrendous
-	 * performance. The backing VPTree is rebuilt every time.
-	 */
+	// Buffered. Cheap enough to call once per hash.
 	@Override
 	public void store(ImageHash hash) {
-		if (hash == null) throw new NullPointerException("hash was null.");
-
-		// Wrap the algorithm in a closure
-		final IHashAlgorithm alg = hash.getAlgorithm();
-		class VPHashComparator implements java.util.function.BiFunction<ImageHash, ImageHash, Double> {
-			@Override
-			public Double apply(ImageHash h1, ImageHash h2) {
-				return alg.distance(h1, h2);
+		HammingStores.store(this, hash);
+	}
+
+	@Override
+	public void storeAll(Collection<? extends ImageHash> hashes) {
+		if (hashes.isEmpty()) return;
+
+		synchronized (this) {
+			if (this.alg == null) {
+				IHashAlgorithm alg = hashes.iterator().next().getAlgorithm();
+				// The tree only knows how to count differing bits.
+				if (alg.getComparisonType() != ComparisonType.HAMMING) throw new IllegalArgumentException(
+						"VPHashStore only supports algorithms compared by hamming distance. Got: " + alg.algName());
+				this.alg = alg;
+			}
+
+			for (ImageHash h : hashes) {
+				if (!h.getAlgorithm().algEquals(this.alg)) {
+					throw new IllegalArgumentException("Cannot go from a VPHashStrore of one algorithm type to another. "
+							+ "At least one of the hashes passed to this method came from a different algorithm. Please keep them seperate.");
+				}
 			}
-		}
 
-		if (this.vpt == null) {
-			this.vpt = new VPTree<>(Collections.singleton(hash), new VPHashComparator());
-			return;
+			// A big batch, like from the constructor, might as well go straight into a
+			// tree of its own.
+			if (hashes.size() >= this.deltaCapacity) {
+				this.trees.add(new HammingVPTree(hashes));
+			} else {
+				this.delta.addAll(hashes);
+				this.flushIfFull();
+			}
+			this.mergeIfNeeded();
 		}
+	}
 
-		if (!this.alg.algEquals(alg)) {
-			throw new IllegalArgumentException("Cannot go from a VPHashStrore of one algorithm type to another. "
-					+ "The hash passed to this method came from a different algorithm. Please keep them seperate.");
+	/**
+	 * Sets how many hashes the delta can hold before it becomes a tree. Every
+	 * query scans the whole delta, so this bounds how much of the store is
+	 * searched linearly.
+	 * 
+	 * @param deltaCapacity The most hashes to keep outside of the trees
+	 */
+	public synchronized void setDeltaCapacity(int deltaCapacity) {
+		if (deltaCapacity < 1) throw new IllegalArgumentException("The delta capacity must be at least one.");
+		this.deltaCapacity = deltaCapacity;
+		this.flushIfFull();
+		this.mergeIfNeeded();
+	}
+
+	/**
+	 * Blocks until every hash stored so far is in a single tree. Not necessary
+	 * for correctness, as queries search every tree and the delta.
+	 */
+	public synchronized void merge() throws InterruptedException {
+		while (this.merging) {
+			this.wait();
 		}
+		if (this.delta.isEmpty() && this.trees.size() <= 1) return;
 
-		ArrayList<ImageHash> allHashes = new ArrayList<>(Arrays.asList(this.vpt.getItems()));
-		allHashes.add(hash);
-		allHashes.trimToSize();
+		HammingVPTree all = new HammingVPTree(this.toArray());
+		this.trees = new ArrayList<>(Collections.singletonList(all));
+		this.delta = new ArrayList<>();
+	}
 
-		this.vpt.close();
+	// The number of trees, and of hashes in the delta. For testing.
+	synchronized int treeCount() {
+		return this.trees.size();
+	}
 
-		this.vpt = new VPTree<>(allHashes, new VPHashComparator());
+	synchronized int deltaSize() {
+		return this.delta.size();
 	}
 
-	@Override
-	public void storeAll(Collection<? extends ImageHash> hashes) {
-		if (hashes.isEmpty()) return;
-		ImageHash hash = hashes.iterator().next();
-
-		// Wrap the algorithm in a closure
-		final IHashAlgorithm alg = hash.getAlgorithm();
-		class VPHashComparator implements BiFunction<ImageHash, ImageHash, Double> {
-			@Override
-			public Double apply(ImageHash h1, ImageHash h2) {
-				return alg.distance(h1, h2);
-			}
-		}
+	// Holding the lock. The delta is small, so building it into a tree is cheap
+	// enough to do right away, which is what keeps it bounded.
+	private void flushIfFull() {
+		if (this.delta.size() < this.deltaCapacity) return;
+		this.trees.add(new HammingVPTree(this.delta));
+		this.delta = new ArrayList<>();
+	}
 
-		if (this.vpt == null) {
-			@SuppressWarnings("unchecked")
-			Collection<ImageHash> imageHashes = (Collection<ImageHash>) hashes;
-			this.vpt = new VPTree<ImageHash>(imageHashes, new VPHashComparator());
-			return;
+	// Holding the lock. Finds the run of trees at the end that should be merged,
+	// the first of which is no more than twice the size of the rest together.
+	private int mergeFrom() {
+		int last = this.trees.size() - 1;
+		if (last < 1) return -1;
+		int from = last;
+		long newer = this.trees.get(last).size();
+		while (from > 0 && this.trees.get(from - 1).size() <= 2 * newer) {
+			from--;
+			newer += this.trees.get(from).size();
 		}
+		return from == last ? -1 : from;
+	}
+
+	// Holding the lock.
+	private void mergeIfNeeded() {
+		if (this.merging) return;
+		final int from = this.mergeFrom();
+		if (from < 0) return;
 
-		for (ImageHash h : hashes) {
-			if (!h.getAlgorithm().algEquals(this.alg)) {
-				throw new IllegalArgumentException("Cannot go from a VPHashStrore of one algorithm type to another. "
-						+ "At least one of the hashes passed to this method came from a different algorithm. Please keep them seperate.");
+		final List<HammingVPTree> merged = new ArrayList<>(this.trees.subList(from, this.trees.size()));
+		this.merging = true;
+		ForkJoinPool.commonPool().execute(() -> {
+			HammingVPTree rebuilt = null;
+			try {
+				rebuilt = rebuild(merged);
+			} catch (Throwable t) {
+				// The trees are still there, so nothing is lost. The next store tries
+				// again.
+				t.printStackTrace();
 			}
+
+			synchronized (this) {
+				// Only this merge replaces trees, so the ones it took are still at from,
+				// with anything flushed since after them.
+				if (rebuilt != null && this.trees.size() >= from + merged.size()
+						&& this.trees.get(from) == merged.get(0)) {
+					ArrayList<HammingVPTree> trees = new ArrayList<>(this.trees.subList(0, from));
+					trees.add(rebuilt);
+					trees.addAll(this.trees.subList(from + merged.size(), this.trees.size()));
+					this.trees = trees;
+				}
+				this.merging = false;
+				this.notifyAll();
+				if (rebuilt != null) this.mergeIfNeeded();
+			}
+		});
+	}
+
+	private static HammingVPTree rebuild(List<HammingVPTree> trees) {
+		return new HammingVPTree(new Snapshot(trees.toArray(new HammingVPTree[trees.size()]), new ImageHash[0]).all());
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	// The trees and the delta at one instant. None of them are modified
+	// afterwards, the store just replaces them.
+	private static class Snapshot {
+		final HammingVPTree[] trees;
+		final ImageHash[] delta;
+
+		Snapshot(HammingVPTree[] trees, ImageHash[] delta) {
+			this.trees = trees;
+			this.delta = delta;
 		}
 
-		ArrayList<ImageHash> allHashes = new ArrayList<>(Arrays.asList(this.vpt.getItems()));
-		allHashes.addAll(hashes);
-		allHashes.trimToSize();
+		// Every hash, tree by tree, then the delta.
+		ImageHash[] all() {
+			int size = this.delta.length;
+			for (HammingVPTree t : this.trees) size += t.size();
+			ImageHash[] all = new ImageHash[size];
+			int at = 0;
+			for (HammingVPTree t : this.trees) {
+				ImageHash[] items = t.getItems();
+				System.arraycopy(items, 0, all, at, items.length);
+				at += items.length;
+			}
+			System.arraycopy(this.delta, 0, all, at, this.delta.length);
+			return all;
+		}
+	}
 
-		this.vpt.close();
+	private synchronized Snapshot snapshot() {
+		return new Snapshot(this.trees.toArray(new HammingVPTree[this.trees.size()]),
+				this.delta.toArray(new ImageHash[this.delta.size()]));
+	}
 
-		this.vpt = new VPTree<>(allHashes, new VPHashComparator());
+	private void checkQuery(ImageHash h) {
+		if (this.alg != null && !this.alg.algEquals(h.getAlgorithm())) throw new IllegalArgumentException("Algorithm "
+				+ h.getAlgName() + " is not comparable to the algorithm of this store, " + this.alg.algName() + ".");
 	}
 
 	@Override
 	public List<HashMatch> findMatches(MatchMode mode) {
-		if (this.vpt == null) {
+		if (this.alg == null) {
 			throw new IllegalStateException("This VPHashStore is empty. Please add some hashes to it first.");
 		}
 
-		ImageHash[] items = this.vpt.getItems();
-
-		// Dumb n^2 search
-		ArrayList<HashMatch> matches = new ArrayList<>();
-		for (int i = 0; i < items.length; i++) {
-			for (int j = i + 1; j < items.length; j++) {
-				ImageHash h1 = items[i];
-				ImageHash h2 = items[i];
-				this.alg.matches(h1, h2, mode);
-				matches.add(new HashMatch(h1, h2));
-			}
-		}
+		int threshold = this.alg.matchThreshold(mode);
+		if (threshold == 0) return HashStore.exactMatches(this.toArray(), false);
 
-		return matches;
+		// A single tree is joined against itself. Otherwise, rather than wait for a
+		// merge, everything is joined the way any other set of hashes is, which
+		// groups duplicates before building a tree of what's left.
+		Snapshot s = this.snapshot();
+		if (s.delta.length != 0 || s.trees.length != 1) return HashStore.selfJoin(s.all(), this.alg, mode, false);
+		return s.trees[0].selfJoin(threshold).stream().map(p -> new HashMatch(p.getKey(), p.getValue()))
+				.collect(Collectors.toList());
 	}
 
 	@Override
 	public ImageHash NN(ImageHash h) throws IOException {
-		return vpt.nn(h).item;
+		return HammingStores.NN(this, h);
 	}
 
 	@Override
 	public List<ImageHash> kNN(ImageHash h, int k) throws IOException {
-		return vpt.knn(h, k).stream().map(e -> e.item).collect(Collectors.toList());
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		this.checkQuery(h);
+		Snapshot s = this.snapshot();
+
+		List<VPEntry<ImageHash>> candidates = new ArrayList<>();
+		for (HammingVPTree tree : s.trees) {
+			candidates.addAll(tree.knn(h, k));
+		}
+		for (ImageHash hash : s.delta) {
+			candidates.add(new VPEntry<>(hash, HashUtils.hammingDistance(h, hash)));
+		}
+		if (s.trees.length > 1 || s.delta.length != 0) candidates.sort(Comparator.comparingDouble(e -> e.distance));
+
+		return candidates.stream().limit(k).map(e -> e.item).collect(Collectors.toList());
 	}
 
+	// The store may not have an algorithm yet, so the radius isn't clamped to its
+	// length. The trees don't need it to be.
 	@Override
 	public List<ImageHash> allWithinDistance(ImageHash h, double distance) throws IOException {
-		return Arrays.asList(vpt.getItems()).parallelStream().filter(hash -> h.distance(hash) <= distance)
-				.collect(Collectors.toList());
+		int radius = HammingStores.radius(distance, Integer.MAX_VALUE);
+		if (radius < 0) return new ArrayList<>();
+		return this.rangeSearch(h, radius).matches.stream().map(e -> e.item).collect(Collectors.toList());
+	}
+
+	/**
+	 * Finds every hash within radius of h, by a pruned search of each tree and a
+	 * scan of the delta.
+	 * 
+	 * @param h      The hash to search around
+	 * @param radius The largest hamming distance to include
+	 * @return The matches with their distances, and how many distances it took to
+	 *         find them, counting the ones to the delta. Scanned if the search
+	 *         gave up on any of the trees.
+	 */
+	public RangeResult<ImageHash> rangeSearch(ImageHash h, int radius) {
+		this.checkQuery(h);
+		Snapshot s = this.snapshot();
+
+		RangeResult<ImageHash> result = new RangeResult<>(new ArrayList<>(), 0, false);
+		for (HammingVPTree tree : s.trees) {
+			RangeResult<ImageHash> inTree = tree.rangeSearch(h, radius);
+			result.matches.addAll(inTree.matches);
+			result.distanceEvaluations += inTree.distanceEvaluations;
+			result.scanned |= inTree.scanned;
+		}
+		for (ImageHash hash : s.delta) {
+			int d = HashUtils.hammingDistanceAtMost(h, hash, radius);
+			if (d <= radius) result.matches.add(new VPEntry<>(hash, d));
+		}
+		result.distanceEvaluations += s.delta.length;
+		return result;
 	}
 
 	@Override
 	public List<ImageHash> toList() throws IOException {
-		return Arrays.asList(vpt.getItems());
+		return Arrays.asList(this.toArray());
+	}
+
+	private ImageHash[] toArray() {
+		return this.snapshot().all();
 	}
 
 }
@@ -65,6 +65,26 @@ public interface IImage<T extends IImage<? extends T>> {
 
 	abstract public T rescaleBilinear(float widthFactor, float heightFactor);
 
+	// Equivalent to resizeBilinear(width, height).toGreyscale(), which is what every
+	// hash algorithm does to make its thumbnail. Implementations should do it in
+	// one pass, without resizing each channel separately first.
+	default public GreyscaleImage resizeBilinearGreyscale(int width, int height) {
+		return this.resizeBilinear(width, height).toGreyscale();
+	}
+
+	// Shrinks the image by averaging all the pixels that fall into each pixel of
+	// the result, and converts it to greyscale. Can't enlarge an image, so falls
+	// back to resizeBilinearGreyscale() if either side would get bigger.
+	default public GreyscaleImage resizeAreaAverageGreyscale(int width, int height) {
+		if (width > this.getWidth() || height > this.getHeight()) return this.resizeBilinearGreyscale(width, height);
+		return this.toGreyscale().resizeAreaAverage(width, height);
+	}
+
+	default public GreyscaleImage resizeGreyscale(int width, int height, ResizeMode mode) {
+		return mode == ResizeMode.AREA_AVERAGE ? this.resizeAreaAverageGreyscale(width, height)
+				: this.resizeBilinearGreyscale(width, height);
+	}
+
 	abstract public BufferedImage toBufferedImage();
 
 	abstract public GreyscaleImage toGreyscale();
@@ -1,6 +1,7 @@
 package image;
 
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import image.implementations.GreyscaleImage;
 
@@ -434,4 +435,75 @@ public class PixelUtils {
 		return newPixels;
 	}
 
+	// Above this many source pixels, area averaging works on output rows in
+	// parallel.
+	public static final int PARALLEL_AREA_AVERAGE_PIXELS = 1 << 20;
+
+	// The first source row that areaAverage() counts towards output row row. The
+	// rows of output row i are [areaAverageRowStart(i), areaAverageRowStart(i + 1)).
+	public static int areaAverageRowStart(int row, int height, int newHeight) {
+		return (int) (((long) row * height + newHeight - 1) / newHeight);
+	}
+
+	/**
+	 * Shrinks one or more planes of the same image by averaging every source pixel
+	 * that falls inside each output pixel, and averages the planes together. With
+	 * a single plane this is a box filter. With red, green, and blue it is also a
+	 * conversion to greyscale.
+	 * 
+	 * Source column x belongs to output column (x * newWidth / width), and likewise
+	 * for rows, so every source pixel is counted exactly once. Sums are kept as
+	 * integers and only divided (with rounding) at the end. Each output row is
+	 * built from one streaming pass over its band of source rows, and large images
+	 * do the bands in parallel.
+	 * 
+	 * Only shrinks. newWidth and newHeight must not be larger than width and
+	 * height.
+	 */
+	public static byte[] areaAverage(int width, int height, int newWidth, int newHeight, byte[]... planes)
+			throws IllegalArgumentException {
+		if (newWidth < 1 || newHeight < 1 || newWidth > width || newHeight > height)
+			throw new IllegalArgumentException("Area averaging can only shrink an image. Tried to resize from "
+					+ width + "x" + height + " to " + newWidth + "x" + newHeight + ".");
+
+		// Source column to output column, and the number of source columns in each.
+		final int[] columnOf = new int[width];
+		final int[] columnCounts = new int[newWidth];
+		for (int x = 0; x < width; x++) {
+			columnOf[x] = (int) ((long) x * newWidth / width);
+			columnCounts[columnOf[x]]++;
+		}
+
+		// First source row of each output row. The last entry is the height.
+		final int[] rowStarts = new int[newHeight + 1];
+		for (int y = 0; y <= newHeight; y++) {
+			rowStarts[y] = areaAverageRowStart(y, height, newHeight);
+		}
+
+		final byte[] scaled = new byte[PixelUtils.safeMult(newWidth, newHeight)];
+		IntStream rows = IntStream.range(0, newHeight);
+		if ((long) width * height >= PARALLEL_AREA_AVERAGE_PIXELS) rows = rows.parallel();
+		rows.forEach(row -> {
+			// A long, because a single output pixel can cover the whole image.
+			long[] sums = new long[newWidth];
+			for (int y = rowStarts[row]; y < rowStarts[row + 1]; y++) {
+				int offset = y * width;
+				for (byte[] plane : planes) {
+					for (int x = 0; x < width; x++) {
+						sums[columnOf[x]] += plane[offset + x] & 0xff;
+					}
+				}
+			}
+
+			long rowCount = (long) (rowStarts[row + 1] - rowStarts[row]) * planes.length;
+			int offset = row * newWidth;
+			for (int x = 0; x < newWidth; x++) {
+				long count = rowCount * columnCounts[x];
+				scaled[offset + x] = (byte) ((sums[x] + count / 2) / count);
+			}
+		});
+
+		return scaled;
+	}
+
 }
@@ -0,0 +1,16 @@
+package image;
+
+// How an image is shrunk into the thumbnail that a hash algorithm works on.
+public enum ResizeMode {
+
+	// Samples four pixels of the original per thumbnail pixel. This is what the
+	// algorithms have always done. It's cheap, but when the reduction is large it
+	// ignores most of the image, so the thumbnail aliases and small changes to the
+	// original can flip bits of the hash.
+	BILINEAR,
+
+	// Averages every pixel of the original that falls inside each thumbnail pixel.
+	// Reads the whole image, but gives stable thumbnails at any reduction ratio.
+	AREA_AVERAGE;
+
+}
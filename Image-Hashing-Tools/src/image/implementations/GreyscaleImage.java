@@ -249,6 +249,26 @@ public class GreyscaleImage implements IImage<GreyscaleImage> {
 		return new GreyscaleImage(scaled, width, height);
 	}
 
+	// Already greyscale, so there's nothing to fuse.
+	@Override
+	public GreyscaleImage resizeBilinearGreyscale(int width, int height) {
+		return this.resizeBilinear(width, height);
+	}
+
+	// Box filter. Every pixel of the result is the rounded average of the pixels
+	// it covers. Enlarging falls back to bilinear.
+	public GreyscaleImage resizeAreaAverage(int width, int height) {
+		if (this.width == width && this.height == height) { return this.deepClone(); }
+		if (width > this.width || height > this.height) { return this.resizeBilinear(width, height); }
+		return new GreyscaleImage(PixelUtils.areaAverage(this.width, this.height, width, height, this.pixels), width,
+				height);
+	}
+
+	@Override
+	public GreyscaleImage resizeAreaAverageGreyscale(int width, int height) {
+		return this.resizeAreaAverage(width, height);
+	}
+
 	@Override
 	public GreyscaleImage rescaleBilinear(float widthFactor, float heightFactor) {
 		if (widthFactor == 1 && heightFactor == 1) { return this.deepClone(); }
@@ -0,0 +1,293 @@
+package image.implementations;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.stream.IntStream;
+
+import attack.IAttack;
+import image.IImage;
+import image.PixelUtils;
+
+/**
+ * An RGBAImage that hasn't been split into channels yet. It holds on to the
+ * decoded BufferedImage, and reads its raster directly whenever it's asked for
+ * greyscale, or for a greyscale thumbnail. That's all that hashing needs, so a
+ * loaded image can be hashed without ever building its four channels, or the
+ * full size copy that RGBAImage draws them from.
+ * 
+ * Anything else (resizing in colour, rotating, attacks, and so on) builds the
+ * RGBAImage once and delegates to it.
+ * 
+ * The pixels it reads are exactly the ones that new RGBAImage(img) would have,
+ * so everything it returns is identical to what that RGBAImage would return.
+ * 
+ * @author apaz-cli
+ */
+public class LazyRGBAImage implements IImage<RGBAImage> {
+
+	// How many rows of the source are read at a time when streaming through it.
+	private static final int STRIP_ROWS = 64;
+
+	private final BufferedImage img;
+	private final int width;
+	private final int height;
+	private RGBAImage rgba = null;
+
+	public LazyRGBAImage(BufferedImage img) {
+		if (img == null) throw new IllegalArgumentException("The BufferedImage argument cannot be null.");
+		this.img = img;
+		this.width = img.getWidth();
+		this.height = img.getHeight();
+	}
+
+	// Builds the channels the first time they're needed.
+	public synchronized RGBAImage materialize() {
+		if (this.rgba == null) this.rgba = new RGBAImage(this.img);
+		return this.rgba;
+	}
+
+	/***********/
+	/* Reading */
+	/***********/
+
+	// Reads rows [y, y + rows) of the source as 0xRRGGBB into rgb. Rasters that
+	// RGBAImage would copy unchanged are read directly. Everything else is drawn
+	// onto a 4BYTE_ABGR strip the same way RGBAImage draws the whole image, so
+	// that colour conversions come out the same.
+	private void readRows(int y, int rows, int[] rgb) {
+		WritableRaster raster = this.img.getRaster();
+		int type = this.img.getType();
+		// Child rasters, from getSubimage(), don't start at the beginning of their
+		// buffer.
+		boolean direct = raster.getParent() == null;
+
+		if (direct && type == BufferedImage.TYPE_3BYTE_BGR) {
+			byte[] bgr = ((DataBufferByte) raster.getDataBuffer()).getData();
+			for (int i = 0, pixel = y * this.width * 3, end = rows * this.width; i < end; i++, pixel += 3) {
+				rgb[i] = (bgr[pixel + 2] & 0xff) << 16 | (bgr[pixel + 1] & 0xff) << 8 | (bgr[pixel] & 0xff);
+			}
+		} else if (direct && type == BufferedImage.TYPE_INT_RGB) {
+			int[] packed = ((DataBufferInt) raster.getDataBuffer()).getData();
+			System.arraycopy(packed, y * this.width, rgb, 0, rows * this.width);
+		} else {
+			BufferedImage strip = new BufferedImage(this.width, rows, BufferedImage.TYPE_4BYTE_ABGR);
+			Graphics2D g = strip.createGraphics();
+			g.drawImage(this.img, 0, -y, null);
+			g.dispose();
+
+			byte[] abgr = ((DataBufferByte) strip.getRaster().getDataBuffer()).getData();
+			for (int i = 0, pixel = 0, end = rows * this.width; i < end; i++, pixel += 4) {
+				rgb[i] = (abgr[pixel + 3] & 0xff) << 16 | (abgr[pixel + 2] & 0xff) << 8 | (abgr[pixel + 1] & 0xff);
+			}
+		}
+	}
+
+	/*****************************/
+	/* Reads the raster directly */
+	/*****************************/
+
+	// One pass over the source, a strip at a time. The same average as
+	// RGBImage#toGreyscale().
+	@Override
+	public GreyscaleImage toGreyscale() {
+		byte[] grey = new byte[PixelUtils.safeMult(this.width, this.height)];
+		int strips = (this.height + STRIP_ROWS - 1) / STRIP_ROWS;
+		IntStream.range(0, strips).parallel().forEach(strip -> {
+			int y = strip * STRIP_ROWS;
+			int rows = Math.min(STRIP_ROWS, this.height - y);
+			int[] rgb = new int[rows * this.width];
+			this.readRows(y, rows, rgb);
+
+			for (int i = 0, offset = y * this.width; i < rgb.length; i++) {
+				int p = rgb[i];
+				grey[offset + i] = (byte) Math.round((((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff)) / 3f);
+			}
+		});
+		return new GreyscaleImage(grey, this.width, this.height);
+	}
+
+	// The same kernel as RGBImage#resizeBilinearGreyscale(), but only reads the
+	// two source rows that each output row samples from.
+	@Override
+	public GreyscaleImage resizeBilinearGreyscale(int width, int height) {
+		if (this.width == width && this.height == height) { return this.toGreyscale(); }
+
+		byte[] scaled = new byte[PixelUtils.safeMult(width, height)];
+
+		float xRatio = ((float) (this.width - 1)) / width;
+		float yRatio = ((float) (this.height - 1)) / height;
+
+		// Holds source rows y and y + 1, as 0xRRGGBB.
+		int[] rows = new int[2 * this.width];
+		int rowsStart = -1;
+
+		int offset = 0;
+		float exactx, exacty;
+		int x, y, index, redGray, greenGray, blueGray, a, b, c, d;
+		float x_diff, y_diff;
+
+		// @nof
+		for (int i = 0; i < height; i++) {
+			exacty = (yRatio * i);
+			y = (int) exacty;
+			if (y != rowsStart) {
+				this.readRows(y, Math.min(2, this.height - y), rows);
+				rowsStart = y;
+			}
+			int base = y * this.width;
+
+			for (int j = 0; j < width; j++) {
+
+				exactx = (xRatio * j);
+				x = (int) exactx;
+				x_diff = exactx - x;
+				y_diff = exacty - y;
+				index = y * this.width + x;
+
+				// Same sample positions and out of bounds corrections as
+				// GreyscaleImage#resizeBilinear(), relative to the rows that were read.
+				a = rows[(index) - base];
+				b = rows[((index+1) % (this.width) == 0 ? index : (index+1)) - base];
+				c = rows[((index + this.width) % (this.height) == 0 ? index : (index + this.width)) - base];
+				d = rows[((index + this.width + 1) % (this.width) == 0 ? index : (index + this.width + 1)) - base];
+
+				redGray = (int) (((a >> 16) & 0xff) * (1 - x_diff) * (1 - y_diff) + 
+								 ((b >> 16) & 0xff) * (x_diff) * (1 - y_diff) + 
+								 ((c >> 16) & 0xff) * (y_diff) * (1 - x_diff) + 
+								 ((d >> 16) & 0xff) * (x_diff) * (y_diff));
+				greenGray = (int) (((a >> 8) & 0xff) * (1 - x_diff) * (1 - y_diff) + 
+								   ((b >> 8) & 0xff) * (x_diff) * (1 - y_diff) + 
+								   ((c >> 8) & 0xff) * (y_diff) * (1 - x_diff) + 
+								   ((d >> 8) & 0xff) * (x_diff) * (y_diff));
+				blueGray = (int) ((a & 0xff) * (1 - x_diff) * (1 - y_diff) + 
+								  (b & 0xff) * (x_diff) * (1 - y_diff) + 
+								  (c & 0xff) * (y_diff) * (1 - x_diff) + 
+								  (d & 0xff) * (x_diff) * (y_diff));
+
+				scaled[offset++] = (byte) Math.round(((redGray & 0xff) + (greenGray & 0xff) + (blueGray & 0xff)) / 3f);
+			}
+		}
+		// @dof
+
+		return new GreyscaleImage(scaled, width, height);
+	}
+
+	// Streams the band of source rows under each output row through the same sums
+	// as PixelUtils#areaAverage(), with all three channels in one accumulator. The
+	// same result as RGBImage#resizeAreaAverageGreyscale().
+	@Override
+	public GreyscaleImage resizeAreaAverageGreyscale(int width, int height) {
+		if (width > this.width || height > this.height) { return this.resizeBilinearGreyscale(width, height); }
+
+		final int[] columnOf = new int[this.width];
+		final int[] columnCounts = new int[width];
+		for (int x = 0; x < this.width; x++) {
+			columnOf[x] = (int) ((long) x * width / this.width);
+			columnCounts[columnOf[x]]++;
+		}
+
+		byte[] scaled = new byte[PixelUtils.safeMult(width, height)];
+		IntStream rows = IntStream.range(0, height);
+		if ((long) this.width * this.height >= PixelUtils.PARALLEL_AREA_AVERAGE_PIXELS) rows = rows.parallel();
+		rows.forEach(row -> {
+			int start = PixelUtils.areaAverageRowStart(row, this.height, height);
+			int end = PixelUtils.areaAverageRowStart(row + 1, this.height, height);
+
+			long[] sums = new long[width];
+			int[] rgb = new int[Math.min(STRIP_ROWS, end - start) * this.width];
+			for (int y = start; y < end; y += STRIP_ROWS) {
+				int stripRows = Math.min(STRIP_ROWS, end - y);
+				this.readRows(y, stripRows, rgb);
+				for (int i = 0, x = 0, n = stripRows * this.width; i < n; i++) {
+					int p = rgb[i];
+					sums[columnOf[x]] += ((p >> 16) & 0xff) + ((p >> 8) & 0xff) + (p & 0xff);
+					if (++x == this.width) x = 0;
+				}
+			}
+
+			long rowCount = (long) (end - start) * 3;
+			for (int x = 0, offset = row * width; x < width; x++) {
+				long count = rowCount * columnCounts[x];
+				scaled[offset + x] = (byte) ((sums[x] + count / 2) / count);
+			}
+		});
+
+		return new GreyscaleImage(scaled, width, height);
+	}
+
+	/****************************************/
+	/* Everything else builds the RGBAImage */
+	/****************************************/
+
+	@Override
+	public int getWidth() { return this.width; }
+
+	@Override
+	public int getHeight() { return this.height; }
+
+	@Override
+	public boolean hasAlpha() { return true; }
+
+	@Override
+	public GreyscaleImage[] getChannels() { return this.materialize().getChannels(); }
+
+	@Override
+	public RGBAImage deepClone() { return this.materialize().deepClone(); }
+
+	@Override
+	public RGBAImage resizeNearest(int width, int height) { return this.materialize().resizeNearest(width, height); }
+
+	@Override
+	public RGBAImage rescaleNearest(float widthFactor, float heightFactor) {
+		return this.materialize().rescaleNearest(widthFactor, heightFactor);
+	}
+
+	@Override
+	public RGBAImage resizeBilinear(int width, int height) { return this.materialize().resizeBilinear(width, height); }
+
+	@Override
+	public RGBAImage rescaleBilinear(float widthFactor, float heightFactor) {
+		return this.materialize().rescaleBilinear(widthFactor, heightFactor);
+	}
+
+	@Override
+	public BufferedImage toBufferedImage() { return this.materialize().toBufferedImage(); }
+
+	@Override
+	public RGBImage toRGB() { return this.materialize().toRGB(); }
+
+	@Override
+	public RGBAImage toRGBA() { return this.materialize(); }
+
+	@Override
+	public RGBAImage flipHorizontal() { return this.materialize().flipHorizontal(); }
+
+	@Override
+	public RGBAImage flipVertical() { return this.materialize().flipVertical(); }
+
+	@Override
+	public RGBAImage rotate90CW() { return this.materialize().rotate90CW(); }
+
+	@Override
+	public RGBAImage rotate90CCW() { return this.materialize().rotate90CCW(); }
+
+	@Override
+	public RGBAImage rotate180() { return this.materialize().rotate180(); }
+
+	@Override
+	public RGBAImage extractSubimage(int x1, int y1, int x2, int y2) {
+		return this.materialize().extractSubimage(x1, y1, x2, y2);
+	}
+
+	@Override
+	public RGBAImage emplaceSubimage(RGBAImage subImage, int x1, int y1, int x2, int y2) {
+		return this.materialize().emplaceSubimage(subImage, x1, y1, x2, y2);
+	}
+
+	@Override
+	public RGBAImage apply(IAttack<RGBAImage> attack) { return this.materialize().apply(attack); }
+
+}
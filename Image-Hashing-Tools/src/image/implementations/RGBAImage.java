@@ -189,6 +189,17 @@ public class RGBAImage implements IImage<RGBAImage> {
 		return new RGBAImage(this.rgb.resizeBilinear(width, height), this.a.resizeBilinear(width, height));
 	}
 
+	// Greyscale ignores alpha, so this never touches the alpha channel.
+	@Override
+	public GreyscaleImage resizeBilinearGreyscale(int width, int height) {
+		return this.rgb.resizeBilinearGreyscale(width, height);
+	}
+
+	@Override
+	public GreyscaleImage resizeAreaAverageGreyscale(int width, int height) {
+		return this.rgb.resizeAreaAverageGreyscale(width, height);
+	}
+
 	@Override
 	public RGBAImage rescaleBilinear(float widthFactor, float heightFactor) {
 		return new RGBAImage(this.rgb.rescaleBilinear(widthFactor, heightFactor),
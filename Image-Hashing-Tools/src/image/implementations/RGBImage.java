@@ -8,9 +8,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import attack.IAttack;
 import image.IImage;
+import image.PixelUtils;
 import utils.ImageUtils;
 
 public class RGBImage implements IImage<RGBImage> {
@@ -180,6 +182,78 @@ public class RGBImage implements IImage<RGBImage> {
 				b.resizeBilinear(width, height));
 	}
 
+	// Samples all three channels and averages them in the same pass, writing
+	// straight into the greyscale thumbnail. Produces exactly the same pixels as
+	// resizeBilinear(width, height).toGreyscale(), without the three intermediate
+	// channels.
+	@Override
+	public GreyscaleImage resizeBilinearGreyscale(int width, int height) {
+		if (this.width == width && this.height == height) { return this.toGreyscale(); }
+
+		byte[] red = this.r.getPixels();
+		byte[] green = this.g.getPixels();
+		byte[] blue = this.b.getPixels();
+		byte[] scaled = new byte[PixelUtils.safeMult(width, height)];
+
+		float xRatio = ((float) (this.width - 1)) / width;
+		float yRatio = ((float) (this.height - 1)) / height;
+
+		int offset = 0;
+		float exactx, exacty;
+		int x, y, index, redGray, greenGray, blueGray, aidx, bidx, cidx, didx;
+		float x_diff, y_diff;
+
+		// @nof
+		for (int i = 0; i < height; i++) {
+			for (int j = 0; j < width; j++) {
+
+				exactx = (xRatio * j);
+				exacty = (yRatio * i);
+				x = (int) exactx;
+				y = (int) exacty;
+				x_diff = exactx - x;
+				y_diff = exacty - y;
+				index = y * this.width + x;
+
+				// Same sample positions and out of bounds corrections as
+				// GreyscaleImage#resizeBilinear(), shared between the channels.
+				aidx = (index);
+				bidx = (index+1) % (this.width) == 0 ? index : (index+1);
+				cidx = (index + this.width) % (this.height) == 0 ? index : (index + this.width);
+				didx = (index + this.width + 1) % (this.width) == 0 ? index : (index + this.width + 1);
+
+				redGray = (int) ((red[aidx] & 0xff) * (1 - x_diff) * (1 - y_diff) + 
+								 (red[bidx] & 0xff) * (x_diff) * (1 - y_diff) + 
+								 (red[cidx] & 0xff) * (y_diff) * (1 - x_diff) + 
+								 (red[didx] & 0xff) * (x_diff) * (y_diff));
+				greenGray = (int) ((green[aidx] & 0xff) * (1 - x_diff) * (1 - y_diff) + 
+								   (green[bidx] & 0xff) * (x_diff) * (1 - y_diff) + 
+								   (green[cidx] & 0xff) * (y_diff) * (1 - x_diff) + 
+								   (green[didx] & 0xff) * (x_diff) * (y_diff));
+				blueGray = (int) ((blue[aidx] & 0xff) * (1 - x_diff) * (1 - y_diff) + 
+								  (blue[bidx] & 0xff) * (x_diff) * (1 - y_diff) + 
+								  (blue[cidx] & 0xff) * (y_diff) * (1 - x_diff) + 
+								  (blue[didx] & 0xff) * (x_diff) * (y_diff));
+
+				// Each channel is truncated to a byte before averaging, as it would be if
+				// it had been resized on its own.
+				scaled[offset++] = (byte) Math.round(((redGray & 0xff) + (greenGray & 0xff) + (blueGray & 0xff)) / 3f);
+			}
+		}
+		// @dof
+
+		return new GreyscaleImage(scaled, width, height);
+	}
+
+	// Sums all three channels into the same accumulators, so the greyscale
+	// conversion happens as part of the average instead of over the whole image.
+	@Override
+	public GreyscaleImage resizeAreaAverageGreyscale(int width, int height) {
+		if (width > this.width || height > this.height) { return this.resizeBilinearGreyscale(width, height); }
+		return new GreyscaleImage(PixelUtils.areaAverage(this.width, this.height, width, height, this.r.getPixels(),
+				this.g.getPixels(), this.b.getPixels()), width, height);
+	}
+
 	@Override
 	public RGBImage rescaleNearest(float widthFactor, float heightFactor) {
 		return new RGBImage(r.rescaleNearest(widthFactor, heightFactor), g.rescaleNearest(widthFactor, heightFactor),
@@ -226,16 +300,14 @@ public class RGBImage implements IImage<RGBImage> {
 		byte[] green = this.g.getPixels();
 		byte[] blue = this.b.getPixels();
 
-		// Parallel average as int
-		int[] average = new int[this.width * this.height];
-		Arrays.parallelSetAll(average,
-				i -> Math.round((((red[i] & 0xff) + (green[i] & 0xff) + (blue[i] & 0xff)) / 3f)));
-
-		// Convert to byte
-		byte[] byteAverage = new byte[average.length];
-		for (int i = 0; i < average.length; i++) {
-			byteAverage[i] = (byte) average[i];
-		}
+		// Parallel average, by row, straight into the byte array.
+		final int width = this.width;
+		byte[] byteAverage = new byte[width * this.height];
+		IntStream.range(0, this.height).parallel().forEach(row -> {
+			for (int i = row * width, end = i + width; i < end; i++) {
+				byteAverage[i] = (byte) Math.round((((red[i] & 0xff) + (green[i] & 0xff) + (blue[i] & 0xff)) / 3f));
+			}
+		});
 		return new GreyscaleImage(byteAverage, this.width, this.height);
 	}
 
@@ -119,6 +119,16 @@ public class SourcedImage implements IImage<SourcedImage> {
 		return new SourcedImage(this.img.resizeBilinear(width, height), this.source, this.isURL);
 	}
 
+	@Override
+	public GreyscaleImage resizeBilinearGreyscale(int width, int height) {
+		return this.img.resizeBilinearGreyscale(width, height);
+	}
+
+	@Override
+	public GreyscaleImage resizeAreaAverageGreyscale(int width, int height) {
+		return this.img.resizeAreaAverageGreyscale(width, height);
+	}
+
 	@Override
 	public SourcedImage rescaleBilinear(float widthFactor, float heightFactor) {
 		return new SourcedImage(this.img.rescaleBilinear(widthFactor, heightFactor), this.source, this.isURL);
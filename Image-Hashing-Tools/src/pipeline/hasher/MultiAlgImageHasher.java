@@ -10,6 +10,9 @@ import java.util.stream.Collectors;
 
 import hash.IHashAlgorithm;
 import hash.ImageHash;
+import hash.PreprocessingContext;
+import hash.implementations.PerceptualHash;
+import hash.implementations.PerceptualHashFamily;
 import image.IImage;
 import image.PixelUtils;
 import pipeline.ImageSource;
@@ -24,6 +27,11 @@ public class MultiAlgImageHasher {
 	private IHashAlgorithm[] algorithms;
 	private HasherOutput[] outputLambdas;
 
+	// When set, the PerceptualHashes among the algorithms share one resize and one
+	// transform. familyIndices maps each hash of the family back to its algorithm.
+	private PerceptualHashFamily pHashFamily = null;
+	private int[] familyIndices = new int[0];
+
 	public MultiAlgImageHasher(ImageSource source, List<IHashAlgorithm> algorithms, List<HasherOutput> outputLambdas)
 			throws IllegalArgumentException {
 		this((Object) source, algorithms, outputLambdas);
@@ -68,15 +76,64 @@ public class MultiAlgImageHasher {
 		return this.algorithms.length;
 	}
 
+	/**
+	 * When enabled, every {@link PerceptualHash} among this hasher's algorithms is
+	 * computed from a single resize and DCT at the largest side length, using a
+	 * {@link PerceptualHashFamily}. This makes hashing with pHashes of several
+	 * sizes cost about as much as hashing with the largest one. The smaller hashes
+	 * are not the ones their PerceptualHash would produce by itself, and often
+	 * differ from those by more than the SLOPPY threshold. So they are created by
+	 * a derived PerceptualHash that records the largest side length, and can't be
+	 * compared or stored with hashes from the standalone algorithm. Only
+	 * PerceptualHashes with the same ResizeMode as the first one are shared.
+	 * Disabled by default.
+	 * 
+	 * @param share Whether the PerceptualHashes should share a transform
+	 */
+	public void setSharePerceptualTransform(boolean share) {
+		if (!share) {
+			this.pHashFamily = null;
+			this.familyIndices = new int[0];
+			return;
+		}
+
+		List<PerceptualHash> phashes = new ArrayList<>();
+		List<Integer> indices = new ArrayList<>();
+		for (int i = 0; i < this.algorithms.length; i++) {
+			if (this.algorithms[i] instanceof PerceptualHash && (phashes.isEmpty()
+					|| phashes.get(0).getResizeMode() == this.algorithms[i].getResizeMode())) {
+				phashes.add((PerceptualHash) this.algorithms[i]);
+				indices.add(i);
+			}
+		}
+
+		if (phashes.isEmpty()) return;
+		this.familyIndices = indices.stream().mapToInt(Integer::intValue).toArray();
+		this.pHashFamily = new PerceptualHashFamily(phashes);
+	}
+
 	public ImageHash[] hash() {
 		IImage<?> img = source.next();
 		if (img == null) {
 			return null;
 		}
 
+		// Every algorithm draws its greyscale thumbnails from the same context, so
+		// each size is only computed once per image.
+		PreprocessingContext context = new PreprocessingContext(img);
+
 		ImageHash[] h = new ImageHash[algorithms.length];
+		PerceptualHashFamily family = this.pHashFamily;
+		int[] indices = this.familyIndices;
+		if (family != null) {
+			ImageHash[] familyHashes = family.hash(context);
+			for (int i = 0; i < indices.length; i++) {
+				h[indices[i]] = familyHashes[i];
+			}
+		}
+
 		for (int i = 0; i < algorithms.length; i++) {
-			h[i] = algorithms[i].hash(img);
+			if (h[i] == null) h[i] = algorithms[i].hash(context);
 			outputLambdas[i].store(h[i]);
 		}
 
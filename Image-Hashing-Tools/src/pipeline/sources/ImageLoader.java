@@ -16,6 +16,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import hash.IHashAlgorithm;
+import image.implementations.LazyRGBAImage;
 import image.implementations.SourcedImage;
 import pipeline.ImageSource;
 import utils.ImageUtils;
@@ -114,9 +116,50 @@ public class ImageLoader implements ImageSource {
 	private File originalFolder;
 	private List<File> files = new ArrayList<>(); // Splits into copies on trySplit()
 	private List<File> failedLoads = new Vector<>();
+	// Zero for full resolution. See ImageUtils#openImage(File, int)
+	private int decodeSideLength = 0;
 
 	public ImageLoader clone() {
-		return new ImageLoader(this.originalFolder, new ArrayList<>(this.files), new Vector<>(this.failedLoads));
+		ImageLoader clone = new ImageLoader(this.originalFolder, new ArrayList<>(this.files),
+				new Vector<>(this.failedLoads));
+		clone.decodeSideLength = this.decodeSideLength;
+		return clone;
+	}
+
+	/**
+	 * Makes this loader decode images at reduced resolution, as long as both sides
+	 * stay at least decodeSideLength pixels. Large images then load much faster and
+	 * take a fraction of the memory. The images are only fit for hashing. Hashes of
+	 * them can differ by a few bits from hashes of the full image.
+	 * 
+	 * @param decodeSideLength The smallest side length to decode at, or zero to
+	 *                         decode at full resolution.
+	 */
+	public void setDecodeSideLength(int decodeSideLength) {
+		this.decodeSideLength = Math.max(0, decodeSideLength);
+	}
+
+	public int getDecodeSideLength() {
+		return this.decodeSideLength;
+	}
+
+	/**
+	 * Decodes images at the smallest resolution that is still enough for all of
+	 * the given algorithms.
+	 * 
+	 * @param algorithms The algorithms that will hash the images from this loader
+	 */
+	public void setDecodeSideLength(IHashAlgorithm... algorithms) {
+		int side = 0;
+		for (IHashAlgorithm alg : algorithms) {
+			// Any one of them wanting full resolution means all of them get it.
+			if (alg.getDecodeSideLength() <= 0) {
+				side = 0;
+				break;
+			}
+			side = Math.max(side, alg.getDecodeSideLength());
+		}
+		this.setDecodeSideLength(side);
 	}
 
 	public List<File> getRemainingItems() {
@@ -142,7 +185,7 @@ public class ImageLoader implements ImageSource {
 		// Get image by loading that file, handle if it's invalid.
 		BufferedImage img = null;
 		try {
-			img = ImageUtils.openImage(f);
+			img = ImageUtils.openImage(f, this.decodeSideLength);
 			if (img == null) {
 				this.failedLoads.add(f);
 				return this.next();
@@ -166,7 +209,8 @@ public class ImageLoader implements ImageSource {
 			return this.next();
 		}
 
-		return new SourcedImage(img, f);
+		// Hashing only ever reads greyscale, which can come straight from the raster.
+		return new SourcedImage(new LazyRGBAImage(img), f);
 	}
 
 	// Check for security (Don't delete arbitrary files, that would be bad.)
@@ -215,7 +259,9 @@ public class ImageLoader implements ImageSource {
 			List<File> second = new ArrayList<>(files.subList((size + 1) / 2, size));
 
 			this.files = first;
-			return new ImageLoader(this.originalFolder, second, failedLoads);
+			ImageLoader split = new ImageLoader(this.originalFolder, second, failedLoads);
+			split.decodeSideLength = this.decodeSideLength;
+			return split;
 		}
 	}
 
@@ -19,6 +19,7 @@ import java.util.Set;
 import java.util.Spliterator;
 import java.util.Vector;
 
+import image.implementations.LazyRGBAImage;
 import image.implementations.SourcedImage;
 import pipeline.ImageSource;
 import utils.ImageUtils;
@@ -80,7 +81,7 @@ public class URLDownloader implements ImageSource, Closeable {
 			this.failedDownloads.add(url.toString());
 			return this.next();
 		}
-		return new SourcedImage(f, url);
+		return new SourcedImage(new LazyRGBAImage(f), url);
 	}
 
 	@Override
@@ -14,12 +14,16 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -104,6 +108,69 @@ public class ImageUtils {
 		return ret;
 	}
 
+	// Decodes the image at the smallest resolution that keeps both sides at least
+	// minSideLength, so hashing a huge photo doesn't mean decoding all of it. The
+	// reader skips pixels as it decodes, or hands back an embedded thumbnail if
+	// there's one big enough with the same shape. The result is only good for
+	// hashing, not for display or for saving over the original. A minSideLength of
+	// zero or less decodes at full resolution, like openImage(File).
+	public static BufferedImage openImage(File imgFile, int minSideLength) throws IOException {
+		if (minSideLength <= 0) return openImage(imgFile);
+		BufferedImage ret = null;
+		try {
+			if (!imgFile.canRead()) throw new IllegalArgumentException("Either this file does not exist, or this program does not have sufficient permission to read it: " + imgFile);
+			ret = readSubsampled(imgFile, minSideLength);
+		} catch (Exception e) {
+			System.err.println("Error for file: " + imgFile);
+			failedOpens.add(e);
+			e.printStackTrace();
+		}
+		return ret;
+	}
+
+	// Returns null when there's no reader for the file, like ImageIO.read().
+	private static BufferedImage readSubsampled(File imgFile, int minSideLength) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(imgFile)) {
+			if (stream == null) return null;
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) return null;
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, false);
+				// Only reads the header.
+				int width = reader.getWidth(0), height = reader.getHeight(0);
+
+				// The smallest thumbnail that's big enough, if it's the same shape as the
+				// image (to within rounding), and so isn't cropped or padded.
+				if (reader.readerSupportsThumbnails()) {
+					int best = -1;
+					long bestArea = Long.MAX_VALUE;
+					for (int i = 0; i < reader.getNumThumbnails(0); i++) {
+						int thumbWidth = reader.getThumbnailWidth(0, i), thumbHeight = reader.getThumbnailHeight(0, i);
+						long area = (long) thumbWidth * thumbHeight;
+						boolean sameShape = Math.abs((long) thumbWidth * height - (long) thumbHeight * width) <= Math
+								.max(width, height);
+						if (thumbWidth >= minSideLength && thumbHeight >= minSideLength && sameShape && area < bestArea) {
+							best = i;
+							bestArea = area;
+						}
+					}
+					if (best != -1) return reader.readThumbnail(0, best);
+				}
+
+				// Every factor-th pixel of every factor-th row. Decoding the smaller side at
+				// side / factor pixels keeps it at least minSideLength.
+				int factor = Math.max(1, Math.min(width, height) / minSideLength);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(factor, factor, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
 	public static SourcedImage openImageSourced(URL imgURL) throws IOException {
 		BufferedImage img = openImage(imgURL);
 		return img == null ? null : new SourcedImage(img, imgURL);
@@ -114,6 +181,11 @@ public class ImageUtils {
 		return img == null ? null : new SourcedImage(img, imgFile);
 	}
 
+	public static SourcedImage openImageSourced(File imgFile, int minSideLength) throws IOException {
+		BufferedImage img = openImage(imgFile, minSideLength);
+		return img == null ? null : new SourcedImage(img, imgFile);
+	}
+
 	/************************/
 	/* IMAGE SAVING HELPERS */
 	/************************/
@@ -0,0 +1,76 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * The k best candidates of a nearest neighbor search over integer distances, as
+ * a max heap of (distance << 32 | index), so that the worst of them is on top
+ * and nothing is boxed. Used by the hamming distance indexes.
+ * 
+ * @author apaz-cli
+ */
+public class NeighborHeap {
+
+	private final int capacity;
+	private final long[] heap;
+	private int size = 0;
+
+	public NeighborHeap(int capacity) {
+		if (capacity < 0) throw new IllegalArgumentException("The capacity cannot be negative.");
+		this.capacity = capacity;
+		this.heap = new long[capacity];
+	}
+
+	public int capacity() {
+		return this.capacity;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// Anything further than this can't get in.
+	public int radius() {
+		return this.size < this.capacity ? Integer.MAX_VALUE : (int) (this.heap[0] >>> 32);
+	}
+
+	public void offer(int distance, int index) {
+		long entry = ((long) distance << 32) | index;
+		if (this.size < this.capacity) {
+			int i = this.size++;
+			this.heap[i] = entry;
+			while (i > 0 && this.heap[(i - 1) / 2] < this.heap[i]) {
+				swap((i - 1) / 2, i);
+				i = (i - 1) / 2;
+			}
+		} else if (this.capacity > 0 && entry < this.heap[0]) {
+			this.heap[0] = entry;
+			int i = 0;
+			for (;;) {
+				int largest = i, left = 2 * i + 1, right = left + 1;
+				if (left < this.size && this.heap[left] > this.heap[largest]) largest = left;
+				if (right < this.size && this.heap[right] > this.heap[largest]) largest = right;
+				if (largest == i) break;
+				swap(i, largest);
+				i = largest;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		long temp = this.heap[i];
+		this.heap[i] = this.heap[j];
+		this.heap[j] = temp;
+	}
+
+	/**
+	 * @return The entries, nearest first, with ties going to the lower index. The
+	 *         distance of each is entry >>> 32, and the index is (int) entry.
+	 */
+	public long[] sorted() {
+		long[] entries = Arrays.copyOf(this.heap, this.size);
+		Arrays.sort(entries);
+		return entries;
+	}
+
+}
@@ -0,0 +1,173 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Interns sources as int ids, so that a container of many hashes can keep a
+ * column of ids rather than a String per hash, and two sources can be compared
+ * by comparing their ids.
+ *
+ * Each source is split after its last '/' or '\', into the folder (or URL path)
+ * it's in and its name. Folders are stored once each, and every source is just
+ * the id of its folder and its name. So a scan of one folder stores its path
+ * once, rather than once per file.
+ *
+ * Ids only mean something to the dictionary that handed them out, and nothing
+ * is ever removed from one. So a dictionary belongs to whatever holds the ids,
+ * like a {@link hash.HashMatrix} or a {@link hashstore.DuplicateGroups}, and is
+ * dropped along with it. ImageHash and SourcedImage don't use one. They hold
+ * their source String, which every hash of an image already shares.
+ *
+ * Each distinct source costs its name, two array slots, and a slot or two of
+ * an int table, and saves the length of its folder. Measured with
+ * programs.SourceDictionaryBenchmark on a million sources, ones like
+ * /home/user/datasets/mirflickr/im999999.jpg take 77 bytes each with a column
+ * of their ids, against 92 as Strings and 153 as a String table indexed by a
+ * HashMap. Short ones like a/999999.png are smaller as Strings, 60 bytes
+ * against 77.
+ *
+ * Ids are only ever added, so looking one up doesn't lock. Only interning a
+ * source does. Safe to use from many threads at once.
+ *
+ * @author apaz-cli
+ */
+public class SourceDictionary {
+
+	// The id of a null source.
+	public static final int NO_SOURCE = -1;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Guarded by lock. There are few folders, so boxing them doesn't matter.
+	private final Map<String, Integer> folderIds = new HashMap<>();
+	// Guarded by lock. Open addressing on the folder and name of each source,
+	// holding id + 1, or 0 for an empty slot. At most half full.
+	private int[] table = new int[32];
+
+	// Only written holding the write lock, and read without it. Every entry below
+	// size (or folderCount) is written before size is, and arrays are only
+	// replaced by copies that hold the same entries, so anything under the size a
+	// reader sees is there.
+	private volatile String[] folders = new String[16];
+	private volatile int folderCount = 0;
+	private volatile int[] folderOf = new int[16];
+	private volatile String[] names = new String[16];
+	private volatile int size = 0;
+
+	/**
+	 * @return The id of the source, the same for every equal string, or
+	 *         NO_SOURCE if it's null.
+	 */
+	public int intern(String source) {
+		if (source == null) return NO_SOURCE;
+		int split = Math.max(source.lastIndexOf('/'), source.lastIndexOf('\\')) + 1;
+		String folder = source.substring(0, split), name = source.substring(split);
+
+		this.lock.readLock().lock();
+		try {
+			Integer folderId = this.folderIds.get(folder);
+			if (folderId != null) {
+				int id = this.find(folderId, name);
+				if (id != NO_SOURCE) return id;
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+
+		this.lock.writeLock().lock();
+		try {
+			Integer folderId = this.folderIds.get(folder);
+			if (folderId == null) {
+				folderId = this.folderCount;
+				if (folderId == this.folders.length) this.folders = Arrays.copyOf(this.folders, folderId * 2);
+				this.folders[folderId] = folder;
+				this.folderCount = folderId + 1;
+				this.folderIds.put(folder, folderId);
+			} else {
+				int id = this.find(folderId, name);
+				if (id != NO_SOURCE) return id;
+			}
+
+			int id = this.size;
+			if (id == this.names.length) {
+				this.folderOf = Arrays.copyOf(this.folderOf, id * 2);
+				this.names = Arrays.copyOf(this.names, id * 2);
+			}
+			this.folderOf[id] = folderId;
+			this.names[id] = name;
+			if ((id + 1) * 2 > this.table.length) this.rehash(this.table.length * 2);
+			this.insert(id);
+			this.size = id + 1;
+			return id;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private static int slot(int folderId, String name, int mask) {
+		int h = name.hashCode() * 31 + folderId;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	// Holding either lock.
+	private int find(int folderId, String name) {
+		int[] table = this.table;
+		int mask = table.length - 1;
+		for (int slot = slot(folderId, name, mask);; slot = (slot + 1) & mask) {
+			int entry = table[slot];
+			if (entry == 0) return NO_SOURCE;
+			int id = entry - 1;
+			if (this.folderOf[id] == folderId && this.names[id].equals(name)) return id;
+		}
+	}
+
+	// Holding the write lock.
+	private void insert(int id) {
+		int mask = this.table.length - 1;
+		int slot = slot(this.folderOf[id], this.names[id], mask);
+		while (this.table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.table[slot] = id + 1;
+	}
+
+	// Holding the write lock.
+	private void rehash(int capacity) {
+		this.table = new int[capacity];
+		for (int id = 0; id < this.size; id++) {
+			this.insert(id);
+		}
+	}
+
+	/**
+	 * @return The source with the given id, or null for NO_SOURCE. Sources with a
+	 *         folder are put back together on every call, so compare ids rather
+	 *         than sources where possible.
+	 */
+	public String get(int id) {
+		if (id == NO_SOURCE) return null;
+		// The size first, so that the arrays are at least as new as it.
+		if (id < 0 || id >= this.size) throw new IllegalArgumentException("There is no source with id " + id + ".");
+		String folder = this.folders[this.folderOf[id]], name = this.names[id];
+		return folder.isEmpty() ? name : folder.concat(name);
+	}
+
+	// Whether the id is NO_SOURCE or one that this dictionary has handed out.
+	public boolean contains(int id) {
+		return id == NO_SOURCE || (id >= 0 && id < this.size);
+	}
+
+	// The number of distinct sources.
+	public int size() {
+		return this.size;
+	}
+
+	// The number of distinct folders they're in.
+	public int folders() {
+		return this.folderCount;
+	}
+
+}
@@ -0,0 +1,412 @@
+package vptree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import hash.HashUtils;
+import hash.ImageHash;
+import utils.NeighborHeap;
+import utils.Pair;
+
+/**
+ * A vantage point tree over ImageHashes compared by hamming distance, written
+ * in plain Java. Unlike {@link VPTree}, it needs no native library, and the
+ * distance function is never boxed or called through an interface. It just
+ * counts differing bits between packed words.
+ * 
+ * The tree has no node objects. It is the hashes themselves, reordered so that
+ * every subtree occupies a contiguous range [lo, hi) of the arrays. The vantage
+ * point of the subtree is at lo, the points within the median distance mu[lo]
+ * of it fill [lo + 1, mid), and the rest fill [mid, hi), where mid is always
+ * halfway through. Ranges of LEAF_SIZE or fewer are just scanned. The words of
+ * every hash are copied into one flat array in the same order.
+ * 
+ * All of the hashes must have the same length. Comparing hashes from different
+ * algorithms is the caller's problem, as is everything else that
+ * {@link hash.IHashAlgorithm#canCompare(ImageHash, ImageHash)} would check.
+ * 
+ * Once built, the tree is immutable, and safe to query from many threads.
+ * 
+ * @author apaz-cli
+ */
+public class HammingVPTree {
+
+	private static final int LEAF_SIZE = 8;
+	// Subtrees bigger than this are built in parallel.
+	private static final int PARALLEL_BUILD_SIZE = 1 << 14;
+	// The number of queries each task of a self join handles.
+	private static final int JOIN_PARTITION_SIZE = 256;
+
+	private final ImageHash[] items;
+	private final long[] words;
+	private final int wordCount;
+	// The median distance from the vantage point at each index. Only meaningful
+	// for indexes that are the root of a subtree bigger than a leaf.
+	private final int[] mu;
+
+	public HammingVPTree(Collection<? extends ImageHash> hashes) {
+		this(hashes.toArray(new ImageHash[hashes.size()]));
+	}
+
+	public HammingVPTree(ImageHash[] hashes) {
+		int n = hashes.length;
+		this.wordCount = n == 0 ? 0 : hashes[0].getWords().length;
+		for (ImageHash h : hashes) {
+			if (h == null) throw new IllegalArgumentException("The hashes cannot be null.");
+			if (h.getWords().length != this.wordCount)
+				throw new IllegalArgumentException("All the hashes in a HammingVPTree must be the same length.");
+		}
+
+		// Build over a permutation of the input, then lay everything out in its order.
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		this.mu = new int[n];
+		Builder root = new Builder(hashes, order, new int[n], 0, n);
+		if (n > PARALLEL_BUILD_SIZE) ForkJoinPool.commonPool().invoke(root);
+		else root.compute();
+
+		this.items = new ImageHash[n];
+		this.words = new long[n * this.wordCount];
+		for (int i = 0; i < n; i++) {
+			this.items[i] = hashes[order[i]];
+			System.arraycopy(this.items[i].getWords(), 0, this.words, i * this.wordCount, this.wordCount);
+		}
+	}
+
+	/************/
+	/* Building */
+	/************/
+
+	// Builds the subtree over [lo, hi) of order, then its two children. dist holds
+	// the distance from each point to the vantage point of the subtree it's being
+	// partitioned in.
+	private class Builder extends RecursiveAction {
+		private static final long serialVersionUID = -3377716390424346585L;
+
+		private final ImageHash[] hashes;
+		private final int[] order, dist;
+		private final int lo, hi;
+
+		Builder(ImageHash[] hashes, int[] order, int[] dist, int lo, int hi) {
+			this.hashes = hashes;
+			this.order = order;
+			this.dist = dist;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= LEAF_SIZE) return;
+
+			// A random vantage point, swapped to the front.
+			swap(order, lo, lo + ThreadLocalRandom.current().nextInt(hi - lo));
+			long[] vantage = hashes[order[lo]].getWords();
+			for (int i = lo + 1; i < hi; i++) {
+				dist[i] = HashUtils.hammingDistance(vantage, hashes[order[i]].getWords());
+			}
+
+			int mid = middle(lo, hi);
+			select(order, dist, lo + 1, hi, mid);
+			mu[lo] = dist[mid];
+
+			Builder inner = new Builder(hashes, order, dist, lo + 1, mid);
+			Builder outer = new Builder(hashes, order, dist, mid, hi);
+			if (hi - lo > PARALLEL_BUILD_SIZE) {
+				invokeAll(inner, outer);
+			} else {
+				inner.compute();
+				outer.compute();
+			}
+		}
+	}
+
+	// Where the outer subtree of the subtree over [lo, hi) begins.
+	private static int middle(int lo, int hi) {
+		return lo + 1 + (hi - lo - 1) / 2;
+	}
+
+	// Quickselect. Rearranges [lo, hi) so that dist[k] is the value that would be
+	// there if the range were sorted, everything before it is no greater, and
+	// everything after it is no less. order is rearranged alongside dist.
+	private static void select(int[] order, int[] dist, int lo, int hi, int k) {
+		hi--;
+		while (hi > lo) {
+			int pivot = dist[lo + ThreadLocalRandom.current().nextInt(hi - lo + 1)];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (dist[i] < pivot) i++;
+				while (dist[j] > pivot) j--;
+				if (i <= j) {
+					swap(order, i, j);
+					swap(dist, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	private static void swap(int[] arr, int i, int j) {
+		int temp = arr[i];
+		arr[i] = arr[j];
+		arr[j] = temp;
+	}
+
+	/***********/
+	/* Queries */
+	/***********/
+
+	public int size() {
+		return this.items.length;
+	}
+
+	/**
+	 * @return A copy of the hashes in the tree, in the order the tree keeps them.
+	 */
+	public ImageHash[] getItems() {
+		return Arrays.copyOf(this.items, this.items.length);
+	}
+
+	/**
+	 * @param query The hash to find the nearest neighbor of
+	 * @return The nearest neighbor, or null when the tree is empty.
+	 */
+	public VPEntry<ImageHash> nn(ImageHash query) {
+		List<VPEntry<ImageHash>> nearest = this.knn(query, 1);
+		return nearest.isEmpty() ? null : nearest.get(0);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of the query.
+	 * 
+	 * @param query The hash to search around
+	 * @param k     The number of neighbors to find
+	 * @return The Math.min(this.size(), k) closest hashes in the tree, nearest
+	 *         first.
+	 */
+	public List<VPEntry<ImageHash>> knn(ImageHash query, int k) {
+		if (k < 0) throw new IllegalArgumentException("k cannot be negative.");
+		long[] q = this.queryWords(query);
+		NeighborHeap neighbors = new NeighborHeap(Math.min(k, this.items.length));
+		if (neighbors.capacity() > 0) this.knn(q, 0, this.items.length, neighbors);
+
+		long[] found = neighbors.sorted();
+		List<VPEntry<ImageHash>> entries = new ArrayList<>(found.length);
+		for (long entry : found) {
+			entries.add(new VPEntry<>(this.items[(int) entry], (double) (entry >>> 32)));
+		}
+		return entries;
+	}
+
+	private void knn(long[] q, int lo, int hi, NeighborHeap neighbors) {
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++) {
+				neighbors.offer(HashUtils.hammingDistanceAtMost(q, 0, this.words, i * this.wordCount, this.wordCount,
+						neighbors.radius()), i);
+			}
+			return;
+		}
+
+		int d = HashUtils.hammingDistance(q, 0, this.words, lo * this.wordCount, this.wordCount);
+		neighbors.offer(d, lo);
+
+		// Search the side that the query falls on first, so the radius shrinks
+		// before the other side is considered. The radius starts out as
+		// Integer.MAX_VALUE, so never add to it.
+		int mid = middle(lo, hi), m = this.mu[lo];
+		if (d < m) {
+			if (d - neighbors.radius() <= m) this.knn(q, lo + 1, mid, neighbors);
+			if (neighbors.radius() >= m - d) this.knn(q, mid, hi, neighbors);
+		} else {
+			if (neighbors.radius() >= m - d) this.knn(q, mid, hi, neighbors);
+			if (d - neighbors.radius() <= m) this.knn(q, lo + 1, mid, neighbors);
+		}
+	}
+
+	/**
+	 * Finds every hash in the tree within the given hamming distance of the
+	 * query.
+	 * 
+	 * @param query  The hash to search around
+	 * @param radius The largest distance to include, inclusive
+	 * @return The hashes within radius, in no particular order.
+	 */
+	public List<VPEntry<ImageHash>> range(ImageHash query, int radius) {
+		return this.rangeSearch(query, radius).matches;
+	}
+
+	/**
+	 * Finds every hash in the tree within the given hamming distance of the query,
+	 * and reports how many distances that took.
+	 * 
+	 * The search skips every subtree that the vantage point medians prove can't
+	 * hold a match. The bigger the radius, the less that proves, and past about a
+	 * quarter of the hash length the tree can't beat looking at everything. So
+	 * radii that large go straight to a parallel scan, and a search that has
+	 * computed more than half as many distances as there are hashes gives up and
+	 * scans instead.
+	 * 
+	 * @param query  The hash to search around
+	 * @param radius The largest distance to include, inclusive
+	 * @return The hashes within radius, in no particular order, and the cost.
+	 */
+	public RangeResult<ImageHash> rangeSearch(ImageHash query, int radius) {
+		long[] q = this.queryWords(query);
+		if (radius < 0 || this.items.length == 0) return new RangeResult<>(new ArrayList<>(), 0, false);
+
+		int evaluations = 0;
+		if (radius * 4 < this.items[0].getLength()) {
+			RangeSearch search = new RangeSearch(q, radius, this.items.length / 2);
+			if (search.search(0, this.items.length)) {
+				return new RangeResult<>(search.found, search.evaluations, false);
+			}
+			evaluations = search.evaluations;
+		}
+
+		List<VPEntry<ImageHash>> found = IntStream.range(0, this.items.length).parallel()
+				.mapToObj(i -> {
+					int d = HashUtils.hammingDistanceAtMost(q, 0, this.words, i * this.wordCount, this.wordCount, radius);
+					return d <= radius ? new VPEntry<>(this.items[i], (double) d) : null;
+				}).filter(e -> e != null).collect(Collectors.toList());
+		return new RangeResult<>(found, evaluations + this.items.length, true);
+	}
+
+	// The state of one pruned range query.
+	private class RangeSearch {
+		final long[] q;
+		final int radius, budget;
+		final List<VPEntry<ImageHash>> found = new ArrayList<>();
+		int evaluations = 0;
+
+		RangeSearch(long[] q, int radius, int budget) {
+			this.q = q;
+			this.radius = radius;
+			this.budget = budget;
+		}
+
+		// Returns false once the search has gone over budget.
+		boolean search(int lo, int hi) {
+			if (hi - lo <= LEAF_SIZE) {
+				this.evaluations += hi - lo;
+				for (int i = lo; i < hi; i++) {
+					int d = HashUtils.hammingDistanceAtMost(q, 0, words, i * wordCount, wordCount, radius);
+					if (d <= radius) found.add(new VPEntry<>(items[i], d));
+				}
+				return this.evaluations <= this.budget;
+			}
+
+			this.evaluations++;
+			int d = HashUtils.hammingDistance(q, 0, words, lo * wordCount, wordCount);
+			if (d <= radius) found.add(new VPEntry<>(items[lo], d));
+
+			int mid = middle(lo, hi), m = mu[lo];
+			if (d - radius <= m && !this.search(lo + 1, mid)) return false;
+			if (radius >= m - d && !this.search(mid, hi)) return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Finds every pair of hashes in the tree within the given hamming distance of
+	 * each other. This is the same as a range search around every hash in the
+	 * tree, but each pair comes out once, and never as a hash paired with itself.
+	 * 
+	 * Hash i is only paired with the hashes after it in the tree's order, so whole
+	 * subtrees before it are skipped without computing anything. Like
+	 * {@link #rangeSearch(ImageHash, int)}, a search that can't prune enough to
+	 * beat comparing hash i to everything after it does that instead. The queries
+	 * are split into partitions that are searched in parallel, and every query
+	 * tries the tree on its own.
+	 * 
+	 * @param radius The largest distance to include, inclusive
+	 * @return The pairs within radius, in no particular order.
+	 */
+	public List<Pair<ImageHash, ImageHash>> selfJoin(int radius) {
+		if (radius < 0) return new ArrayList<>();
+		int n = this.items.length;
+		boolean useTree = n != 0 && radius * 4 < this.items[0].getLength();
+		int partitions = (n + JOIN_PARTITION_SIZE - 1) / JOIN_PARTITION_SIZE;
+		return IntStream.range(0, partitions).parallel().mapToObj(p -> {
+			JoinSearch search = new JoinSearch(radius);
+			int end = Math.min(n, (p + 1) * JOIN_PARTITION_SIZE);
+			for (int q = p * JOIN_PARTITION_SIZE; q < end; q++) {
+				search.searchFrom(q, useTree);
+			}
+			return search.found;
+		}).flatMap(List::stream).collect(Collectors.toList());
+	}
+
+	// The state of one partition of a self join.
+	private class JoinSearch {
+		final int radius;
+		final List<Pair<ImageHash, ImageHash>> found = new ArrayList<>();
+		int q, qOffset, evaluations, budget;
+
+		JoinSearch(int radius) {
+			this.radius = radius;
+		}
+
+		// Adds every pair of q and a hash after it.
+		void searchFrom(int q, boolean useTree) {
+			this.q = q;
+			this.qOffset = q * wordCount;
+			this.evaluations = 0;
+			this.budget = (items.length - q - 1) / 2;
+
+			int before = this.found.size();
+			if (useTree && this.search(0, items.length)) return;
+
+			this.found.subList(before, this.found.size()).clear();
+			this.scan(q + 1, items.length);
+		}
+
+		// Returns false once the search has gone over budget.
+		boolean search(int lo, int hi) {
+			if (hi <= q + 1) return true;
+			if (hi - lo <= LEAF_SIZE) {
+				int from = Math.max(lo, q + 1);
+				this.evaluations += hi - from;
+				this.scan(from, hi);
+				return this.evaluations <= this.budget;
+			}
+
+			this.evaluations++;
+			int d = HashUtils.hammingDistance(words, qOffset, words, lo * wordCount, wordCount);
+			if (lo > q && d <= radius) found.add(new Pair<>(items[q], items[lo]));
+
+			int mid = middle(lo, hi), m = mu[lo];
+			if (d - radius <= m && !this.search(lo + 1, mid)) return false;
+			if (radius >= m - d && !this.search(mid, hi)) return false;
+			return true;
+		}
+
+		void scan(int from, int to) {
+			for (int i = from; i < to; i++) {
+				int d = HashUtils.hammingDistanceAtMost(words, qOffset, words, i * wordCount, wordCount, radius);
+				if (d <= radius) found.add(new Pair<>(items[q], items[i]));
+			}
+		}
+	}
+
+	private long[] queryWords(ImageHash query) {
+		if (query == null) throw new IllegalArgumentException("The query cannot be null.");
+		long[] q = query.getWords();
+		if (this.items.length != 0 && q.length != this.wordCount)
+			throw new IllegalArgumentException("The query is not the same length as the hashes in the tree.");
+		return q;
+	}
+
+}
@@ -0,0 +1,29 @@
+package vptree;
+
+import java.util.List;
+
+// What a range query found, and what it cost.
+public class RangeResult<T> {
+	public List<VPEntry<T>> matches;
+	// The number of items whose distance to the query was computed.
+	public int distanceEvaluations;
+	// Whether the search gave up on the tree and scanned every item instead.
+	public boolean scanned;
+
+	public RangeResult(List<VPEntry<T>> matches, int distanceEvaluations, boolean scanned) {
+		this.matches = matches;
+		this.distanceEvaluations = distanceEvaluations;
+		this.scanned = scanned;
+	};
+
+	@Override
+	public String toString() {
+		return new StringBuilder()
+				.append('<')
+				.append(this.matches.size())
+				.append(" matches, ")
+				.append(this.distanceEvaluations)
+				.append(this.scanned ? " evaluations, scanned>" : " evaluations>")
+				.toString();
+	}
+}
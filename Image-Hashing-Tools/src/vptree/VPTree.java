@@ -17,6 +17,10 @@ public class VPTree<T> implements Closeable {
 	/**
 	 * Creates a Vantage Point Tree out of the items from the given collection.
 	 * 
+	 * This tree requires the JVPTree native library, which is loaded the first
+	 * time the class is used. For ImageHashes compared by hamming distance, use
+	 * {@link HammingVPTree} instead, which is pure Java.
+	 * 
 	 * The distance function may not return null. It also may not throw an
 	 * exception.
 	 * 
@@ -0,0 +1,72 @@
+package hash;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class HalfDCTIITest {
+
+	// The top left quarter of the DCT-II, straight from the definition, with
+	// nothing precomputed or separated.
+	private static double[] naiveHalfDCTII(byte[] original, int size) {
+		int half = size / 2;
+		double[] transformed = new double[half * half];
+		for (int u = 0; u < half; u++) {
+			for (int v = 0; v < half; v++) {
+				double sum = 0;
+				for (int i = 0; i < size; i++) {
+					for (int j = 0; j < size; j++) {
+						sum += Math.cos((2 * i + 1) * u * Math.PI / (2.0 * size))
+								* Math.cos((2 * j + 1) * v * Math.PI / (2.0 * size)) * original[i * size + j];
+					}
+				}
+				double cu = u == 0 ? 1 / Math.sqrt(2) : 1, cv = v == 0 ? 1 / Math.sqrt(2) : 1;
+				transformed[u * half + v] = 2 * cu * cv / size * sum;
+			}
+		}
+		return transformed;
+	}
+
+	@Test
+	void matchesDefinitionTest() {
+		Random r = new Random(4);
+		// Odd sizes leave a row and column out of the half, and 128 is what pHash
+		// transforms by default.
+		for (int size : new int[] { 2, 3, 8, 17, 32, 63, 128 }) {
+			byte[] pixels = new byte[size * size];
+			r.nextBytes(pixels);
+			// The extremes, since pixels are read as signed bytes.
+			pixels[0] = Byte.MIN_VALUE;
+			pixels[pixels.length - 1] = Byte.MAX_VALUE;
+
+			int half = size / 2;
+			double[] expected = naiveHalfDCTII(pixels, size);
+			double[] coefficients = HalfDCTII.createHalfDCTIICoefficients(size);
+			double[] actual = HalfDCTII.halfDCTII(pixels, size, coefficients);
+			assertEquals(half * half, actual.length);
+			// Each coefficient sums size^2 terms of up to 128.
+			double tolerance = 1e-12 * 128 * size * size;
+			for (int k = 0; k < expected.length; k++) {
+				assertEquals(expected[k], actual[k], tolerance, "size " + size + ", coefficient " + k);
+			}
+
+			// Buffers left over from something else don't change anything.
+			double[] rowPass = new double[half * size], transformed = new double[half * half];
+			Arrays.fill(rowPass, Double.NaN);
+			Arrays.fill(transformed, Double.NaN);
+			assertArrayEquals(actual, HalfDCTII.halfDCTII(pixels, size, coefficients,
+					HalfDCTII.createCosineLookup(size), rowPass, transformed), 0);
+
+			// The shared tables, looked up by size, give the same transform.
+			HalfDCTII.Tables tables = HalfDCTII.tablesFor(size);
+			assertSame(tables, HalfDCTII.tablesFor(size));
+			assertArrayEquals(actual, tables.transform(pixels), 0);
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package hash;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import hash.implementations.DifferenceHash;
+import hashstore.HammingStoreFixture;
+
+public class HashMatrixTest {
+
+	@Test
+	void kernelsMatchImageHashesTest() {
+		Random r = new Random(5);
+		DifferenceHash alg = new DifferenceHash(16);
+		List<ImageHash> hashes = new ArrayList<>();
+		for (ImageHash h : HammingStoreFixture.random(alg, 700, 3, r)) {
+			int i = hashes.size();
+			// Half of them share a source.
+			hashes.add(new ImageHash(alg, h.getWords(), i % 2 == 0 ? "same" : i % 3 == 0 ? null : "image" + i));
+		}
+
+		HashMatrix m = HashMatrix.of(hashes);
+		assertEquals(hashes.size(), m.size());
+		assertEquals(hashes, m.toList());
+		for (int i = 0; i < hashes.size(); i++) {
+			assertEquals(hashes.get(i).getSource(), m.getSource(i));
+		}
+		assertEquals(m.getSourceId(0), m.getSourceId(2));
+
+		ImageHash query = hashes.get(123);
+		int[] distances = m.distances(query);
+		int[] block = new int[100 * 50];
+		m.distances(200, 300, m, 450, 500, block);
+		for (int j = 0; j < hashes.size(); j++) {
+			assertEquals(HashUtils.hammingDistance(query, hashes.get(j)), distances[j]);
+			assertEquals(distances[j], m.distance(123, j));
+		}
+		for (int i = 200; i < 300; i++) {
+			for (int j = 450; j < 500; j++) {
+				assertEquals(HashUtils.hammingDistance(hashes.get(i), hashes.get(j)), block[(i - 200) * 50 + j - 450]);
+			}
+		}
+
+		int threshold = 40;
+		Set<Long> found = ConcurrentHashMap.newKeySet();
+		m.forEachPairWithin(threshold, (i, j, d) -> {
+			assertEquals(HashUtils.hammingDistance(hashes.get(i), hashes.get(j)), d);
+			assertTrue(i < j, "Out of order: " + i + ", " + j);
+			assertTrue(found.add(HammingStoreFixture.pair(i, j)), "Found twice: " + i + ", " + j);
+		});
+		assertEquals(HammingStoreFixture.pairsWithin(hashes, threshold), found);
+
+		// Every row of half against every row of m, so (i, j) and (j, i) are both
+		// there, and so is (i, i).
+		HashMatrix half = HashMatrix.of(hashes.subList(0, 350));
+		Set<Long> crossFound = ConcurrentHashMap.newKeySet();
+		half.forEachPairWithin(m, threshold, (i, j, d) -> {
+			assertEquals(HashUtils.hammingDistance(hashes.get(i), hashes.get(j)), d);
+			assertTrue(crossFound.add((long) i << 32 | j), "Found twice: " + i + ", " + j);
+		});
+		Set<Long> crossExpected = new HashSet<>();
+		for (int i = 0; i < 350; i++) {
+			for (ImageHash h : HammingStoreFixture.within(hashes, hashes.get(i), threshold)) {
+				crossExpected.add((long) i << 32 | hashes.indexOf(h));
+			}
+		}
+		assertEquals(crossExpected, crossFound);
+	}
+
+}
@@ -0,0 +1,106 @@
+package hash;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.implementations.DifferenceHash;
+
+public class ImageHashParserTest {
+
+	@Test
+	void roundTripTest() throws ClassNotFoundException {
+		Random r = new Random(11);
+		ImageHashParser parser = new ImageHashParser();
+		IHashAlgorithm[] algs = { new DifferenceHash(8), new DifferenceHash(16) };
+		String[] sources = { "/images/a.png", "https://example.com/a,b,c.png", null, "", "\u00fc.png" };
+		for (int i = 0; i < 200; i++) {
+			IHashAlgorithm alg = algs[i % algs.length];
+			long[] words = new long[ImageHash.wordCount(alg.getHashLength())];
+			for (int w = 0; w < words.length; w++) {
+				words[w] = r.nextLong();
+			}
+			String source = sources[i % sources.length];
+			// An empty source writes as a trailing comma, which has always been dropped.
+			if ("".equals(source)) continue;
+			ImageHash h = new ImageHash(alg, words, source);
+			ImageHash parsed = parser.parse(h.toString());
+			assertEquals(h, parsed);
+			assertEquals(source == null ? "null" : source, parsed.getSource());
+			assertEquals(h, ImageHash.fromString(h.toString()));
+		}
+	}
+
+	@Test
+	void compatibilityTest() throws ClassNotFoundException {
+		ImageHashParser parser = new ImageHashParser();
+		DifferenceHash alg = new DifferenceHash(8);
+		String prefix = "00000000000000ff,dHash,8,";
+
+		// Lower case, and padding past the hash.
+		assertEquals(0xabcdefL, parser.parse("0000000000abcdef0000,dHash,8,x").getWords()[0]);
+		// Trailing commas are dropped, and inner ones kept.
+		assertEquals("a,b", parser.parse(prefix + "a,b,,").getSource());
+		assertEquals(",x", parser.parse(prefix + ",x").getSource());
+		// Only the given range is parsed.
+		String line = "junk" + prefix + "y" + "junk";
+		assertEquals("y", parser.parse(line, 4, line.length() - 4).getSource());
+		assertEquals(new ImageHash(alg, new long[] { 0xff }, "x"), parser.parse(prefix + "x"));
+
+		assertThrows(IllegalArgumentException.class, () -> parser.parse("00000000000000ff,dHash,8"));
+		assertThrows(IllegalArgumentException.class, () -> parser.parse("00000000000000ff,dHash,8,,,"));
+		assertThrows(IllegalArgumentException.class, () -> parser.parse(""));
+		assertThrows(IllegalArgumentException.class, () -> parser.parse("00ff,dHash,8,x"));
+		assertThrows(IllegalArgumentException.class, () -> parser.parse("00000000000000fg,dHash,8,x"));
+		assertThrows(ClassNotFoundException.class, () -> parser.parse("00000000000000ff,noSuchHash,8,x"));
+		// The cached algorithm doesn't stick when the arguments change.
+		assertEquals(16 * 16, parser.parse("0000000000000000000000000000000000000000000000000000000000000001,dHash,16,x")
+				.getAlgorithm().getHashLength());
+
+		byte[] bytes = (prefix + "\u00fc.png").getBytes(Charset.defaultCharset());
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 2);
+		buffer.position(1);
+		buffer.put(bytes);
+		ImageHash fromBytes = parser.parse(buffer, 1, 1 + bytes.length);
+		assertEquals(new String(bytes, Charset.defaultCharset()).substring(prefix.length()), fromBytes.getSource());
+		assertEquals(0xffL, fromBytes.getWords()[0]);
+	}
+
+	@Test
+	void readAllTest() throws IOException, ClassNotFoundException {
+		Random r = new Random(12);
+		DifferenceHash alg = new DifferenceHash(16);
+		List<ImageHash> hashes = new ArrayList<>();
+		File file = File.createTempFile("parse", ".txt");
+		file.deleteOnExit();
+		try (PrintWriter w = new PrintWriter(new FileWriter(file))) {
+			for (int i = 0; i < 1000; i++) {
+				long[] words = new long[4];
+				for (int j = 0; j < words.length; j++) {
+					words[j] = r.nextLong();
+				}
+				ImageHash h = new ImageHash(alg, words, i % 7 == 0 ? null : "/images/" + i + ",copy.png");
+				hashes.add(h);
+				// Windows line endings and blank lines are fine.
+				w.print(h + (i % 2 == 0 ? "\r\n" : "\n"));
+				if (i % 100 == 0) w.println();
+			}
+		}
+
+		// Small chunks, so that lines fall across their edges.
+		assertEquals(hashes, ImageHashParser.readAll(file, 1000));
+		assertEquals(hashes, ImageHashParser.readAll(file));
+	}
+
+}
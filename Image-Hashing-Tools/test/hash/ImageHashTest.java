@@ -1,10 +1,16 @@
 package hash;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
 
+import hash.implementations.AverageHash;
 import hash.implementations.DifferenceHash;
+import hash.implementations.PerceptualHash;
 import utils.TestUtils;
 
 public class ImageHashTest {
@@ -15,4 +21,85 @@ public class ImageHashTest {
 		assertEquals(h, ImageHash.fromString(h.toString()));
 	}
 
+	// 81 and 25 bits don't fill their last word. toString() writes whole words of
+	// hex, where earlier versions wrote whole bytes, and both have to come back as
+	// the same hash, whatever the padding holds.
+	@Test
+	void partialWordRoundTripTest() throws IllegalArgumentException, ClassNotFoundException {
+		Random r = new Random(1);
+		for (int side : new int[] { 9, 5 }) {
+			DifferenceHash alg = new DifferenceHash(side);
+			int length = alg.getHashLength();
+			long[] words = new long[ImageHash.wordCount(length)];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = r.nextLong() | 1;
+			}
+			long[] junk = words.clone();
+			ImageHash h = new ImageHash(alg, words, "a,b.png");
+
+			// The padding is cleared, so it doesn't count towards anything.
+			long padding = ~(-1L << (64 * words.length - length));
+			assertEquals(0, h.getWords()[words.length - 1] & padding);
+			ImageHash clean = new ImageHash(alg, h.getWords().clone(), "a,b.png");
+			assertEquals(clean, new ImageHash(alg, junk.clone(), "a,b.png"));
+			assertEquals(0, HashUtils.hammingDistance(clean, new ImageHash(alg, junk.clone(), null)));
+
+			String text = h.toString();
+			String hex = text.substring(0, text.indexOf(','));
+			assertEquals(words.length * 16, hex.length());
+			assertEquals(h, ImageHash.fromString(text));
+			assertArrayEquals(h.getWords(), ImageHash.fromString(text).getWords());
+
+			// Whole bytes, like before, and hex with the padding bits set.
+			String bytes = hex.substring(0, (length + 7) / 8 * 2);
+			assertEquals(h, ImageHash.fromString(bytes + text.substring(hex.length())));
+			String dirty = hex.substring(0, hex.length() - 1) + 'F';
+			assertEquals(h, ImageHash.fromString(dirty + text.substring(hex.length())));
+		}
+	}
+
+	// The tightest of the modes that matches() agrees with, or null if there are
+	// none. Modes can share a threshold on short hashes, and then the tighter one
+	// wins.
+	private static MatchMode tightestByMatches(ImageHash h1, ImageHash h2) {
+		MatchMode tightest = null;
+		for (MatchMode mode : MatchMode.values()) {
+			if (h1.matches(h2, mode) && (tightest == null || mode.compareTo(tightest) > 0)) tightest = mode;
+		}
+		return tightest;
+	}
+
+	@Test
+	void tightestMatchTest() {
+		Random r = new Random(3);
+		// 9 bits puts EXACT, STRICT and NORMAL all at 0, and 81 bits doesn't fill
+		// its last word.
+		IHashAlgorithm[] algs = { new DifferenceHash(3), new DifferenceHash(9), new AverageHash(8),
+				new PerceptualHash(16) };
+		for (IHashAlgorithm alg : algs) {
+			int length = alg.getHashLength();
+			long[] words = new long[ImageHash.wordCount(length)];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = r.nextLong();
+			}
+			ImageHash h = new ImageHash(alg, words, null);
+			assertEquals(MatchMode.EXACT, h.tightestMatch(h), alg.algName());
+
+			// Every distance up to a little past SLOPPY, so each threshold is hit exactly
+			// and overshot by one.
+			int sloppy = alg.matchThreshold(MatchMode.SLOPPY);
+			for (int distance = 0; distance <= Math.min(length, sloppy + 2); distance++) {
+				long[] flipped = h.getWords().clone();
+				for (int bit = 0; bit < distance; bit++) {
+					flipped[bit / 64] ^= 1L << (63 - bit % 64);
+				}
+				ImageHash other = new ImageHash(alg, flipped, null);
+				String what = alg.algName() + " " + length + " bits at distance " + distance;
+				assertEquals(tightestByMatches(h, other), h.tightestMatch(other), what);
+				assertEquals(h.tightestMatch(other), other.tightestMatch(h), what);
+				if (distance > sloppy) assertNull(h.tightestMatch(other), what);
+			}
+		}
+	}
+
 }
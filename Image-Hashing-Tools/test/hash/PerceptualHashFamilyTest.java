@@ -0,0 +1,93 @@
+package hash;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import hash.implementations.PerceptualHash;
+import hash.implementations.PerceptualHashFamily;
+import hashstore.MIHHashStore;
+import image.ResizeMode;
+import image.implementations.RGBImage;
+
+public class PerceptualHashFamilyTest {
+
+	private static List<RGBImage> images() throws IOException {
+		List<RGBImage> images = new ArrayList<>();
+		images.add(new RGBImage(ImageIO.read(new File("cli-src/app/gui/FileNotFound.png"))));
+		images.add(new RGBImage(ImageIO.read(new File("cli-src/app/gui/FNFDecoration.png"))));
+
+		Random r = new Random(5);
+		BufferedImage img = new BufferedImage(301, 227, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++) {
+				img.setRGB(x, y, r.nextInt());
+			}
+		}
+		images.add(new RGBImage(img));
+		return images;
+	}
+
+	// The family must produce exactly what its algorithms produce on their own.
+	// For the largest side length that's the standalone pHash. For the smaller
+	// ones, it's the derived pHash, not the standalone one.
+	@Test
+	void familyMatchesItsAlgorithmsTest() throws IOException {
+		PerceptualHashFamily family = new PerceptualHashFamily(16, 32, 64);
+		List<PerceptualHash> algs = family.getAlgorithms();
+		assertEquals(new PerceptualHash(64), algs.get(2));
+		assertEquals(new PerceptualHash(16, ResizeMode.BILINEAR, 64), algs.get(0));
+		assertEquals(new PerceptualHash(32, ResizeMode.BILINEAR, 64), algs.get(1));
+
+		for (RGBImage img : images()) {
+			ImageHash[] hashes = family.hash(img);
+			for (int i = 0; i < hashes.length; i++) {
+				ImageHash alone = algs.get(i).hash(img);
+				assertTrue(alone.getAlgorithm().algEquals(hashes[i].getAlgorithm()));
+				assertEquals(alone.getLength(), hashes[i].getLength());
+				assertEquals(0, HashUtils.hammingDistance(alone.getWords(), hashes[i].getWords()));
+			}
+		}
+	}
+
+	// Derived hashes are far from standalone ones, so the two must never be
+	// treated as interchangeable.
+	@Test
+	void derivedIsNotStandaloneTest() throws IOException, ClassNotFoundException {
+		PerceptualHash standalone = new PerceptualHash(16);
+		PerceptualHash derived = new PerceptualHash(16, ResizeMode.BILINEAR, 32);
+		assertTrue(derived.isDerived());
+		assertFalse(standalone.isDerived());
+		assertFalse(standalone.algEquals(derived));
+		assertFalse(derived.algEquals(new PerceptualHash(16, ResizeMode.BILINEAR, 64)));
+		assertNotEquals(standalone.toArguments(), derived.toArguments());
+		assertEquals(derived, derived.fromArguments(derived.toArguments()));
+		assertEquals(standalone, standalone.fromArguments(standalone.toArguments()));
+
+		ImageHash d = derived.hash(images().get(0));
+		ImageHash s = standalone.hash(images().get(0));
+		assertEquals(d.getLength(), s.getLength());
+		assertTrue(HashUtils.hammingDistance(d.getWords(), s.getWords()) > 0);
+		assertEquals(d, ImageHash.fromString(d.toString()));
+
+		assertThrows(IllegalArgumentException.class, () -> standalone.distance(s, d));
+		assertThrows(IllegalArgumentException.class, () -> d.distance(s));
+		MIHHashStore store = new MIHHashStore();
+		store.store(s);
+		assertThrows(IllegalArgumentException.class, () -> store.store(d));
+	}
+
+}
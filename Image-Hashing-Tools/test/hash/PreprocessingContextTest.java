@@ -0,0 +1,90 @@
+package hash;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.implementations.AverageHash;
+import hash.implementations.DifferenceHash;
+import hash.implementations.PerceptualHash;
+import hash.implementations.PerceptualHashFamily;
+import image.IImage;
+import image.ResizeMode;
+import image.implementations.GreyscaleImage;
+import image.implementations.LazyRGBAImage;
+import image.implementations.RGBAImage;
+import image.implementations.RGBImage;
+import image.implementations.SourcedImage;
+import image.implementations.YCbCrImage;
+
+public class PreprocessingContextTest {
+
+	private static BufferedImage randomImage(Random r, int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				img.setRGB(x, y, r.nextInt());
+			}
+		}
+		return img;
+	}
+
+	// One shared context, asked for thumbnails in a different order for every
+	// image, has to hash the same as each algorithm does on its own. Several
+	// algorithms want the same sizes, in both modes, so thumbnails do get reused.
+	@Test
+	void sameAsHashingAloneTest() {
+		Random r = new Random(6);
+		List<IHashAlgorithm> algs = new ArrayList<>();
+		for (ResizeMode mode : ResizeMode.values()) {
+			algs.add(new AverageHash(8, mode));
+			algs.add(new AverageHash(16, mode));
+			algs.add(new DifferenceHash(9, mode));
+			algs.add(new DifferenceHash(16, mode));
+			algs.add(new PerceptualHash(16, mode));
+			algs.add(new PerceptualHash(32, mode));
+		}
+
+		BufferedImage buffered = randomImage(r, 203, 131);
+		RGBAImage rgba = new RGBAImage(buffered);
+		IImage<?>[] images = { rgba, rgba.toRGB(), rgba.toGreyscale(), new YCbCrImage(rgba.toRGB()),
+				new LazyRGBAImage(buffered), new SourcedImage(rgba, "a,b.png", false) };
+		for (IImage<?> img : images) {
+			String what = img.getClass().getSimpleName();
+			PreprocessingContext context = new PreprocessingContext(img);
+			Collections.shuffle(algs, r);
+			for (IHashAlgorithm alg : algs) {
+				String name = what + " " + alg.algName() + " " + alg.toArguments();
+				ImageHash shared = alg.hash(context);
+				assertEquals(alg.hash(img), shared, name);
+				assertArrayEquals(alg.hash(img).getWords(), shared.getWords(), name);
+				assertEquals(img instanceof SourcedImage ? "a,b.png" : null, shared.getSource(), what);
+			}
+
+			// The bilinear thumbnails are what the algorithms resized to before there
+			// was a context.
+			for (int side : new int[] { 8, 9, 16, 32 }) {
+				assertArrayEquals(img.resizeBilinear(side, side).toGreyscale().getPixels(),
+						context.getGreyscaleThumbnail(side).getPixels(), what + " " + side);
+			}
+
+			// Families draw the largest thumbnail from the same context.
+			for (ResizeMode mode : ResizeMode.values()) {
+				PerceptualHashFamily family = new PerceptualHashFamily(new PerceptualHash(8, mode),
+						new PerceptualHash(16, mode), new PerceptualHash(32, mode));
+				ImageHash[] hashes = family.hash(context);
+				for (int i = 0; i < hashes.length; i++) {
+					assertEquals(family.getAlgorithms().get(i).hash(img), hashes[i], what + " " + mode + " " + i);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class BKTreeHashStoreTest {
+
+	@Test
+	void matchesLinearScanTest() throws IOException {
+		Random r = new Random(42);
+		// 144 bits, so distances span more than one word.
+		DifferenceHash alg = new DifferenceHash(12);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 11, r);
+
+		BKTreeHashStore store = new BKTreeHashStore();
+		for (ImageHash h : hashes) {
+			store.store(h);
+		}
+		assertEquals(hashes.size(), store.size());
+
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 5, 11, 30 }, r);
+	}
+
+	@Test
+	void duplicatesTest() throws IOException {
+		Random r = new Random(3);
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> hashes = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			hashes.add(new ImageHash(alg, new long[] { r.nextLong() }, "" + i));
+		}
+		// Three more copies of hash 10, stored as 200, 201, and 202, then two of the
+		// root, with a hash one bit from hash 10 in between, as 203 to 205.
+		ImageHash original = hashes.get(10);
+		for (int i = 0; i < 3; i++) {
+			hashes.add(new ImageHash(alg, original.getWords().clone(), "copy" + i));
+		}
+		hashes.add(new ImageHash(alg, hashes.get(0).getWords().clone(), "root copy0"));
+		hashes.add(new ImageHash(alg, new long[] { original.getWords()[0] ^ 1 }, "near"));
+		hashes.add(new ImageHash(alg, hashes.get(0).getWords().clone(), "root copy1"));
+		BKTreeHashStore store = new BKTreeHashStore();
+		// In two goes, so that the chains carry on across stores.
+		store.storeAll(hashes.subList(0, 202));
+		store.storeAll(hashes.subList(202, hashes.size()));
+
+		// Chained off of the first, newest first, and not in the tree themselves.
+		assertEquals(Arrays.asList(202, 201, 200), store.duplicatesOf(10));
+		assertEquals(Arrays.asList(205, 203), store.duplicatesOf(0));
+		assertEquals(Arrays.asList(), store.duplicatesOf(11));
+		assertEquals(Arrays.asList(), store.duplicatesOf(204));
+
+		List<ImageHash> copies = HammingStoreFixture.within(hashes, original, 0);
+		assertEquals(4, copies.size());
+		HammingStoreFixture.assertSameHashes(copies, store.kNN(original, 4));
+		HammingStoreFixture.assertSameHashes(copies, store.allWithinDistance(original, 0));
+		HammingStoreFixture.assertNearest(hashes, original, 5, store.kNN(original, 5));
+		// Every copy pairs with every other, and with the hash one bit away, once.
+		for (MatchMode mode : MatchMode.values()) {
+			HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(mode), store.findMatches(mode));
+		}
+	}
+
+	@Test
+	void budgetFallbackTest() throws IOException {
+		Random r = new Random(5);
+		DifferenceHash alg = new DifferenceHash(12);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 5, r);
+		assertFalse(new BKTreeHashStore().prunes(hashes.get(0), 2));
+		BKTreeHashStore store = new BKTreeHashStore(hashes);
+
+		for (int q = 0; q < 10; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			// Small radii stay in the tree. Large ones visit more than half of it, and
+			// compare against everything instead, without reporting anything twice.
+			assertTrue(store.prunes(query, 2));
+			assertFalse(store.prunes(query, 60));
+			assertFalse(store.prunes(query, alg.getHashLength()));
+			for (int radius : new int[] { 2, 60, alg.getHashLength() }) {
+				HammingStoreFixture.assertSameHashes(HammingStoreFixture.within(hashes, query, radius),
+						store.allWithinDistance(query, radius));
+			}
+		}
+
+		// In findMatches(), each query only has the hashes after it to go through, so
+		// its budget shrinks with them. The last queries give up on the tree at any
+		// threshold, while most of the first ones only give up at SLOPPY's.
+		for (MatchMode mode : MatchMode.values()) {
+			HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(mode), store.findMatches(mode));
+		}
+	}
+
+}
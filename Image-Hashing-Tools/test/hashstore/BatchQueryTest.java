@@ -0,0 +1,66 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.ImageHash;
+import hash.implementations.DifferenceHash;
+
+public class BatchQueryTest {
+
+	@Test
+	void matchesOneQueryAtATimeTest() throws IOException {
+		Random r = new Random(7);
+		DifferenceHash alg = new DifferenceHash(8);
+		// More than one block of each, so that the blocks have to line up.
+		List<ImageHash> hashes = HammingStoreFixture.random(alg, BatchScan.STORED_BLOCK_SIZE + 1000, 3, r);
+		List<ImageHash> queries = new ArrayList<>();
+		for (int i = 0; i < BatchScan.QUERY_BLOCK_SIZE * 2 + 5; i++) {
+			queries.add(hashes.get(r.nextInt(hashes.size())));
+		}
+
+		ListHashStore list = new ListHashStore();
+		list.storeAll(hashes);
+		File file = File.createTempFile("batch", ".txt");
+		file.deleteOnExit();
+		LinearHashStore linear = new LinearHashStore(file);
+		linear.storeAll(hashes);
+		MIHHashStore mih = new MIHHashStore();
+		mih.storeAll(hashes);
+		// Segments that don't line up with the blocks.
+		File mappedFile = File.createTempFile("batch", ".store");
+		mappedFile.delete();
+		mappedFile.deleteOnExit();
+		new File(mappedFile.getPath() + ".sources").deleteOnExit();
+		int recordBytes = (ImageHash.wordCount(alg.getHashLength()) + 1) * 8;
+		MappedHashStore mapped = new MappedHashStore(mappedFile, alg, recordBytes * 1500);
+		mapped.storeAll(hashes);
+
+		for (HashStore store : new HashStore[] { list, linear, mih, mapped }) {
+			List<List<ImageHash>> nearest = store.kNNBatch(queries, 5);
+			List<List<ImageHash>> within = store.allWithinDistanceBatch(queries, 10);
+			assertEquals(queries.size(), nearest.size());
+			assertEquals(queries.size(), within.size());
+
+			for (int q = 0; q < queries.size(); q++) {
+				ImageHash query = queries.get(q);
+				HammingStoreFixture.assertNearest(hashes, query, 5, nearest.get(q));
+				HammingStoreFixture.assertSameHashes(HammingStoreFixture.within(hashes, query, 10), within.get(q));
+
+				// And the same as asking one query at a time.
+				HammingStoreFixture.assertSameNearest(query, nearest.get(q), store.kNN(query, 5));
+				HammingStoreFixture.assertSameHashes(within.get(q), store.allWithinDistance(query, 10));
+			}
+		}
+		linear.close();
+		mapped.close();
+	}
+
+}
@@ -0,0 +1,83 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class DuplicateGroupsTest {
+
+	@Test
+	void groupsIdenticalHashesTest() {
+		Random r = new Random(42);
+		DifferenceHash alg = new DifferenceHash(16);
+		List<ImageHash> hashes = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			// A few hundred distinct hashes, some of which differ by a single bit.
+			Random distinct = new Random(r.nextInt(500));
+			long[] words = new long[ImageHash.wordCount(alg.getHashLength())];
+			for (int j = 0; j < words.length; j++) {
+				words[j] = distinct.nextLong();
+			}
+			if (r.nextInt(10) == 0) words[0] ^= 1;
+			hashes.add(new ImageHash(alg, words, "" + i));
+		}
+		ImageHash[] arr = hashes.toArray(new ImageHash[hashes.size()]);
+
+		DuplicateGroups groups = DuplicateGroups.of(arr);
+		HammingStoreFixture.assertSamePairs(hashes, 0, groups.matches(false));
+		HammingStoreFixture.assertSamePairs(hashes, 0, HashStore.selfJoin(arr, alg, MatchMode.EXACT, false));
+
+		int grouped = 0;
+		for (int g = 0; g < groups.distinctCount(); g++) {
+			grouped += groups.group(g).size();
+		}
+		assertEquals(arr.length, grouped);
+
+		// Joining only the distinct hashes and expanding finds the same matches as
+		// joining all of them.
+		HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(MatchMode.STRICT),
+				HashStore.selfJoin(arr, alg, MatchMode.STRICT, false));
+	}
+
+	// Images hashed more than once, in folders with either separator, and hashes
+	// without a source, which never count as the same as each other.
+	@Test
+	void skipSameSourceTest() {
+		Random r = new Random(43);
+		DifferenceHash alg = new DifferenceHash(8);
+		String[] folders = { "a/", "a/b/", "C:\\a\\", "" };
+		Set<ImageHash> unique = new LinkedHashSet<>();
+		while (unique.size() < 1500) {
+			Random distinct = new Random(r.nextInt(200));
+			long[] words = new long[ImageHash.wordCount(alg.getHashLength())];
+			for (int j = 0; j < words.length; j++) {
+				words[j] = distinct.nextLong();
+			}
+			if (r.nextInt(4) == 0) words[0] ^= 1L << r.nextInt(64);
+			String source = r.nextInt(5) == 0 ? null : folders[r.nextInt(folders.length)] + r.nextInt(40) + ".png";
+			unique.add(new ImageHash(alg, words, source));
+		}
+		List<ImageHash> hashes = new ArrayList<>(unique);
+		ImageHash[] arr = hashes.toArray(new ImageHash[hashes.size()]);
+
+		for (MatchMode mode : new MatchMode[] { MatchMode.EXACT, MatchMode.STRICT }) {
+			Set<Long> expected = HammingStoreFixture.pairsWithin(hashes, alg.matchThreshold(mode));
+			expected.removeIf(p -> hashes.get((int) (p >>> 32)).sameSource(hashes.get((int) (long) p)));
+			assertEquals(expected,
+					HammingStoreFixture.pairsOf(hashes, HashStore.selfJoin(arr, alg, mode, true)), mode.name());
+		}
+		assertEquals(HammingStoreFixture.pairsWithin(hashes, 0),
+				HammingStoreFixture.pairsOf(hashes, DuplicateGroups.of(arr).matches(false)));
+	}
+
+}
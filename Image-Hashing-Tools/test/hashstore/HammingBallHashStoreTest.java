@@ -0,0 +1,140 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.HashUtils;
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class HammingBallHashStoreTest {
+
+	@Test
+	void matchesLinearScanTest() throws IOException {
+		Random r = new Random(42);
+		// 121 bits, so two words, the second partly used.
+		DifferenceHash alg = new DifferenceHash(11);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 11, r);
+
+		HammingBallHashStore store = new HammingBallHashStore();
+		for (ImageHash h : hashes) {
+			store.store(h);
+		}
+		assertEquals(hashes.size(), store.size());
+		assertTrue(store.enumerates(1));
+		assertFalse(store.enumerates(12));
+
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 1, 2, 3, 12 }, r);
+	}
+
+	@Test
+	void oneWordTest() throws IOException {
+		Random r = new Random(43);
+		// 64 bits, so one word, and the second word of every key is 0.
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 6, r);
+		HammingBallHashStore store = new HammingBallHashStore(hashes);
+
+		// STRICT looks up the one bit ball around every hash, and NORMAL and SLOPPY
+		// would take more lookups than comparing every pair, so they self join.
+		assertTrue(store.enumerates(alg.matchThreshold(MatchMode.STRICT)));
+		assertFalse(store.enumerates(alg.matchThreshold(MatchMode.NORMAL)));
+		assertFalse(store.enumerates(alg.matchThreshold(MatchMode.SLOPPY)));
+
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 1, 2, 4, 7 }, r);
+	}
+
+	@Test
+	void kNNFallsBackToScanTest() throws IOException {
+		Random r = new Random(44);
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 6, r);
+		HammingBallHashStore store = new HammingBallHashStore(hashes);
+		assertTrue(store.enumerates(1));
+		assertFalse(store.enumerates(2));
+
+		// Every query finds what's within one bit by looking it up, and then, being
+		// short of k, has to scan for the rest. What was looked up can't come out
+		// twice.
+		int k = 10;
+		for (int q = 0; q < 20; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			int[] distances = hashes.stream().mapToInt(h -> HashUtils.hammingDistance(query, h)).sorted().toArray();
+			assertTrue(distances[k - 1] > 1);
+
+			List<ImageHash> knn = store.kNN(query, k);
+			assertEquals(k, knn.size());
+			assertEquals(k, knn.stream().distinct().count());
+			for (int i = 0; i < k; i++) {
+				assertEquals(distances[i], HashUtils.hammingDistance(query, knn.get(i)));
+			}
+		}
+	}
+
+	// Keys are at most two words. Anything longer is turned away by the first
+	// store, which leaves the store empty and able to take something shorter.
+	@Test
+	void keyLengthLimitTest() throws IOException {
+		Random r = new Random(45);
+		HammingBallHashStore store = new HammingBallHashStore();
+		// 144 bits.
+		List<ImageHash> tooLong = HammingStoreFixture.random(new DifferenceHash(12), 10, 1, r);
+		assertThrows(IllegalArgumentException.class, () -> store.storeAll(tooLong));
+		assertThrows(IllegalArgumentException.class, () -> new HammingBallHashStore(tooLong));
+		assertEquals(0, store.size());
+		assertFalse(store.enumerates(0));
+
+		// 121 bits, the most that a dHash can have and still fit.
+		DifferenceHash alg = new DifferenceHash(11);
+		assertTrue(alg.getHashLength() <= HammingBallHashStore.MAX_HASH_LENGTH);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 400, 3, r);
+		store.storeAll(hashes);
+		assertEquals(hashes.size(), store.size());
+		assertThrows(IllegalArgumentException.class, () -> store.storeAll(tooLong));
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 1, 3 }, r);
+	}
+
+	// While there are too few distinct hashes for looking up a threshold's ball to
+	// pay off, findMatches() hands the hashes to HashStore.selfJoin() instead. As
+	// more are stored, the smaller thresholds switch over to looking them up, and
+	// duplicates have to pair up either way.
+	@Test
+	void selfJoinFallbackTest() throws IOException {
+		Random r = new Random(46);
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> originals = HammingStoreFixture.clustered(alg, 3000, 4, r);
+		List<ImageHash> hashes = new ArrayList<>();
+		HammingBallHashStore store = new HammingBallHashStore();
+		int strict = alg.matchThreshold(MatchMode.STRICT), normal = alg.matchThreshold(MatchMode.NORMAL);
+		// STRICT's one bit ball around a 64 bit hash takes 65 lookups.
+		int from = 0;
+		for (int count : new int[] { 40, 200, 3000 }) {
+			List<ImageHash> added = new ArrayList<>();
+			for (ImageHash h : originals.subList(from, count)) {
+				added.add(h);
+				// And a copy of every other one.
+				if (added.size() % 2 == 0) added.add(new ImageHash(alg, h.getWords(), h.getSource() + " copy"));
+			}
+			store.storeAll(added);
+			hashes.addAll(added);
+			from = count;
+
+			assertEquals(count > 200, store.enumerates(strict), "" + count);
+			assertFalse(store.enumerates(normal), "" + count);
+			for (MatchMode mode : MatchMode.values()) {
+				HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(mode), store.findMatches(mode));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import hash.HashUtils;
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.MatchMode;
+import pipeline.dedup.HashMatch;
+
+// The hashes and checks shared by the tests of everything that compares hashes
+// by hamming distance. Results are compared by the hashes in them, and pairs as
+// sets of pairs of indices into the stored hashes, in either order.
+public class HammingStoreFixture {
+
+	private HammingStoreFixture() {}
+
+	/**********/
+	/* Hashes */
+	/**********/
+
+	// Clusters of four similar hashes, so that there's something to find, each
+	// with up to maxFlips bits flipped.
+	public static List<ImageHash> clustered(IHashAlgorithm alg, int count, int maxFlips, Random r) {
+		int wordCount = ImageHash.wordCount(alg.getHashLength());
+		List<ImageHash> hashes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Random cluster = new Random(i / 4);
+			long[] words = new long[wordCount];
+			for (int j = 0; j < wordCount; j++) {
+				words[j] = cluster.nextLong();
+			}
+			for (int flips = r.nextInt(maxFlips + 1); flips > 0; flips--) {
+				int bit = r.nextInt(alg.getHashLength());
+				words[bit / 64] ^= 1L << (63 - bit % 64);
+			}
+			hashes.add(new ImageHash(alg, words, "" + i));
+		}
+		return hashes;
+	}
+
+	// Independent hashes, each bit set with probability 1 / 2^ands, so that the
+	// more ands, the closer they are to each other.
+	public static List<ImageHash> random(IHashAlgorithm alg, int count, int ands, Random r) {
+		int wordCount = ImageHash.wordCount(alg.getHashLength());
+		List<ImageHash> hashes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long[] words = new long[wordCount];
+			for (int j = 0; j < wordCount; j++) {
+				words[j] = -1L;
+				for (int a = 0; a < ands; a++) {
+					words[j] &= r.nextLong();
+				}
+			}
+			hashes.add(new ImageHash(alg, words, "" + i));
+		}
+		return hashes;
+	}
+
+	/************/
+	/* Expected */
+	/************/
+
+	// Every pair (i, j), i < j, of the hashes within threshold of each other, as
+	// pair(i, j).
+	public static Set<Long> pairsWithin(List<ImageHash> hashes, int threshold) {
+		Set<Long> pairs = new HashSet<>();
+		for (int i = 0; i < hashes.size(); i++) {
+			for (int j = i + 1; j < hashes.size(); j++) {
+				if (HashUtils.hammingDistance(hashes.get(i), hashes.get(j)) <= threshold) pairs.add(pair(i, j));
+			}
+		}
+		return pairs;
+	}
+
+	public static List<ImageHash> within(List<ImageHash> hashes, ImageHash query, int radius) {
+		return hashes.stream().filter(h -> HashUtils.hammingDistance(query, h) <= radius).collect(Collectors.toList());
+	}
+
+	// The same for (i, j) and (j, i).
+	public static long pair(int i, int j) {
+		return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+	}
+
+	/**********/
+	/* Checks */
+	/**********/
+
+	// Both hold the same hashes, as many times each, in any order.
+	public static void assertSameHashes(Collection<ImageHash> expected, Collection<ImageHash> actual) {
+		assertEquals(counts(expected), counts(actual));
+	}
+
+	// The k nearest of the hashes to the query. Ties can be broken either way, so
+	// this checks the distances, and that each result is a different one of the
+	// hashes.
+	public static void assertNearest(List<ImageHash> hashes, ImageHash query, int k, List<ImageHash> actual) {
+		List<Integer> distances = hashes.stream().map(h -> HashUtils.hammingDistance(query, h)).sorted().limit(k)
+				.collect(Collectors.toList());
+		assertEquals(distances, actual.stream().map(h -> HashUtils.hammingDistance(query, h))
+				.collect(Collectors.toList()));
+		Map<ImageHash, Long> stored = counts(hashes);
+		counts(actual).forEach((h, n) -> assertTrue(n <= stored.getOrDefault(h, 0L), h + " was not stored."));
+	}
+
+	// Two answers to the same kNN query agree. Only ties at the farthest distance
+	// can be broken differently, so everything closer has to be the same.
+	public static void assertSameNearest(ImageHash query, List<ImageHash> expected, List<ImageHash> actual) {
+		List<Integer> distances = expected.stream().map(h -> HashUtils.hammingDistance(query, h))
+				.collect(Collectors.toList());
+		assertEquals(distances, actual.stream().map(h -> HashUtils.hammingDistance(query, h))
+				.collect(Collectors.toList()));
+		if (distances.isEmpty()) return;
+		int farthest = distances.get(distances.size() - 1);
+		assertSameHashes(within(expected, query, farthest - 1), within(actual, query, farthest - 1));
+	}
+
+	// The matches as pairs of indices into the hashes. Every hash has to be unique,
+	// and every match has to be between two of them, at most once.
+	public static Set<Long> pairsOf(List<ImageHash> hashes, Collection<HashMatch> matches) {
+		Map<ImageHash, Integer> index = new HashMap<>();
+		for (int i = 0; i < hashes.size(); i++) {
+			assertEquals(null, index.put(hashes.get(i), i), "The hashes have to be unique.");
+		}
+		Set<Long> pairs = new HashSet<>();
+		for (HashMatch m : matches) {
+			Integer i = index.get(m.getFirst()), j = index.get(m.getSecond());
+			assertNotNull(i, m.getFirst() + " was not stored.");
+			assertNotNull(j, m.getSecond() + " was not stored.");
+			assertTrue(!i.equals(j), "A hash matched itself.");
+			assertTrue(pairs.add(pair(i, j)), "Matched twice: " + m);
+		}
+		return pairs;
+	}
+
+	// The matches are exactly the pairs within threshold, each once.
+	public static void assertSamePairs(List<ImageHash> hashes, int threshold, Collection<HashMatch> matches) {
+		assertEquals(pairsWithin(hashes, threshold), pairsOf(hashes, matches));
+	}
+
+	// Checks kNN and allWithinDistance for some of the hashes, and findMatches for
+	// every MatchMode, against comparing with everything.
+	public static void assertMatchesLinearScan(HashStore store, List<ImageHash> hashes, int[] radii, Random r)
+			throws IOException {
+		for (int q = 0; q < 20; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			assertNearest(hashes, query, 10, store.kNN(query, 10));
+			for (int radius : radii) {
+				assertSameHashes(within(hashes, query, radius), store.allWithinDistance(query, radius));
+			}
+		}
+
+		IHashAlgorithm alg = hashes.get(0).getAlgorithm();
+		for (MatchMode mode : MatchMode.values()) {
+			assertSamePairs(hashes, alg.matchThreshold(mode), store.findMatches(mode));
+		}
+	}
+
+	private static Map<ImageHash, Long> counts(Collection<ImageHash> hashes) {
+		return hashes.stream().collect(Collectors.groupingBy(h -> h, Collectors.counting()));
+	}
+
+}
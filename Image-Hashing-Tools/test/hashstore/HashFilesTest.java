@@ -0,0 +1,85 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.IHashAlgorithm;
+import hash.ImageHash;
+import hash.implementations.PerceptualHash;
+
+public class HashFilesTest {
+
+	private static List<ImageHash> randomHashes(IHashAlgorithm alg, int n, Random r) {
+		List<ImageHash> hashes = new ArrayList<>();
+		int words = ImageHash.wordCount(alg.getHashLength());
+		for (int i = 0; i < n; i++) {
+			long[] w = new long[words];
+			for (int j = 0; j < words; j++) {
+				w[j] = r.nextLong();
+			}
+			// No source, sources with commas and non-ascii, and long sources, which have
+			// to cross buffer boundaries.
+			String source = "" + i;
+			if (i % 7 == 0) source = null;
+			else if (i % 5 == 0) source = "https://example.com/a,b/\u00fc" + i;
+			else if (i % 1000 == 1) source = new String(new char[100000]);
+			hashes.add(new ImageHash(alg, w, source));
+		}
+		return hashes;
+	}
+
+	@Test
+	void roundTripTest() throws IOException {
+		IHashAlgorithm alg = new PerceptualHash(16);
+		List<ImageHash> hashes = randomHashes(alg, 20000, new Random(3));
+
+		File file = File.createTempFile("roundtrip", ".hashes");
+		file.deleteOnExit();
+		try (HashFileWriter writer = new HashFileWriter(file, alg)) {
+			for (ImageHash h : hashes) {
+				writer.store(h);
+			}
+			assertEquals(hashes.size(), writer.size());
+		}
+		assertTrue(HashFiles.isHashFile(file));
+
+		try (HashFileReader reader = new HashFileReader(file)) {
+			assertTrue(alg.algEquals(reader.getAlgorithm()));
+			assertEquals(hashes.size(), reader.size());
+			assertEquals(hashes.get(0), reader.read());
+			List<ImageHash> rest = reader.readAll();
+			assertEquals(hashes.subList(1, hashes.size()), rest);
+			assertNull(reader.read());
+		}
+	}
+
+	@Test
+	void convertTest() throws IOException {
+		IHashAlgorithm alg = new PerceptualHash(8);
+		List<ImageHash> hashes = randomHashes(alg, 3000, new Random(4));
+
+		File text = File.createTempFile("convert", ".txt");
+		text.deleteOnExit();
+		LinearHashStore store = new LinearHashStore(text);
+		store.storeAll(hashes);
+		assertFalse(HashFiles.isHashFile(text));
+
+		File binary = File.createTempFile("convert", ".hashes");
+		binary.deleteOnExit();
+		assertEquals(hashes.size(), HashFiles.convert(text, binary));
+		// Null sources come back as "null" from text, the same as fromString().
+		assertEquals(store.toList(), HashFiles.readAll(binary));
+		store.close();
+	}
+
+}
@@ -0,0 +1,84 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import hash.HashUtils;
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class LSHHashStoreTest {
+
+	@Test
+	void findsASubsetOfLinearScanTest() throws IOException {
+		Random r = new Random(42);
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 5, r);
+
+		LSHHashStore store = new LSHHashStore(10, 16, 42);
+		store.storeAll(hashes);
+		assertEquals(hashes.size(), store.size());
+		assertEquals(16, store.getBitsPerTable());
+
+		// Identical hashes always collide, so EXACT finds everything.
+		HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(MatchMode.EXACT),
+				store.findMatches(MatchMode.EXACT));
+		assertEquals(1.0, store.expectedRecall(0));
+		assertEquals(1.0, store.measureRecall(50, MatchMode.EXACT));
+
+		// Anything else it finds is a real match, found once.
+		int normal = alg.matchThreshold(MatchMode.NORMAL);
+		Set<Long> found = HammingStoreFixture.pairsOf(hashes, store.findMatches(MatchMode.NORMAL));
+		assertTrue(HammingStoreFixture.pairsWithin(hashes, normal).containsAll(found));
+		double recall = store.measureRecall(50, MatchMode.NORMAL);
+		assertTrue(recall > 0.5 && recall <= 1);
+
+		for (int q = 0; q < 20; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			assertEquals(0, HashUtils.hammingDistance(query, store.NN(query)));
+			List<ImageHash> within = store.allWithinDistance(query, normal);
+			assertTrue(HammingStoreFixture.within(hashes, query, normal).containsAll(within));
+			assertEquals(within.size(), within.stream().distinct().count());
+		}
+	}
+
+	// expectedRecall() is the chance that a pair at some distance collides, over
+	// the bits each table samples. So each pair gets a store with its own seed,
+	// and they have to collide that often, to within four standard deviations.
+	@Test
+	void recallMatchesExpectedTest() throws IOException {
+		Random r = new Random(17);
+		DifferenceHash alg = new DifferenceHash(8);
+		int trials = 2000;
+		for (int distance : new int[] { 1, 3, 6, 10, 16, 24 }) {
+			double expected = Double.NaN;
+			int found = 0;
+			for (int t = 0; t < trials; t++) {
+				ImageHash query = HammingStoreFixture.random(alg, 1, 1, r).get(0);
+				long[] words = query.getWords().clone();
+				for (int bit : r.ints(0, alg.getHashLength()).distinct().limit(distance).toArray()) {
+					words[bit / 64] ^= 1L << (63 - bit % 64);
+				}
+				ImageHash target = new ImageHash(alg, words, null);
+
+				LSHHashStore store = new LSHHashStore(4, 16, r.nextLong());
+				store.store(target);
+				if (!store.allWithinDistance(query, distance).isEmpty()) found++;
+				if (t == 0) expected = store.expectedRecall(distance);
+				assertEquals(expected, store.expectedRecall(distance));
+			}
+			double tolerance = 4 * Math.sqrt(expected * (1 - expected) / trials) + 1e-9;
+			assertEquals(expected, found / (double) trials, tolerance, "distance " + distance);
+		}
+		assertTrue(Double.isNaN(new LSHHashStore().expectedRecall(3)));
+	}
+
+}
@@ -0,0 +1,123 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.HashUtils;
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class MIHHashStoreTest {
+
+	@Test
+	void matchesLinearScanTest() throws IOException {
+		Random r = new Random(42);
+		// 144 bits, so substrings straddle words.
+		DifferenceHash alg = new DifferenceHash(12);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 11, r);
+
+		MIHHashStore store = new MIHHashStore();
+		for (ImageHash h : hashes) {
+			store.store(h);
+		}
+		assertEquals(hashes.size(), store.size());
+		assertEquals(MIHHashStore.defaultSubstrings(alg.getHashLength()), store.getSubstrings());
+
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 5, 11, 30 }, r);
+	}
+
+	// The fewest substrings that take a NORMAL search to at most one bit of
+	// difference in each, and that each fit in an int.
+	@Test
+	void defaultSubstringsTest() {
+		assertEquals(3, MIHHashStore.defaultSubstrings(64));
+		assertEquals(10, MIHHashStore.defaultSubstrings(256));
+		for (int length = 1; length <= 1024; length++) {
+			int m = MIHHashStore.defaultSubstrings(length), normal = MatchMode.NORMAL.maxDistance(length);
+			assertTrue(normal / m <= 1 && (length + m - 1) / m <= MIHHashStore.MAX_SUBSTRING_LENGTH, "" + length);
+			assertTrue(m == 1 || normal / (m - 1) > 1 || (length + m - 2) / (m - 1) > MIHHashStore.MAX_SUBSTRING_LENGTH,
+					"" + length);
+		}
+	}
+
+	// Any number of substrings finds the same hashes, as long as each fits in an
+	// int and has at least one bit.
+	@Test
+	void chosenSubstringsTest() throws IOException {
+		Random r = new Random(43);
+		DifferenceHash alg = new DifferenceHash(12);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 1500, 11, r);
+		for (int m : new int[] { 5, 7, 30 }) {
+			MIHHashStore store = new MIHHashStore(m);
+			store.storeAll(hashes);
+			assertEquals(m, store.getSubstrings());
+			HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 5, 11, 30 }, r);
+		}
+
+		// 25 bits fit in one.
+		List<ImageHash> short25 = HammingStoreFixture.clustered(new DifferenceHash(5), 500, 4, r);
+		MIHHashStore whole = new MIHHashStore(1);
+		whole.storeAll(short25);
+		HammingStoreFixture.assertMatchesLinearScan(whole, short25, new int[] { 0, 2, 4 }, r);
+
+		// 144 bits don't fit in 4 substrings, and 25 bits can't be split 26 ways.
+		assertThrows(IllegalArgumentException.class, () -> new MIHHashStore(4).storeAll(hashes));
+		assertThrows(IllegalArgumentException.class, () -> new MIHHashStore(26).storeAll(short25));
+		assertThrows(IllegalArgumentException.class, () -> new MIHHashStore(-1));
+	}
+
+	private static ImageHash flip(ImageHash h, int... bits) {
+		long[] words = h.getWords().clone();
+		for (int bit : bits) {
+			words[bit / 64] ^= 1L << (63 - bit % 64);
+		}
+		return new ImageHash(h.getAlgorithm(), words, null);
+	}
+
+	// After looking up every value within L bits of every substring, only hashes
+	// within m * (L + 1) - 1 bits are sure to have been found. kNN can't stop on a
+	// closer looking hash that's past that, while the true nearest is still
+	// waiting a level further out.
+	@Test
+	void kNNStoppingBoundTest() throws IOException {
+		Random r = new Random(44);
+		// 64 bits in 4 substrings of 16.
+		DifferenceHash alg = new DifferenceHash(8);
+		ImageHash query = HammingStoreFixture.random(alg, 1, 1, r).get(0);
+		// Far enough away to be found late, if at all, but enough of them that the
+		// searches are cheaper than scanning.
+		List<ImageHash> hashes = new ArrayList<>();
+		for (ImageHash h : HammingStoreFixture.random(alg, 3000, 1, r)) {
+			if (HashUtils.hammingDistance(query, h) > 20) hashes.add(h);
+		}
+
+		// One bit off in every substring, so only found at level 1, against 5 bits
+		// with the first substring untouched, found at level 0.
+		ImageHash level1 = flip(query, 0, 16, 32, 48), decoy1 = flip(query, 16, 32, 33, 48, 49);
+		// Two bits off in every substring, against 9 with the first untouched.
+		ImageHash level2 = flip(query, 0, 1, 16, 17, 32, 33, 48, 49),
+				decoy2 = flip(query, 16, 17, 18, 32, 33, 34, 48, 49, 50);
+		for (ImageHash[] pair : new ImageHash[][] { { level1, decoy1 }, { level2, decoy2 } }) {
+			List<ImageHash> stored = new ArrayList<>(hashes);
+			Collections.addAll(stored, pair);
+			Collections.shuffle(stored, r);
+			MIHHashStore store = new MIHHashStore(4);
+			store.storeAll(stored);
+
+			assertEquals(pair[0], store.NN(query));
+			assertEquals(List.of(pair[0], pair[1]), store.kNN(query, 2));
+			HammingStoreFixture.assertNearest(stored, query, 10, store.kNN(query, 10));
+		}
+	}
+
+}
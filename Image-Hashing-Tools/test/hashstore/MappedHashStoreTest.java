@@ -0,0 +1,119 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class MappedHashStoreTest {
+
+	@Test
+	void matchesLinearScanTest() throws IOException {
+		Random r = new Random(11);
+		DifferenceHash alg = new DifferenceHash(16);
+		List<ImageHash> hashes = new ArrayList<>();
+		for (ImageHash h : HammingStoreFixture.random(alg, 5000, 2, r)) {
+			hashes.add(new ImageHash(alg, h.getWords(), hashes.size() % 3 == 0 ? null : "image" + hashes.size()));
+		}
+
+		File file = tempStore();
+		MappedHashStore store = new MappedHashStore(file, alg);
+		assertNull(store.NN(hashes.get(0)));
+		// In pieces, so that it has to grow more than once.
+		for (int i = 0; i < hashes.size(); i += 700) {
+			store.storeAll(hashes.subList(i, Math.min(hashes.size(), i + 700)));
+		}
+		store.close();
+
+		// Everything should come back after reopening.
+		store = new MappedHashStore(file);
+		assertEquals(hashes.size(), store.size());
+		assertEquals(hashes, store.toList());
+
+		int radius = 90;
+		for (int q = 0; q < 30; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			// In the order they were stored.
+			assertEquals(HammingStoreFixture.within(hashes, query, radius), store.allWithinDistance(query, radius));
+			HammingStoreFixture.assertNearest(hashes, query, 10, store.kNN(query, 10));
+			assertEquals(query, store.NN(query));
+		}
+
+		HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(MatchMode.SLOPPY),
+				store.findMatches(MatchMode.SLOPPY));
+		store.close();
+	}
+
+	private static File tempStore() throws IOException {
+		File file = File.createTempFile("mapped", ".store");
+		file.delete();
+		file.deleteOnExit();
+		new File(file.getPath() + ".sources").deleteOnExit();
+		return file;
+	}
+
+	// Segments of 100 records, so that scans, joins and growing all cross from one
+	// mapping to the next.
+	@Test
+	void multipleSegmentsTest() throws IOException {
+		Random r = new Random(12);
+		DifferenceHash alg = new DifferenceHash(8);
+		// Clusters with few flips, so that there are exact duplicates to group.
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 1000, 2, r);
+		int recordBytes = (ImageHash.wordCount(alg.getHashLength()) + 1) * 8;
+
+		File file = tempStore();
+		MappedHashStore store = new MappedHashStore(file, alg, recordBytes * 100);
+		for (int i = 0; i < hashes.size(); i += 70) {
+			store.storeAll(hashes.subList(i, Math.min(hashes.size(), i + 70)));
+		}
+		assertEquals(hashes, store.toList());
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 3, 10 }, r);
+		store.close();
+
+		// The records don't depend on how they're mapped.
+		store = new MappedHashStore(file);
+		assertEquals(hashes, store.toList());
+		HammingStoreFixture.assertMatchesLinearScan(store, hashes, new int[] { 0, 3, 10 }, r);
+		store.close();
+	}
+
+	// A crash after the sources are written, but before the count is, leaves
+	// sources that no record points to. The records stored after reopening have
+	// to skip over them.
+	@Test
+	void orphanedSourcesTest() throws IOException {
+		Random r = new Random(13);
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 300, 4, r);
+
+		File file = tempStore();
+		MappedHashStore store = new MappedHashStore(file, alg);
+		store.storeAll(hashes.subList(0, 100));
+		store.close();
+		try (FileOutputStream orphans = new FileOutputStream(file.getPath() + ".sources", true)) {
+			orphans.write(new byte[] { 0, 0, 0, 5, 'l', 'o', 's', 't', '!' });
+		}
+
+		store = new MappedHashStore(file);
+		store.storeAll(hashes.subList(100, 300));
+		assertEquals(hashes, store.toList());
+		store.close();
+
+		store = new MappedHashStore(file);
+		assertEquals(hashes, store.toList());
+		store.close();
+	}
+
+}
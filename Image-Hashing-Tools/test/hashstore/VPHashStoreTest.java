@@ -0,0 +1,57 @@
+package hashstore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import hash.ImageHash;
+import hash.MatchMode;
+import hash.implementations.DifferenceHash;
+
+public class VPHashStoreTest {
+
+	@Test
+	void boundedDeltaTest() throws IOException, InterruptedException {
+		Random r = new Random(7);
+		DifferenceHash alg = new DifferenceHash(8);
+		List<ImageHash> hashes = new ArrayList<>();
+		VPHashStore store = new VPHashStore();
+		store.setDeltaCapacity(100);
+		// Not a multiple of the capacity, so that some are left in the delta.
+		for (int i = 0; i < 5050; i++) {
+			ImageHash h = new ImageHash(alg, new long[] { r.nextLong() }, "" + i);
+			hashes.add(h);
+			store.store(h);
+			assertTrue(store.deltaSize() < 100);
+		}
+		HammingStoreFixture.assertSameHashes(hashes, store.toList());
+
+		for (int q = 0; q < 20; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			HammingStoreFixture.assertNearest(hashes, query, 10, store.kNN(query, 10));
+			HammingStoreFixture.assertSameHashes(HammingStoreFixture.within(hashes, query, 20),
+					store.allWithinDistance(query, 20));
+		}
+
+		// Joined from the trees and the delta, then from the merged tree.
+		assertEquals(50, store.deltaSize());
+		for (MatchMode mode : MatchMode.values()) {
+			HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(mode), store.findMatches(mode));
+		}
+
+		store.merge();
+		assertEquals(1, store.treeCount());
+		assertEquals(0, store.deltaSize());
+		HammingStoreFixture.assertSameHashes(hashes, store.toList());
+		for (MatchMode mode : MatchMode.values()) {
+			HammingStoreFixture.assertSamePairs(hashes, alg.matchThreshold(mode), store.findMatches(mode));
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import image.implementations.LazyRGBAImage;
+import image.implementations.RGBAImage;
+
+public class LazyRGBAImageTest {
+
+	private static BufferedImage randomImage(int type, int width, int height) {
+		Random r = new Random(width * 31 + height);
+		BufferedImage img = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				img.setRGB(x, y, r.nextInt());
+			}
+		}
+		return img;
+	}
+
+	// Greyscale has to match RGBAImage exactly, or hashes of loaded images would
+	// change.
+	@Test
+	void matchesRGBAImageTest() {
+		int[] types = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+				BufferedImage.TYPE_BYTE_GRAY };
+		for (int type : types) {
+			BufferedImage img = randomImage(type, 317, 211);
+			for (BufferedImage source : new BufferedImage[] { img, img.getSubimage(3, 5, 300, 200) }) {
+				RGBAImage rgba = new RGBAImage(source);
+				LazyRGBAImage lazy = new LazyRGBAImage(source);
+
+				assertArrayEquals(rgba.toGreyscale().getPixels(), lazy.toGreyscale().getPixels());
+				for (ResizeMode mode : ResizeMode.values()) {
+					assertArrayEquals(rgba.resizeGreyscale(16, 16, mode).getPixels(),
+							lazy.resizeGreyscale(16, 16, mode).getPixels());
+				}
+			}
+		}
+	}
+
+}
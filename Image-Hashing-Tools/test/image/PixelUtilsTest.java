@@ -0,0 +1,102 @@
+package image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import image.implementations.GreyscaleImage;
+import image.implementations.RGBImage;
+
+public class PixelUtilsTest {
+
+	private static byte[] randomPixels(Random r, int width, int height) {
+		byte[] pixels = new byte[width * height];
+		r.nextBytes(pixels);
+		// Both ends, since pixels are unsigned.
+		pixels[0] = 0;
+		pixels[pixels.length - 1] = (byte) 255;
+		return pixels;
+	}
+
+	// Source pixel (x, y) goes to output pixel (x * newWidth / width, y * newHeight
+	// / height). Each output pixel is the mean of everything that goes to it, over
+	// every plane, rounded half up. Worked out in doubles, one source pixel at a
+	// time.
+	private static byte[] boxAverage(int width, int height, int newWidth, int newHeight, byte[]... planes) {
+		double[] sums = new double[newWidth * newHeight];
+		int[] counts = new int[newWidth * newHeight];
+		for (byte[] plane : planes) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int out = (int) Math.floor((double) y * newHeight / height) * newWidth
+							+ (int) Math.floor((double) x * newWidth / width);
+					sums[out] += plane[y * width + x] & 0xff;
+					counts[out]++;
+				}
+			}
+		}
+		byte[] averaged = new byte[newWidth * newHeight];
+		for (int i = 0; i < averaged.length; i++) {
+			averaged[i] = (byte) Math.floor(sums[i] / counts[i] + 0.5);
+		}
+		return averaged;
+	}
+
+	@Test
+	void areaAverageMatchesBoxAverageTest() {
+		Random r = new Random(8);
+		int[][] sizes = {
+				// Odd sizes, with ratios that don't divide evenly.
+				{ 613, 401, 16, 16 }, { 7, 5, 3, 2 }, { 9, 9, 2, 8 }, { 100, 3, 33, 2 },
+				// Only one side shrinks, or neither does.
+				{ 7, 5, 7, 1 }, { 7, 5, 1, 5 }, { 5, 5, 5, 5 }, { 613, 401, 1, 1 },
+				// Enough pixels to do the rows in parallel.
+				{ 1031, 1027, 37, 29 } };
+		for (int[] s : sizes) {
+			String size = s[0] + "x" + s[1] + " to " + s[2] + "x" + s[3];
+			byte[] grey = randomPixels(r, s[0], s[1]);
+			assertArrayEquals(boxAverage(s[0], s[1], s[2], s[3], grey),
+					PixelUtils.areaAverage(s[0], s[1], s[2], s[3], grey), size);
+
+			byte[] red = randomPixels(r, s[0], s[1]), green = randomPixels(r, s[0], s[1]),
+					blue = randomPixels(r, s[0], s[1]);
+			assertArrayEquals(boxAverage(s[0], s[1], s[2], s[3], red, green, blue),
+					PixelUtils.areaAverage(s[0], s[1], s[2], s[3], red, green, blue), size);
+			assertArrayEquals(boxAverage(s[0], s[1], s[2], s[3], red, green, blue),
+					new RGBImage(red, green, blue, s[0], s[1]).resizeAreaAverageGreyscale(s[2], s[3]).getPixels(),
+					size);
+
+			// LazyRGBAImage works out its row bands with this, so it has to agree too.
+			for (int row = 0; row <= s[3]; row++) {
+				int start = 0;
+				while (start < s[1] && Math.floor((double) start * s[3] / s[1]) < row) start++;
+				assertEquals(start, PixelUtils.areaAverageRowStart(row, s[1], s[3]), size);
+			}
+		}
+	}
+
+	// Area averaging can't enlarge, so the images fall back to bilinear for that.
+	@Test
+	void areaAverageUpscaleTest() {
+		Random r = new Random(9);
+		byte[] pixels = randomPixels(r, 7, 5);
+		assertThrows(IllegalArgumentException.class, () -> PixelUtils.areaAverage(7, 5, 8, 5, pixels));
+		assertThrows(IllegalArgumentException.class, () -> PixelUtils.areaAverage(7, 5, 3, 6, pixels));
+		assertThrows(IllegalArgumentException.class, () -> PixelUtils.areaAverage(7, 5, 0, 2, pixels));
+
+		GreyscaleImage grey = new GreyscaleImage(pixels, 7, 5);
+		for (int[] s : new int[][] { { 16, 16 }, { 8, 5 }, { 3, 9 } }) {
+			assertArrayEquals(grey.resizeBilinear(s[0], s[1]).getPixels(),
+					grey.resizeGreyscale(s[0], s[1], ResizeMode.AREA_AVERAGE).getPixels());
+
+			RGBImage rgb = new RGBImage(pixels, randomPixels(r, 7, 5), randomPixels(r, 7, 5), 7, 5);
+			assertArrayEquals(rgb.resizeBilinearGreyscale(s[0], s[1]).getPixels(),
+					rgb.resizeGreyscale(s[0], s[1], ResizeMode.AREA_AVERAGE).getPixels());
+		}
+	}
+
+}
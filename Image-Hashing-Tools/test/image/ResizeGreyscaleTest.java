@@ -0,0 +1,47 @@
+package image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import image.implementations.GreyscaleImage;
+import image.implementations.RGBAImage;
+import image.implementations.RGBImage;
+import image.implementations.SourcedImage;
+import image.implementations.YCbCrImage;
+
+public class ResizeGreyscaleTest {
+
+	private static GreyscaleImage randomPlane(Random r, int width, int height) {
+		byte[] pixels = new byte[width * height];
+		r.nextBytes(pixels);
+		// Both ends, since pixels are unsigned.
+		pixels[0] = 0;
+		pixels[pixels.length - 1] = (byte) 255;
+		return new GreyscaleImage(pixels, width, height);
+	}
+
+	// Every image has to give exactly what the two step resize and conversion
+	// did, or hashes would change. Hash thumbnails, odd sizes, and enlarging.
+	@Test
+	void fusedBilinearMatchesTwoStepTest() {
+		Random r = new Random(7);
+		int[][] sizes = { { 32, 32 }, { 8, 9 }, { 200, 150 }, { 97, 61 }, { 151, 113 }, { 1, 1 } };
+		RGBImage rgb = new RGBImage(randomPlane(r, 151, 113), randomPlane(r, 151, 113), randomPlane(r, 151, 113));
+		RGBAImage rgba = new RGBAImage(rgb, randomPlane(r, 151, 113));
+		IImage<?>[] images = { rgb, rgba, new YCbCrImage(rgb), rgb.toGreyscale(),
+				new SourcedImage(rgba, "a.png", false) };
+		for (IImage<?> img : images) {
+			for (int[] s : sizes) {
+				String what = img.getClass().getSimpleName() + " to " + s[0] + "x" + s[1];
+				assertArrayEquals(img.resizeBilinear(s[0], s[1]).toGreyscale().getPixels(),
+						img.resizeBilinearGreyscale(s[0], s[1]).getPixels(), what);
+				assertArrayEquals(img.resizeBilinear(s[0], s[1]).toGreyscale().getPixels(),
+						img.resizeGreyscale(s[0], s[1], ResizeMode.BILINEAR).getPixels(), what);
+			}
+		}
+	}
+
+}
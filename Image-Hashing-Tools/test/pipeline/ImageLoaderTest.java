@@ -0,0 +1,80 @@
+package pipeline;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import hash.implementations.AverageHash;
+import hash.implementations.DifferenceHash;
+import hash.implementations.PerceptualHash;
+import image.implementations.SourcedImage;
+import pipeline.sources.ImageLoader;
+
+public class ImageLoaderTest {
+
+	@Test
+	void decodeSideLengthTest() throws IOException {
+		File folder = Files.createTempDirectory("loader").toFile();
+		folder.deleteOnExit();
+		Random r = new Random(10);
+		// Width, height, and the size each should decode at for a side length of 32.
+		int[][] sizes = { { 1000, 600, 56, 34 }, { 100, 100, 34, 34 }, { 20, 300, 20, 300 }, { 64, 63, 64, 63 } };
+		Map<String, int[]> expected = new HashMap<>();
+		for (int[] s : sizes) {
+			BufferedImage img = new BufferedImage(s[0], s[1], BufferedImage.TYPE_INT_RGB);
+			img.setRGB(0, 0, r.nextInt());
+			File file = new File(folder, s[0] + "x" + s[1] + ".png");
+			file.deleteOnExit();
+			ImageIO.write(img, "png", file);
+			expected.put(file.toString(), s);
+		}
+
+		ImageLoader loader = new ImageLoader(folder);
+		assertEquals(0, loader.getDecodeSideLength());
+		loader.setDecodeSideLength(-3);
+		assertEquals(0, loader.getDecodeSideLength());
+
+		// The largest that any of the algorithms needs.
+		loader.setDecodeSideLength(new AverageHash(8), new DifferenceHash(6));
+		assertEquals(32, loader.getDecodeSideLength());
+		loader.setDecodeSideLength(new PerceptualHash(32), new AverageHash(8));
+		assertEquals(128, loader.getDecodeSideLength());
+		// Any one of them wanting everything means full resolution.
+		loader.setDecodeSideLength(new AverageHash(8), new AverageHash(8) {
+			@Override
+			public int getDecodeSideLength() { return 0; }
+		});
+		assertEquals(0, loader.getDecodeSideLength());
+
+		ImageLoader full = loader.clone();
+		loader.setDecodeSideLength(new AverageHash(8));
+		ImageLoader reduced = loader.clone();
+		assertEquals(32, reduced.getDecodeSideLength());
+
+		int loaded = 0;
+		for (SourcedImage img; (img = reduced.next()) != null; loaded++) {
+			int[] s = expected.get(img.getSource());
+			assertEquals(s[2], img.getWidth(), img.getSource());
+			assertEquals(s[3], img.getHeight(), img.getSource());
+		}
+		assertEquals(sizes.length, loaded);
+		for (SourcedImage img; (img = full.next()) != null;) {
+			int[] s = expected.get(img.getSource());
+			assertEquals(s[0], img.getWidth(), img.getSource());
+			assertEquals(s[1], img.getHeight(), img.getSource());
+		}
+		assertNull(full.next());
+	}
+
+}
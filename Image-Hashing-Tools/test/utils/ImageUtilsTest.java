@@ -0,0 +1,74 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class ImageUtilsTest {
+
+	// A PNG with random pixels, so that decoding is lossless and each decoded pixel
+	// can be traced back to the one it was sampled from.
+	static File randomPNG(Random r, int width, int height) throws IOException {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				img.setRGB(x, y, r.nextInt());
+			}
+		}
+		File file = File.createTempFile("subsampled", ".png");
+		file.deleteOnExit();
+		ImageIO.write(img, "png", file);
+		return file;
+	}
+
+	@Test
+	void openSubsampledTest() throws IOException {
+		Random r = new Random(9);
+		// Width, height, minSideLength, and the factor that keeps the smaller side at
+		// least minSideLength.
+		int[][] cases = {
+				// Rounds down, so the smaller side ends up between minSideLength and twice it.
+				{ 1000, 600, 64, 9 }, { 600, 1000, 64, 9 }, { 128, 128, 64, 2 }, { 129, 191, 64, 2 },
+				// Smaller than minSideLength, or only just big enough, decodes everything.
+				{ 50, 40, 64, 1 }, { 300, 40, 64, 1 }, { 64, 64, 64, 1 }, { 127, 500, 64, 1 },
+				// Zero or less means full resolution.
+				{ 300, 200, 0, 1 }, { 300, 200, -5, 1 } };
+		for (int[] c : cases) {
+			String what = c[0] + "x" + c[1] + " at " + c[2];
+			File file = randomPNG(r, c[0], c[1]);
+			BufferedImage full = ImageIO.read(file);
+			BufferedImage decoded = ImageUtils.openImage(file, c[2]);
+
+			int factor = c[3];
+			assertEquals((c[0] + factor - 1) / factor, decoded.getWidth(), what);
+			assertEquals((c[1] + factor - 1) / factor, decoded.getHeight(), what);
+			assertTrue(Math.min(decoded.getWidth(), decoded.getHeight()) >= Math.min(c[2], Math.min(c[0], c[1])),
+					what);
+			// Every factor-th pixel of every factor-th row, starting at the corner.
+			for (int y = 0; y < decoded.getHeight(); y++) {
+				for (int x = 0; x < decoded.getWidth(); x++) {
+					assertEquals(full.getRGB(x * factor, y * factor), decoded.getRGB(x, y), what);
+				}
+			}
+		}
+	}
+
+	// Files without a reader come back as null, the same as at full resolution.
+	@Test
+	void openSubsampledUnreadableTest() throws IOException {
+		File file = File.createTempFile("subsampled", ".png");
+		file.deleteOnExit();
+		assertNull(ImageUtils.openImage(file, 64));
+		assertNull(ImageUtils.openImage(file));
+	}
+
+}
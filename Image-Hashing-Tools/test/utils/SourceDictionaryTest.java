@@ -0,0 +1,97 @@
+package utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import hash.ImageHash;
+import hash.implementations.DifferenceHash;
+
+public class SourceDictionaryTest {
+
+	@Test
+	void internTest() {
+		SourceDictionary d = new SourceDictionary();
+		assertEquals(SourceDictionary.NO_SOURCE, d.intern(null));
+		assertNull(d.get(SourceDictionary.NO_SOURCE));
+
+		String[] sources = { "/images/a.png", "/images/b.png", "C:\\images\\a.png", "https://example.com/x/a.png",
+				"a.png", "", "/images/" };
+		int[] ids = new int[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			ids[i] = d.intern(sources[i]);
+			// A different string with the same contents gets the same id.
+			assertEquals(ids[i], d.intern(new String(sources[i].toCharArray())));
+			assertEquals(sources[i], d.get(ids[i]));
+		}
+		for (int i = 0; i < ids.length; i++) {
+			for (int j = i + 1; j < ids.length; j++) {
+				assertNotEquals(ids[i], ids[j]);
+			}
+		}
+		assertEquals(sources.length, d.size());
+		// "/images/" is shared, and "a.png" and "" have no folder.
+		assertEquals(4, d.folders());
+		assertTrue(d.contains(ids[0]));
+		assertFalse(d.contains(sources.length));
+	}
+
+	@Test
+	void concurrentTest() throws InterruptedException {
+		SourceDictionary d = new SourceDictionary();
+		int threads = 4, each = 1 << 14;
+		int[][] ids = new int[threads][each];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			workers[t] = new Thread(() -> {
+				// Every thread interns the same sources in a different order, since an odd
+				// multiple of i covers every n, and reads back what it got without locking
+				// while the others keep growing it.
+				for (int i = 0; i < each; i++) {
+					int n = (i * (thread * 2 + 1)) % each;
+					String source = "/folder" + n % 50 + "/" + n + ".png";
+					int id = d.intern(source);
+					ids[thread][n] = id;
+					if (!d.contains(id) || !source.equals(d.get(id))) throw new AssertionError(source);
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(each, d.size());
+		assertEquals(50, d.folders());
+		for (int t = 1; t < threads; t++) {
+			for (int n = 0; n < each; n++) {
+				assertEquals(ids[0][n], ids[t][n]);
+			}
+		}
+	}
+
+	@Test
+	void imageHashSourceTest() throws ClassNotFoundException {
+		DifferenceHash alg = new DifferenceHash(8);
+		ImageHash h1 = new ImageHash(alg, new long[] { 1 }, "/images/a.png");
+		ImageHash h2 = new ImageHash(alg, new long[] { 2 }, "/images/" + "a.png");
+		ImageHash h3 = new ImageHash(alg, new long[] { 1 }, (String) null);
+		assertTrue(h1.sameSource(h2));
+		assertFalse(h1.sameSource(h3));
+		assertFalse(h3.sameSource(h3));
+		// A null source is still equal to "null", which is how it comes back from
+		// toString().
+		assertEquals(h3, new ImageHash(alg, new long[] { 1 }, "null"));
+
+		ImageHash read = ImageHash.fromString(h1.toString());
+		assertEquals(h1, read);
+		assertEquals("/images/a.png", read.getSource());
+		assertTrue(h1.sameSource(read));
+	}
+
+}
@@ -0,0 +1,101 @@
+package vptree;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import hash.HashUtils;
+import hash.ImageHash;
+import hash.implementations.DifferenceHash;
+import hashstore.HammingStoreFixture;
+import pipeline.dedup.HashMatch;
+import utils.Pair;
+
+public class HammingVPTreeTest {
+
+	@Test
+	void matchesLinearScanTest() {
+		Random r = new Random(42);
+		DifferenceHash alg = new DifferenceHash(16);
+		List<ImageHash> hashes = HammingStoreFixture.random(alg, 5000, 1, r);
+		HammingVPTree tree = new HammingVPTree(hashes);
+		assertEquals(hashes.size(), tree.size());
+
+		for (int q = 0; q < 20; q++) {
+			ImageHash query = hashes.get(r.nextInt(hashes.size()));
+			List<VPEntry<ImageHash>> knn = tree.knn(query, 10);
+			for (VPEntry<ImageHash> e : knn) {
+				assertEquals(HashUtils.hammingDistance(query, e.item), (int) e.distance);
+			}
+			HammingStoreFixture.assertNearest(hashes, query, 10, items(knn));
+			assertEquals(0, (int) tree.nn(query).distance);
+
+			int radius = 110;
+			HammingStoreFixture.assertSameHashes(HammingStoreFixture.within(hashes, query, radius),
+					items(tree.range(query, radius)));
+		}
+	}
+
+	@Test
+	void rangeSearchTest() {
+		Random r = new Random(42);
+		DifferenceHash alg = new DifferenceHash(16);
+		int n = 5000;
+		// Clusters of similar hashes, so that small radii find something.
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, n, 5, r);
+		HammingVPTree tree = new HammingVPTree(hashes);
+
+		for (int q = 0; q < 20; q++) {
+			ImageHash query = hashes.get(r.nextInt(n));
+			for (int radius : new int[] { 0, 2, 4, 60 }) {
+				RangeResult<ImageHash> result = tree.rangeSearch(query, radius);
+				HammingStoreFixture.assertSameHashes(HammingStoreFixture.within(hashes, query, radius),
+						items(result.matches));
+				for (VPEntry<ImageHash> e : result.matches) {
+					assertEquals(HashUtils.hammingDistance(query, e.item), (int) e.distance);
+				}
+
+				if (radius <= 4) {
+					// Small enough for the tree to prune, with room to spare. At 8, an unlucky
+					// choice of vantage points can go over budget.
+					assertFalse(result.scanned);
+					assertTrue(result.distanceEvaluations < n);
+				} else {
+					// Under a quarter of the length, so the tree is tried, but it can't prune
+					// random bits that far out, and goes over budget.
+					assertTrue(result.scanned);
+					assertTrue(result.distanceEvaluations > n);
+				}
+			}
+		}
+	}
+
+	@Test
+	void selfJoinTest() {
+		Random r = new Random(42);
+		DifferenceHash alg = new DifferenceHash(8);
+		// Clusters of similar hashes, so that there's something to find.
+		List<ImageHash> hashes = HammingStoreFixture.clustered(alg, 4000, 5, r);
+		HammingVPTree tree = new HammingVPTree(hashes);
+
+		for (int radius : new int[] { 0, 4, 10, 20 }) {
+			List<HashMatch> matches = new ArrayList<>();
+			for (Pair<ImageHash, ImageHash> p : tree.selfJoin(radius)) {
+				matches.add(new HashMatch(p.getKey(), p.getValue()));
+			}
+			HammingStoreFixture.assertSamePairs(hashes, radius, matches);
+		}
+	}
+
+	private static List<ImageHash> items(List<VPEntry<ImageHash>> entries) {
+		return entries.stream().map(e -> e.item).collect(Collectors.toList());
+	}
+
+}